@@ -0,0 +1,92 @@
+package joints.bench;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import joints.Constraint;
+import joints.ConstraintTable;
+import joints2.bench.Rigs;
+import joints2.bench.Rigs.Rig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One pass of {@link Constraint#applyExplicit(Iterable, double[], double[])} over a rig,
+ * sequentially and by batches of independent constraints, and one pass of {@link ConstraintTable#apply(double[])}.
+ *
+ * @author codistmonk (creation 2015-08-12)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ConstraintBenchmark {
+	
+	@Param({ "CHAIN", "GRID", "CLOTH", "STICKMEN" })
+	public Rigs.Type rig;
+	
+	@Param({ "100", "1000", "10000", "100000" })
+	public int size;
+	
+	@Param({ "1", "4" })
+	public int parallelism;
+	
+	private double[] locations;
+	
+	private double[] masses;
+	
+	private List<Constraint> constraints;
+	
+	private List<List<Constraint>> batches;
+	
+	private ConstraintTable table;
+	
+	private ForkJoinPool pool;
+	
+	@Setup
+	public final void setup() {
+		final Rig rig = this.rig.newRig(this.size);
+		
+		this.locations = rig.newLocations();
+		this.masses = rig.newMasses();
+		this.constraints = rig.newConstraints();
+		this.batches = Constraint.color(this.constraints);
+		this.table = ConstraintTable.of(this.constraints).sort().setMasses(this.masses);
+		this.pool = new ForkJoinPool(this.parallelism);
+	}
+	
+	@TearDown
+	public final void tearDown() {
+		this.pool.shutdown();
+	}
+	
+	@Benchmark
+	public final double applyExplicit() {
+		return Constraint.applyExplicit(this.constraints, this.locations, this.masses);
+	}
+	
+	@Benchmark
+	public final double applyTable() {
+		return this.table.apply(this.locations);
+	}
+	
+	@Benchmark
+	public final double applyExplicitBatches() {
+		return Constraint.applyExplicit(this.batches, this.locations, this.masses, this.pool);
+	}
+	
+}
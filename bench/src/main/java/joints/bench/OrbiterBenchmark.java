@@ -0,0 +1,75 @@
+package joints.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import joints.OrbiterMouseHandler;
+import joints2.bench.Rigs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link OrbiterMouseHandler#transform(double[])} on the locations of a rig, restored before each call
+ * (the copy is included in the measurement).
+ *
+ * @author codistmonk (creation 2015-08-12)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class OrbiterBenchmark {
+	
+	@Param({ "CLOTH" })
+	public Rigs.Type rig;
+	
+	@Param({ "1000", "100000", "1000000" })
+	public int size;
+	
+	@Param({ "false", "true" })
+	public boolean parallel;
+	
+	private double[] locations;
+	
+	private double[] transformed;
+	
+	private OrbiterMouseHandler orbiter;
+	
+	@Setup
+	public final void setup() {
+		this.locations = this.rig.newRig(this.size).newLocations();
+		this.transformed = new double[this.locations.length];
+		this.orbiter = new OrbiterMouseHandler(new AtomicBoolean()).setRoll(0.5).setScale(2.0)
+				.setParallelThreshold(this.parallel ? 0 : Integer.MAX_VALUE);
+		this.orbiter.setPitch(0.25);
+	}
+	
+	@Benchmark
+	public final double[] transform() {
+		System.arraycopy(this.locations, 0, this.transformed, 0, this.locations.length);
+		this.orbiter.transform(this.transformed);
+		
+		return this.transformed;
+	}
+	
+	@Benchmark
+	public final double[] inverseTransform() {
+		System.arraycopy(this.locations, 0, this.transformed, 0, this.locations.length);
+		this.orbiter.inverseTransform(this.transformed);
+		
+		return this.transformed;
+	}
+	
+}
@@ -0,0 +1,8 @@
+/**
+ * JMH benchmarks of the joints package over the synthetic rigs of {@link joints2.bench.Rigs}.
+ * <br>Build with <code>mvn package</code> at the root, then run <code>java -jar bench/target/benchmarks.jar</code>;
+ * add <code>-prof gc</code> for allocation rates and <code>-p size=...</code> for scaling curves.
+ * 
+ * @author codistmonk (creation 2015-08-12)
+ */
+package joints.bench;
@@ -0,0 +1,158 @@
+package joints2;
+
+import static multij.tools.Tools.debugPrint;
+import static multij.tools.Tools.gc;
+import static multij.tools.Tools.unchecked;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+
+import javax.vecmath.Point3f;
+
+import joints2.JointsModel.Group;
+import joints2.JointsModel.Segment;
+
+import multij.tools.CommandLineArgumentsParser;
+import multij.tools.IllegalInstantiationException;
+import multij.tools.TicToc;
+import multij.xml.XMLTools;
+
+/**
+ * Compares load time and peak heap of the DOM path ({@link JointsModel#addFromXML(org.w3c.dom.Document)})
+ * against {@link JointsXML#read(InputStream, JointsModel)}.
+ *
+ * @author codistmonk (creation 2015-08-05)
+ */
+public final class JointsXMLBenchmark {
+	
+	private JointsXMLBenchmark() {
+		throw new IllegalInstantiationException();
+	}
+	
+	/**
+	 * @param commandLineArguments
+	 * <br>[file path] (a synthetic model is generated if absent)
+	 * <br>[joints 100000]
+	 * <br>[repetitions 3]
+	 */
+	public static final void main(final String[] commandLineArguments) throws IOException {
+		final CommandLineArgumentsParser arguments = new CommandLineArgumentsParser(commandLineArguments);
+		final String path = arguments.get("file", "");
+		final int jointCount = arguments.get("joints", 100_000)[0];
+		final int repetitions = arguments.get("repetitions", 3)[0];
+		final File file;
+		
+		if (path.isEmpty()) {
+			file = File.createTempFile("joints", ".xml");
+			file.deleteOnExit();
+			
+			try (final OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+				JointsXML.write(newSyntheticModel(jointCount), output);
+			}
+		} else {
+			file = new File(path);
+		}
+		
+		debugPrint("file:", file, "bytes:", file.length());
+		
+		for (int i = 0; i < repetitions; ++i) {
+			measure("dom", () -> {
+				try (final InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+					return newModel().addFromXML(XMLTools.parse(input));
+				} catch (final IOException exception) {
+					throw unchecked(exception);
+				}
+			});
+			measure("stax", () -> {
+				try (final InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+					return JointsXML.read(input, newModel());
+				} catch (final IOException exception) {
+					throw unchecked(exception);
+				}
+			});
+		}
+	}
+	
+	public static final JointsModel newSyntheticModel(final int jointCount) {
+		final JointsModel result = newModel();
+		final Random random = new Random(jointCount);
+		final Group group = new Group();
+		
+		for (int i = 0; i < jointCount; ++i) {
+			final Point3f joint = new Point3f(random.nextFloat() * 100F, random.nextFloat() * 100F, random.nextFloat() * 100F);
+			
+			result.addJoint(joint);
+			
+			if (0 < i) {
+				final Segment segment = result.addSegment(new Segment(result.getJointLocations().get(random.nextInt(i)), joint));
+				
+				if (i % 16 == 0) {
+					group.getObjects().add(segment);
+				}
+			}
+		}
+		
+		result.getGroups().put("synthetic", group);
+		
+		return result;
+	}
+	
+	private static final JointsModel newModel() {
+		return new JointsModel("benchmark");
+	}
+	
+	private static final void measure(final String name, final Load load) {
+		gc(100L);
+		
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		
+		final long baseline = getHeapUsage(false);
+		final TicToc timer = new TicToc();
+		
+		timer.tic();
+		
+		final JointsModel model = load.load();
+		final long time = timer.toc();
+		final long peak = getHeapUsage(true);
+		
+		debugPrint(name, "joints:", model.getJointLocations().size(), "segments:", model.getSegments().size(),
+				"time:", time, "ms", "peakHeap:", (peak - baseline) >> 20, "MiB");
+	}
+	
+	/**
+	 * Sum over heap pools; the sum of pool peaks is an upper bound of the actual peak.
+	 */
+	private static final long getHeapUsage(final boolean peak) {
+		long result = 0L;
+		
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				result += (peak ? pool.getPeakUsage() : pool.getUsage()).getUsed();
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-05)
+	 */
+	private static abstract interface Load {
+		
+		public abstract JointsModel load();
+		
+	}
+	
+}
@@ -0,0 +1,119 @@
+package joints2.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import joints2.JointsBinary;
+import joints2.JointsModel;
+import joints2.JointsXML;
+
+import multij.xml.XMLTools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and saving a rig through the DOM path ({@link JointsModel#addFromXML(org.w3c.dom.Document)},
+ * {@link JointsModel#toXML()}), {@link JointsXML} and {@link JointsBinary}, from and to memory.
+ * <br>The DOM path is much slower than the others, hence the small default sizes.
+ *
+ * @author codistmonk (creation 2015-08-12)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PersistenceBenchmark {
+	
+	@Param({ "STICKMEN" })
+	public Rigs.Type rig;
+	
+	@Param({ "100", "1000" })
+	public int size;
+	
+	private JointsModel source;
+	
+	private JointsModel target;
+	
+	private byte[] xml;
+	
+	private byte[] binary;
+	
+	@Setup
+	public final void setup() {
+		this.source = this.rig.newRig(this.size).addTo(new JointsModel("source"));
+		this.target = new JointsModel("target");
+		
+		{
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			
+			JointsXML.write(this.source, output);
+			this.xml = output.toByteArray();
+		}
+		
+		{
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			
+			JointsBinary.write(this.source, output);
+			this.binary = output.toByteArray();
+		}
+	}
+	
+	@Benchmark
+	public final JointsModel readDOM() {
+		return this.clearTarget().addFromXML(XMLTools.parse(new ByteArrayInputStream(this.xml)));
+	}
+	
+	@Benchmark
+	public final Object writeDOM() {
+		return this.source.toXML();
+	}
+	
+	@Benchmark
+	public final JointsModel readXML() {
+		return JointsXML.read(new ByteArrayInputStream(this.xml), this.clearTarget());
+	}
+	
+	@Benchmark
+	public final int writeXML() {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream(this.xml.length);
+		
+		JointsXML.write(this.source, output);
+		
+		return output.size();
+	}
+	
+	@Benchmark
+	public final JointsModel readBinary() {
+		return JointsBinary.read(ByteBuffer.wrap(this.binary), this.clearTarget());
+	}
+	
+	@Benchmark
+	public final int writeBinary() {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream(this.binary.length);
+		
+		JointsBinary.write(this.source, output);
+		
+		return output.size();
+	}
+	
+	private final JointsModel clearTarget() {
+		this.target.getGroups().clear();
+		
+		return this.target.clear();
+	}
+	
+}
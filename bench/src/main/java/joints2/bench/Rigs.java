@@ -0,0 +1,346 @@
+package joints2.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.vecmath.Point3f;
+
+import joints.Constraint;
+import joints.Demo.StickMan;
+import joints2.JointsModel;
+import joints2.JointsModel.Segment;
+import joints2.Scene;
+
+import multij.primitivelists.DoubleList;
+import multij.tools.IllegalInstantiationException;
+
+/**
+ * Synthetic rigs for the benchmarks, usable by both solvers:
+ * each rig is a set of locations and of segments whose rest lengths are taken before the locations are jittered,
+ * so that solving has work to do.
+ *
+ * @author codistmonk (creation 2015-08-12)
+ */
+public final class Rigs {
+	
+	private Rigs() {
+		throw new IllegalInstantiationException();
+	}
+	
+	public static final long SEED = 42L;
+	
+	/**
+	 * Relative amplitude of the jitter applied to locations after the rest lengths are computed.
+	 */
+	public static final double JITTER = 0.05;
+	
+	/**
+	 * @return a scene with its repaint scheduler stopped, for the benchmarks that project models
+	 */
+	public static final Scene newScene() {
+		final Scene result = new Scene();
+		
+		result.getRepaintScheduler().stop();
+		
+		return result;
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-12)
+	 */
+	public static enum Type {
+		
+		/**
+		 * <code>size</code> joints in a line.
+		 */
+		CHAIN {
+			
+			@Override
+			final Rig generate(final int size) {
+				final Rig result = new Rig(size);
+				
+				for (int i = 0; i < size; ++i) {
+					result.setLocation(i, i, 0.0, 0.0);
+					
+					if (0 < i) {
+						result.addSegment(i - 1, i);
+					}
+				}
+				
+				return result;
+			}
+			
+		},
+		/**
+		 * A square grid of about <code>size</code> joints with horizontal and vertical segments.
+		 */
+		GRID {
+			
+			@Override
+			final Rig generate(final int size) {
+				return grid(size, false);
+			}
+			
+		},
+		/**
+		 * Same as {@link #GRID}, with both diagonals in each cell for shear resistance.
+		 */
+		CLOTH {
+			
+			@Override
+			final Rig generate(final int size) {
+				return grid(size, true);
+			}
+			
+		},
+		/**
+		 * {@link StickMan} replicas (15 joints each) side by side, muscles included.
+		 */
+		STICKMEN {
+			
+			@Override
+			final Rig generate(final int size) {
+				final DoubleList vertices = new DoubleList();
+				final DoubleList masses = new DoubleList();
+				final List<Constraint> constraints = new ArrayList<>();
+				final int n = Math.max(1, size / 15);
+				
+				for (int i = 0; i < n; ++i) {
+					constraints.addAll(new StickMan(vertices, masses).translate(100.0 * i, 0.0, 0.0).getConstraints());
+				}
+				
+				final Rig result = new Rig(vertices.size() / 3);
+				
+				System.arraycopy(vertices.toArray(), 0, result.locations, 0, vertices.size());
+				constraints.forEach(c -> result.addSegment(c.getIndex1(), c.getIndex2()));
+				
+				return result;
+			}
+			
+		},
+		/**
+		 * A triangular column of about <code>size</code> joints, 3 per level, braced so that it is rigid:
+		 * each joint has segments to the 3 joints of the level below and to the previous joints of its level.
+		 */
+		TRUSS {
+			
+			@Override
+			final Rig generate(final int size) {
+				final int levels = Math.max(1, size / 3);
+				final Rig result = new Rig(3 * levels);
+				
+				for (int i = 0; i < levels; ++i) {
+					for (int j = 0; j < 3; ++j) {
+						final int k = 3 * i + j;
+						final double angle = 2.0 * Math.PI * j / 3.0;
+						
+						result.setLocation(k, Math.cos(angle), Math.sin(angle), i);
+						
+						for (int l = 3 * Math.max(0, i - 1); l < k; ++l) {
+							result.addSegment(l, k);
+						}
+					}
+				}
+				
+				return result;
+			}
+			
+		};
+		
+		abstract Rig generate(int size);
+		
+		/**
+		 * @param size
+		 * <br>Approximate number of joints
+		 * @return a new jittered rig
+		 */
+		public final Rig newRig(final int size) {
+			return this.generate(size).jitter(new Random(SEED));
+		}
+		
+		static final Rig grid(final int size, final boolean diagonals) {
+			final int side = Math.max(2, (int) Math.round(Math.sqrt(size)));
+			final Rig result = new Rig(side * side);
+			
+			for (int i = 0; i < side; ++i) {
+				for (int j = 0; j < side; ++j) {
+					final int k = i * side + j;
+					
+					result.setLocation(k, j, i, 0.0);
+					
+					if (0 < j) {
+						result.addSegment(k - 1, k);
+					}
+					
+					if (0 < i) {
+						result.addSegment(k - side, k);
+					}
+					
+					if (diagonals && 0 < i && 0 < j) {
+						result.addSegment(k - side - 1, k);
+						result.addSegment(k - side, k - 1);
+					}
+				}
+			}
+			
+			return result;
+		}
+		
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-12)
+	 */
+	public static final class Rig {
+		
+		final double[] locations;
+		
+		private int[] endpoints;
+		
+		private double[] distances;
+		
+		private int segmentCount;
+		
+		Rig(final int jointCount) {
+			this.locations = new double[3 * jointCount];
+			this.endpoints = new int[2 * jointCount];
+			this.distances = new double[jointCount];
+		}
+		
+		public final int getJointCount() {
+			return this.locations.length / 3;
+		}
+		
+		public final int getSegmentCount() {
+			return this.segmentCount;
+		}
+		
+		/**
+		 * @return a new array of packed locations (x, y, z per joint)
+		 */
+		public final double[] newLocations() {
+			return this.locations.clone();
+		}
+		
+		/**
+		 * @return a new array of unit masses
+		 */
+		public final double[] newMasses() {
+			final double[] result = new double[this.getJointCount()];
+			
+			Arrays.fill(result, 1.0);
+			
+			return result;
+		}
+		
+		/**
+		 * @return new constraints for {@link Constraint#applyExplicit(Iterable, double[], double[])}
+		 */
+		public final List<Constraint> newConstraints() {
+			final int n = this.getSegmentCount();
+			final List<Constraint> result = new ArrayList<>(n);
+			
+			for (int i = 0; i < n; ++i) {
+				result.add(new Constraint(this.endpoints[2 * i + 0], this.endpoints[2 * i + 1]).setPreferredDistance(this.distances[i]));
+			}
+			
+			return result;
+		}
+		
+		/**
+		 * Adds the joints and segments of this rig to <code>model</code>, with constant constraints.
+		 *
+		 * @param model
+		 * @return <code>model</code>
+		 */
+		public final JointsModel addTo(final JointsModel model) {
+			final int n = this.getJointCount();
+			final int m = this.getSegmentCount();
+			final Point3f[] joints = new Point3f[n];
+			
+			for (int i = 0; i < n; ++i) {
+				joints[i] = new Point3f((float) this.locations[3 * i + 0], (float) this.locations[3 * i + 1], (float) this.locations[3 * i + 2]);
+				model.addJoint(joints[i]);
+			}
+			
+			for (int i = 0; i < m; ++i) {
+				model.addSegment(new Segment(joints[this.endpoints[2 * i + 0]], joints[this.endpoints[2 * i + 1]], Double.toString(this.distances[i])));
+			}
+			
+			return model;
+		}
+		
+		/**
+		 * Translates and scales this rig (rest lengths included) so that it fits in [-1, 1]<sup>3</sup>,
+		 * for the benchmarks that work in view coordinates.
+		 *
+		 * @return <code>this</code>
+		 */
+		public final Rig normalize() {
+			final double[] minima = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+			final double[] maxima = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			
+			for (int i = 0; i < this.locations.length; ++i) {
+				minima[i % 3] = Math.min(minima[i % 3], this.locations[i]);
+				maxima[i % 3] = Math.max(maxima[i % 3], this.locations[i]);
+			}
+			
+			double amplitude = 0.0;
+			
+			for (int i = 0; i < 3; ++i) {
+				amplitude = Math.max(amplitude, maxima[i] - minima[i]);
+			}
+			
+			final double scale = 0.0 < amplitude ? 2.0 / amplitude : 1.0;
+			
+			for (int i = 0; i < this.locations.length; ++i) {
+				this.locations[i] = scale * (this.locations[i] - (minima[i % 3] + maxima[i % 3]) / 2.0);
+			}
+			
+			for (int i = 0; i < this.segmentCount; ++i) {
+				this.distances[i] *= scale;
+			}
+			
+			return this;
+		}
+		
+		final void setLocation(final int joint, final double x, final double y, final double z) {
+			this.locations[3 * joint + 0] = x;
+			this.locations[3 * joint + 1] = y;
+			this.locations[3 * joint + 2] = z;
+		}
+		
+		final void addSegment(final int joint1, final int joint2) {
+			if (this.distances.length <= this.segmentCount) {
+				this.endpoints = Arrays.copyOf(this.endpoints, 2 * this.endpoints.length);
+				this.distances = Arrays.copyOf(this.distances, 2 * this.distances.length);
+			}
+			
+			this.endpoints[2 * this.segmentCount + 0] = joint1;
+			this.endpoints[2 * this.segmentCount + 1] = joint2;
+			this.distances[this.segmentCount] = Constraint.distance(this.locations, joint1, joint2);
+			++this.segmentCount;
+		}
+		
+		final Rig jitter(final Random random) {
+			final int m = this.getSegmentCount();
+			double scale = 0.0;
+			
+			for (int i = 0; i < m; ++i) {
+				scale += this.distances[i];
+			}
+			
+			scale = JITTER * scale / Math.max(1, m);
+			
+			for (int i = 0; i < this.locations.length; ++i) {
+				this.locations[i] += scale * (2.0 * random.nextDouble() - 1.0);
+			}
+			
+			return this;
+		}
+		
+	}
+	
+}
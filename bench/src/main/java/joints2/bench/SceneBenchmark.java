@@ -0,0 +1,137 @@
+package joints2.bench;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import joints2.JointsModel;
+import joints2.PickingIndex;
+import joints2.Scene;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-frame work of {@link Scene#accept(Graphics2D)} (projection of the invalidated model)
+ * and of analytic picking ({@link PickingIndex} rebuild and queries) on a rig fitted to the view.
+ *
+ * @author codistmonk (creation 2015-08-12)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SceneBenchmark {
+	
+	@Param({ "CHAIN", "CLOTH", "STICKMEN" })
+	public Rigs.Type rig;
+	
+	@Param({ "1000", "10000", "100000" })
+	public int size;
+	
+	private Scene scene;
+	
+	private JointsModel model;
+	
+	private BufferedImage image;
+	
+	private Graphics2D graphics;
+	
+	private PickingIndex pickingIndex;
+	
+	private AffineTransform viewport;
+	
+	private float[] queries;
+	
+	private int query;
+	
+	@Setup
+	public final void setup() {
+		this.scene = Rigs.newScene();
+		this.model = this.rig.newRig(this.size).normalize().addTo(new JointsModel(this.scene, "rig"));
+		this.image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		this.graphics = this.image.createGraphics();
+		this.pickingIndex = new PickingIndex();
+		this.viewport = new AffineTransform(WIDTH / 2.0, 0.0, 0.0, -HEIGHT / 2.0, WIDTH / 2.0, HEIGHT / 2.0);
+		this.queries = new float[2 * 1024];
+		
+		final Random random = new Random(Rigs.SEED);
+		
+		for (int i = 0; i < this.queries.length; i += 2) {
+			this.queries[i + 0] = random.nextFloat() * WIDTH;
+			this.queries[i + 1] = random.nextFloat() * HEIGHT;
+		}
+		
+		this.scene.project();
+		this.buildPickingIndex();
+	}
+	
+	@TearDown
+	public final void tearDown() {
+		this.graphics.dispose();
+	}
+	
+	@Benchmark
+	public final Scene accept() {
+		this.scene.getModelLayer().invalidate();
+		this.scene.accept(this.graphics);
+		
+		return this.scene;
+	}
+	
+	@Benchmark
+	public final PickingIndex buildPickingIndex() {
+		final float[] projected = this.scene.getProjected(this.model.getName());
+		final int[] endpoints = this.model.getEndpoints();
+		final int n = projected.length / 3;
+		final int m = endpoints.length / 2;
+		final PickingIndex result = this.pickingIndex.clear(this.viewport);
+		
+		for (int i = 0, j = 0; i < n; ++i, j += 3) {
+			if (!Float.isNaN(projected[j])) {
+				result.addPoint(i, projected[j + 0], projected[j + 1], JOINT_RADIUS);
+			}
+		}
+		
+		for (int i = 0; i < m; ++i) {
+			final int j1 = 3 * endpoints[2 * i + 0];
+			final int j2 = 3 * endpoints[2 * i + 1];
+			
+			if (!Float.isNaN(projected[j1]) && !Float.isNaN(projected[j2])) {
+				result.addSegment(n + i, projected[j1 + 0], projected[j1 + 1], projected[j2 + 0], projected[j2 + 1]);
+			}
+		}
+		
+		return result.build();
+	}
+	
+	@Benchmark
+	public final int pick() {
+		final int i = this.query;
+		
+		this.query = (i + 2) % this.queries.length;
+		
+		return this.pickingIndex.pick(this.queries[i + 0], this.queries[i + 1]);
+	}
+	
+	public static final int WIDTH = 800;
+	
+	public static final int HEIGHT = 600;
+	
+	public static final float JOINT_RADIUS = 0.02F;
+	
+}
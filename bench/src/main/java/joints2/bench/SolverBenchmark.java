@@ -0,0 +1,77 @@
+package joints2.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.vecmath.Point3f;
+
+import joints2.JointsModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link JointsModel#applyConstraints(AtomicBoolean)} while the first joint is dragged back and forth,
+ * so that the solver never falls asleep.
+ *
+ * @author codistmonk (creation 2015-08-12)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SolverBenchmark {
+	
+	@Param({ "CHAIN", "GRID", "CLOTH", "STICKMEN", "TRUSS" })
+	public Rigs.Type rig;
+	
+	@Param({ "100", "1000", "10000" })
+	public int size;
+	
+	@Param({ "1" })
+	public int parallelism;
+	
+	@Param({ "true" })
+	public boolean rigidClusters;
+	
+	@Param({ "true" })
+	public boolean trees;
+	
+	private JointsModel model;
+	
+	private Point3f handle;
+	
+	private float offset;
+	
+	private final AtomicBoolean updateNeeded = new AtomicBoolean();
+	
+	@Setup
+	public final void setup() {
+		this.model = this.rig.newRig(this.size).addTo(new JointsModel("rig"));
+		this.model.getSolver().setParallelism(this.parallelism).setCollapsingRigidClusters(this.rigidClusters)
+				.setSolvingTrees(this.trees);
+		this.handle = this.model.getJointLocations().get(0);
+		this.offset = 0.1F;
+	}
+	
+	@Benchmark
+	public final boolean applyConstraints() {
+		this.offset = -this.offset;
+		this.handle.x += this.offset;
+		this.model.getSolver().wake(this.handle);
+		
+		return this.model.applyConstraints(this.updateNeeded);
+	}
+	
+}
@@ -0,0 +1,62 @@
+package joints2;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import joints2.Metrics.Recorder;
+import joints2.Metrics.Series;
+
+/**
+ * Commits {@link Metrics} samples as JFR events.
+ * <br>Compiled for Java 11 and later, and only loaded by name from {@link Metrics}.
+ * 
+ * @author codistmonk (creation 2015-08-14)
+ */
+public final class FlightRecorderEvents implements Recorder {
+	
+	private final EventType type = EventType.getEventType(StageEvent.class);
+	
+	@Override
+	public final void record(final Series series, final long value) {
+		if (this.type.isEnabled()) {
+			final StageEvent event = new StageEvent();
+			
+			event.stage = series.getName();
+			
+			if (series.isTime()) {
+				event.elapsed = value;
+			} else {
+				event.count = value;
+			}
+			
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-14)
+	 */
+	@Name("joints2.Stage")
+	@Label("Joints Stage")
+	@Category("Joints")
+	@StackTrace(false)
+	static final class StageEvent extends Event {
+		
+		@Label("Stage")
+		String stage;
+		
+		@Label("Elapsed")
+		@Timespan(Timespan.NANOSECONDS)
+		long elapsed;
+		
+		@Label("Count")
+		long count;
+		
+	}
+	
+}
@@ -1,13 +1,24 @@
 package joints;
 
+import static java.lang.Math.max;
 import static java.lang.Math.round;
 import static javax.swing.SwingUtilities.invokeAndWait;
-import static multij.tools.Tools.gc;
+import static javax.swing.SwingUtilities.invokeLater;
 
 import java.awt.Component;
 import java.io.Serializable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Calls {@link #animateFrame()} on deadlines spaced by {@link #getFrameNanoseconds()}.
+ * <br>Deadlines are computed from the start of the animation rather than from the end of each frame, so that
+ * sleeping does not accumulate drift; when a frame overruns one or more deadlines, they are skipped
+ * instead of being run back to back.
+ * <br>After each frame, a repaint is requested and the next frame only starts once it has been painted,
+ * because frames usually redraw an image that the component paints; the paint overlaps the wait for the deadline.
+ * 
  * @author codistmonk (creation 2014-02-18)
  */
 public abstract class Animator implements Serializable {
@@ -18,9 +29,13 @@ public abstract class Animator implements Serializable {
 	
 	private long frameMilliseconds;
 	
+	private long frameNanoseconds;
+	
+	private final Statistics statistics;
+	
 	public Animator(final Component component) {
 		this.component = component;
-		
+		this.statistics = new Statistics();
 	}
 	
 	public final double getFrameRate() {
@@ -30,6 +45,7 @@ public abstract class Animator implements Serializable {
 	public final Animator setFrameRate(final double frameRate) {
 		this.frameRate = frameRate;
 		this.frameMilliseconds = round(1000.0 / frameRate);
+		this.frameNanoseconds = 0.0 < frameRate ? round(1E9 / frameRate) : 0L;
 		
 		return this;
 	}
@@ -38,12 +54,57 @@ public abstract class Animator implements Serializable {
 		return this.frameMilliseconds;
 	}
 	
+	/**
+	 * @return the period between frame deadlines, <code>0</code> to run frames back to back
+	 */
+	public final long getFrameNanoseconds() {
+		return this.frameNanoseconds;
+	}
+	
+	public final Statistics getStatistics() {
+		return this.statistics;
+	}
+	
 	public final Animator animate() {
+		final Statistics statistics = this.getStatistics();
+		
 		waitAWT();
 		
-		while (this.animateFrame()) {
-			repaintAndWait(this.component);
-			gc(this.getFrameMilliseconds());
+		long deadline = System.nanoTime();
+		
+		while (true) {
+			final long frameStart = System.nanoTime();
+			
+			if (!this.animateFrame()) {
+				break;
+			}
+			
+			final Future<?> repaint = requestRepaint(this.component);
+			
+			final long workEnd = System.nanoTime();
+			final long period = this.getFrameNanoseconds();
+			
+			if (period <= 0L) {
+				deadline = workEnd;
+			} else {
+				deadline += period;
+				
+				if (deadline <= workEnd) {
+					final long skipped = (workEnd - deadline) / period;
+					
+					statistics.missedDeadline(skipped);
+					deadline += (skipped + 1L) * period;
+				}
+			}
+			
+			for (long now = workEnd; now < deadline; now = System.nanoTime()) {
+				LockSupport.parkNanos(this, deadline - now);
+			}
+			
+			// The next frame must not draw while this one is being painted
+			await(repaint);
+			
+			statistics.frame(workEnd - frameStart, max(0L, System.nanoTime() - workEnd));
 		}
 		
 		repaintAndWait(this.component);
@@ -58,25 +119,156 @@ public abstract class Animator implements Serializable {
 	 */
 	private static final long serialVersionUID = -5561688092809450709L;
 	
+	private static final Runnable NOP = new Runnable() {
+		
+		@Override
+		public final void run() {
+			// NOP
+		}
+		
+	};
+	
 	public static final void repaintAndWait(final Component component) {
 		component.repaint();
 		waitAWT();
 	}
 	
+	/**
+	 * @param component
+	 * @return a future that completes after the requested repaint, like {@link #repaintAndWait(Component)}
+	 */
+	public static final Future<?> requestRepaint(final Component component) {
+		final FutureTask<?> result = new FutureTask<>(NOP, null);
+		
+		component.repaint();
+		invokeLater(result);
+		
+		return result;
+	}
+	
+	public static final void await(final Future<?> future) {
+		try {
+			future.get();
+		} catch (final Exception exception) {
+			exception.printStackTrace();
+		}
+	}
+	
 	public static final void waitAWT() {
 		try {
-			invokeAndWait(new Runnable() {
-				
-				@Override
-				public final void run() {
-					// TODO Auto-generated method stub
-					
-				}
-				
-			});
+			invokeAndWait(NOP);
 		} catch (final Exception exception) {
 			exception.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Per-frame timings, in nanoseconds.
+	 * <br>Work time covers {@link Animator#animateFrame()} and the repaint request;
+	 * wait time is the time spent sleeping until the next deadline and waiting for the repaint.
+	 * 
+	 * @author codistmonk (creation 2015-08-11)
+	 */
+	public static final class Statistics implements Serializable {
+		
+		private volatile long frameCount;
+		
+		private volatile long missedDeadlineCount;
+		
+		private volatile long skippedFrameCount;
+		
+		private volatile long totalWorkTime;
+		
+		private volatile long totalWaitTime;
+		
+		private volatile long maximumWorkTime;
+		
+		private volatile long lastWorkTime;
+		
+		private volatile long lastWaitTime;
+		
+		public final long getFrameCount() {
+			return this.frameCount;
+		}
+		
+		/**
+		 * @return the number of frames that ended after their deadline
+		 */
+		public final long getMissedDeadlineCount() {
+			return this.missedDeadlineCount;
+		}
+		
+		/**
+		 * @return the number of deadlines dropped because a frame overran them
+		 */
+		public final long getSkippedFrameCount() {
+			return this.skippedFrameCount;
+		}
+		
+		public final long getTotalWorkTime() {
+			return this.totalWorkTime;
+		}
+		
+		public final long getTotalWaitTime() {
+			return this.totalWaitTime;
+		}
+		
+		public final long getMaximumWorkTime() {
+			return this.maximumWorkTime;
+		}
+		
+		public final long getLastWorkTime() {
+			return this.lastWorkTime;
+		}
+		
+		public final long getLastWaitTime() {
+			return this.lastWaitTime;
+		}
+		
+		public final double getAverageWorkTime() {
+			return (double) this.getTotalWorkTime() / max(1L, this.getFrameCount());
+		}
+		
+		public final double getAverageWaitTime() {
+			return (double) this.getTotalWaitTime() / max(1L, this.getFrameCount());
+		}
+		
+		public final synchronized Statistics reset() {
+			this.frameCount = 0L;
+			this.missedDeadlineCount = 0L;
+			this.skippedFrameCount = 0L;
+			this.totalWorkTime = 0L;
+			this.totalWaitTime = 0L;
+			this.maximumWorkTime = 0L;
+			this.lastWorkTime = 0L;
+			this.lastWaitTime = 0L;
+			
+			return this;
+		}
+		
+		@Override
+		public final String toString() {
+			return String.format("frames: %d missed: %d skipped: %d work: %.3fms (max %.3fms) wait: %.3fms",
+					this.getFrameCount(), this.getMissedDeadlineCount(), this.getSkippedFrameCount(),
+					this.getAverageWorkTime() / 1E6, this.getMaximumWorkTime() / 1E6, this.getAverageWaitTime() / 1E6);
+		}
+		
+		final synchronized void missedDeadline(final long skippedFrames) {
+			++this.missedDeadlineCount;
+			this.skippedFrameCount += skippedFrames;
+		}
+		
+		final synchronized void frame(final long workTime, final long waitTime) {
+			++this.frameCount;
+			this.totalWorkTime += workTime;
+			this.totalWaitTime += waitTime;
+			this.maximumWorkTime = max(this.maximumWorkTime, workTime);
+			this.lastWorkTime = workTime;
+			this.lastWaitTime = waitTime;
+		}
+		
+		private static final long serialVersionUID = 2594768262958919707L;
+		
+	}
+	
 }
@@ -11,6 +11,11 @@ import static multij.tools.MathTools.square;
 import static multij.tools.Tools.cast;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 import multij.tools.Tools;
 
@@ -164,7 +169,62 @@ public final class Constraint implements Serializable, Comparable<Constraint> {
 			result = max(result, constraint.apply(locations, masses));
 		}
 		
-		Tools.debugPrint(result);
+		return result;
+	}
+	
+	/**
+	 * Same as {@link #applyExplicit(Iterable, double[], double[])}, but each batch is processed in parallel on <code>pool</code>.
+	 * <br>Batches are processed in order; within a batch, constraints must not share an index (see {@link #color(Iterable)}),
+	 * so the result does not depend on thread scheduling.
+	 * 
+	 * @param batches
+	 * @param locations
+	 * @param masses
+	 * @param pool
+	 * @return the maximum error
+	 */
+	public static final double applyExplicit(final List<List<Constraint>> batches, final double[] locations, final double[] masses,
+			final ForkJoinPool pool) {
+		double result = 0.0;
+		
+		try {
+			for (final List<Constraint> batch : batches) {
+				result = max(result, pool.submit(() -> batch.parallelStream().mapToDouble(c -> c.apply(locations, masses)).max().orElse(0.0)).get());
+			}
+		} catch (final InterruptedException | ExecutionException exception) {
+			throw Tools.unchecked(exception);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Greedily partitions <code>constraints</code> into batches where no two constraints share an index.
+	 * <br>Iteration order is preserved within each batch.
+	 * 
+	 * @param constraints
+	 * @return the batches
+	 */
+	public static final List<List<Constraint>> color(final Iterable<Constraint> constraints) {
+		final List<List<Constraint>> result = new ArrayList<>();
+		final List<BitSet> usedIndices = new ArrayList<>();
+		
+		for (final Constraint constraint : constraints) {
+			int color = 0;
+			
+			while (color < result.size() && (usedIndices.get(color).get(constraint.getIndex1()) || usedIndices.get(color).get(constraint.getIndex2()))) {
+				++color;
+			}
+			
+			if (color == result.size()) {
+				result.add(new ArrayList<>());
+				usedIndices.add(new BitSet());
+			}
+			
+			result.get(color).add(constraint);
+			usedIndices.get(color).set(constraint.getIndex1());
+			usedIndices.get(color).set(constraint.getIndex2());
+		}
 		
 		return result;
 	}
@@ -0,0 +1,432 @@
+package joints;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.cos;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * {@link Constraint}s packed into parallel arrays (one row per constraint), with the inverse masses of the joints.
+ * <br>{@link #apply(double[])} is equivalent to {@link Constraint#applyExplicit(Iterable, double[], double[])} over the rows
+ * in order, without allocations or virtual calls:
+ * <br>each row stores the interval its distance is clamped to (the preferred distance on both sides if it is defined,
+ * the minimum and maximum distances otherwise), and pinned joints (infinite mass) have an inverse mass of <code>0</code>,
+ * so that moving both endpoints reduces to weighting a single correction.
+ * <br>{@link #sort()} orders the rows like {@link Constraint#compareTo(Constraint)}, so that consecutive rows touch nearby joints.
+ *
+ * @author codistmonk (creation 2015-08-16)
+ */
+public final class ConstraintTable implements Serializable {
+	
+	private int size;
+	
+	/**
+	 * First and second index of each row.
+	 */
+	private int[] endpoints;
+	
+	private double[] minimumDistances;
+	
+	private double[] maximumDistances;
+	
+	private double[] preferredDistances;
+	
+	/**
+	 * Lower bound, upper bound and strength of each row, interleaved for {@link #apply(double[])}.
+	 */
+	private double[] parameters;
+	
+	private double[] inverseMasses;
+	
+	private boolean[] pinned;
+	
+	private boolean sorted;
+	
+	public ConstraintTable() {
+		this(16);
+	}
+	
+	public ConstraintTable(final int capacity) {
+		final int n = max(1, capacity);
+		
+		this.endpoints = new int[2 * n];
+		this.minimumDistances = new double[n];
+		this.maximumDistances = new double[n];
+		this.preferredDistances = new double[n];
+		this.parameters = new double[3 * n];
+		this.inverseMasses = new double[0];
+		this.pinned = new boolean[0];
+		this.sorted = true;
+	}
+	
+	public final int size() {
+		return this.size;
+	}
+	
+	public final boolean isSorted() {
+		return this.sorted;
+	}
+	
+	public final int getIndex1(final int row) {
+		return this.endpoints[2 * row + 0];
+	}
+	
+	public final int getIndex2(final int row) {
+		return this.endpoints[2 * row + 1];
+	}
+	
+	public final double getMinimumDistance(final int row) {
+		return this.minimumDistances[row];
+	}
+	
+	public final double getMaximumDistance(final int row) {
+		return this.maximumDistances[row];
+	}
+	
+	public final double getPreferredDistance(final int row) {
+		return this.preferredDistances[row];
+	}
+	
+	public final double getStrength(final int row) {
+		return this.parameters[3 * row + 2];
+	}
+	
+	/**
+	 * Appends a row with the indices and parameters of <code>constraint</code>.
+	 *
+	 * @param constraint
+	 * @return <code>this</code>
+	 */
+	public final ConstraintTable add(final Constraint constraint) {
+		final int row = this.size;
+		
+		if (this.minimumDistances.length <= row) {
+			this.resize(2 * this.minimumDistances.length);
+		}
+		
+		this.endpoints[2 * row + 0] = constraint.getIndex1();
+		this.endpoints[2 * row + 1] = constraint.getIndex2();
+		++this.size;
+		this.set(row, constraint);
+		
+		if (0 < row && this.sorted) {
+			this.sorted = compare(this.endpoints, row - 1, row) <= 0;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Copies the parameters of <code>constraint</code> into <code>row</code>, whose indices must be the same.
+	 *
+	 * @param row
+	 * @param constraint
+	 * @return <code>this</code>
+	 */
+	public final ConstraintTable set(final int row, final Constraint constraint) {
+		this.minimumDistances[row] = constraint.getMinimumDistance();
+		this.maximumDistances[row] = constraint.getMaximumDistance();
+		this.preferredDistances[row] = constraint.getPreferredDistance();
+		this.parameters[3 * row + 2] = constraint.getStrength();
+		this.updateBounds(row);
+		
+		return this;
+	}
+	
+	/**
+	 * Copies the parameters of <code>constraint</code> into the row with the same indices.
+	 *
+	 * @param constraint
+	 * @return <code>this</code>
+	 * @throws IllegalArgumentException if there is no such row
+	 */
+	public final ConstraintTable update(final Constraint constraint) {
+		final int row = this.indexOf(constraint.getIndex1(), constraint.getIndex2());
+		
+		if (row < 0) {
+			throw new IllegalArgumentException("No row for " + constraint.getIndex1() + "-" + constraint.getIndex2());
+		}
+		
+		return this.set(row, constraint);
+	}
+	
+	public final ConstraintTable setPreferredDistance(final int row, final double preferredDistance) {
+		this.preferredDistances[row] = preferredDistance;
+		this.updateBounds(row);
+		
+		return this;
+	}
+	
+	public final ConstraintTable setStrength(final int row, final double strength) {
+		this.parameters[3 * row + 2] = strength;
+		
+		return this;
+	}
+	
+	/**
+	 * Uses a binary search if the table is sorted, a linear search otherwise.
+	 *
+	 * @param index1
+	 * @param index2
+	 * @return the first row constraining <code>index1</code> and <code>index2</code> (in any order), or <code>-1</code>
+	 */
+	public final int indexOf(final int index1, final int index2) {
+		final int i1 = min(index1, index2);
+		final int i2 = max(index1, index2);
+		
+		final int[] endpoints = this.endpoints;
+		
+		if (!this.isSorted()) {
+			for (int row = 0; row < this.size; ++row) {
+				if (endpoints[2 * row + 0] == i1 && endpoints[2 * row + 1] == i2) {
+					return row;
+				}
+			}
+			
+			return -1;
+		}
+		
+		int low = 0;
+		int high = this.size;
+		
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			final int comparison = endpoints[2 * middle + 0] != i1 ? Integer.compare(endpoints[2 * middle + 0], i1) : Integer.compare(endpoints[2 * middle + 1], i2);
+			
+			if (comparison < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		
+		return low < this.size && endpoints[2 * low + 0] == i1 && endpoints[2 * low + 1] == i2 ? low : -1;
+	}
+	
+	/**
+	 * Stable sort of the rows by first index, then by second index.
+	 *
+	 * @return <code>this</code>
+	 */
+	public final ConstraintTable sort() {
+		if (!this.sorted) {
+			final int[] endpoints = this.endpoints;
+			final int[] permutation = IntStream.range(0, this.size).boxed()
+					.sorted(Comparator.comparingInt((Integer row) -> endpoints[2 * row + 0]).thenComparingInt(row -> endpoints[2 * row + 1]))
+					.mapToInt(Integer::intValue).toArray();
+					
+			this.endpoints = permute(this.endpoints, 2, permutation);
+			this.minimumDistances = permute(this.minimumDistances, 1, permutation);
+			this.maximumDistances = permute(this.maximumDistances, 1, permutation);
+			this.preferredDistances = permute(this.preferredDistances, 1, permutation);
+			this.parameters = permute(this.parameters, 3, permutation);
+			this.sorted = true;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * @return a deep copy of this table, masses included
+	 */
+	public final ConstraintTable copy() {
+		final ConstraintTable result = new ConstraintTable(this.size);
+		
+		result.size = this.size;
+		result.endpoints = this.endpoints.clone();
+		result.minimumDistances = this.minimumDistances.clone();
+		result.maximumDistances = this.maximumDistances.clone();
+		result.preferredDistances = this.preferredDistances.clone();
+		result.parameters = this.parameters.clone();
+		result.inverseMasses = this.inverseMasses.clone();
+		result.pinned = this.pinned.clone();
+		result.sorted = this.sorted;
+		
+		return result;
+	}
+	
+	/**
+	 * @return the number of joints whose mass is known to this table
+	 */
+	public final int getJointCount() {
+		return this.inverseMasses.length;
+	}
+	
+	/**
+	 * @param masses
+	 * <br>One per joint; <code>Double.POSITIVE_INFINITY</code> pins a joint
+	 * @return <code>this</code>
+	 */
+	public final ConstraintTable setMasses(final double[] masses) {
+		final int n = masses.length;
+		
+		this.inverseMasses = new double[n];
+		this.pinned = new boolean[n];
+		
+		for (int i = 0; i < n; ++i) {
+			this.setMass(i, masses[i]);
+		}
+		
+		return this;
+	}
+	
+	public final ConstraintTable setMass(final int joint, final double mass) {
+		this.pinned[joint] = Double.isInfinite(mass);
+		this.inverseMasses[joint] = this.pinned[joint] ? 0.0 : 1.0 / mass;
+		
+		return this;
+	}
+	
+	public final boolean isPinned(final int joint) {
+		return this.pinned[joint];
+	}
+	
+	public final double getInverseMass(final int joint) {
+		return this.inverseMasses[joint];
+	}
+	
+	/**
+	 * Applies each row in order (Gauss-Seidel), using the masses set with {@link #setMasses(double[])}.
+	 *
+	 * @param locations
+	 * <br>Packed (x, y, z per joint)
+	 * @return the maximum error, weighted by strength
+	 */
+	public final double apply(final double[] locations) {
+		final int n = this.size;
+		final int[] endpoints = this.endpoints;
+		final double[] parameters = this.parameters;
+		final double[] inverseMasses = this.inverseMasses;
+		double result = 0.0;
+		
+		for (int row = 0, e = 0, p = 0; row < n; ++row, e += 2, p += 3) {
+			final int i1 = endpoints[e + 0];
+			final int i2 = endpoints[e + 1];
+			final int offset1 = 3 * i1;
+			final int offset2 = 3 * i2;
+			final double dx = locations[offset2 + 0] - locations[offset1 + 0];
+			final double dy = locations[offset2 + 1] - locations[offset1 + 1];
+			final double dz = locations[offset2 + 2] - locations[offset1 + 2];
+			final double currentDistance = sqrt(dx * dx + dy * dy + dz * dz);
+			final double lowerBound = parameters[p + 0];
+			final double upperBound = parameters[p + 1];
+			final double strength = parameters[p + 2];
+			// Ternaries instead of Math.min/max, which also handle NaN and -0.0
+			final double clampedDistance = currentDistance < lowerBound ? lowerBound : upperBound < currentDistance ? upperBound : currentDistance;
+			final double error = clampedDistance - currentDistance;
+			final double weightedError = abs(error) * strength;
+			final double w1 = inverseMasses[i1];
+			final double w2 = inverseMasses[i2];
+			final double w = w1 + w2;
+			
+			if (result < weightedError) {
+				result = weightedError;
+			}
+			
+			if (error == 0.0 || w == 0.0) {
+				continue;
+			}
+			
+			final double targetDistance = currentDistance + strength * error;
+			
+			if (currentDistance != 0.0) {
+				final double k = (1.0 - targetDistance / currentDistance) / w;
+				final double k1 = k * w1;
+				final double k2 = k * w2;
+				
+				locations[offset1 + 0] += k1 * dx;
+				locations[offset1 + 1] += k1 * dy;
+				locations[offset1 + 2] += k1 * dz;
+				locations[offset2 + 0] -= k2 * dx;
+				locations[offset2 + 1] -= k2 * dy;
+				locations[offset2 + 2] -= k2 * dz;
+			} else {
+				// Same arbitrary direction as Constraint.updateLocations
+				final double randomAngle = i1 + i2;
+				final double tx = cos(randomAngle) * targetDistance / w;
+				final double ty = sin(randomAngle) * targetDistance / w;
+				
+				locations[offset1 + 0] -= tx * w1;
+				locations[offset1 + 1] -= ty * w1;
+				locations[offset2 + 0] += tx * w2;
+				locations[offset2 + 1] += ty * w2;
+			}
+		}
+		
+		return result;
+	}
+	
+	private final void updateBounds(final int row) {
+		final double preferredDistance = this.preferredDistances[row];
+		final boolean preferred = !Double.isNaN(preferredDistance);
+		
+		this.parameters[3 * row + 0] = preferred ? preferredDistance : this.minimumDistances[row];
+		this.parameters[3 * row + 1] = preferred ? preferredDistance : this.maximumDistances[row];
+	}
+	
+	private final void resize(final int capacity) {
+		this.endpoints = Arrays.copyOf(this.endpoints, 2 * capacity);
+		this.minimumDistances = Arrays.copyOf(this.minimumDistances, capacity);
+		this.maximumDistances = Arrays.copyOf(this.maximumDistances, capacity);
+		this.preferredDistances = Arrays.copyOf(this.preferredDistances, capacity);
+		this.parameters = Arrays.copyOf(this.parameters, 3 * capacity);
+	}
+	
+	/**
+	 * {@value}.
+	 */
+	private static final long serialVersionUID = -6063979409745093290L;
+	
+	/**
+	 * @param constraints
+	 * @return a new unsorted table with one row per constraint, in iteration order, and no masses
+	 */
+	public static final ConstraintTable of(final Iterable<Constraint> constraints) {
+		final ConstraintTable result = new ConstraintTable();
+		
+		constraints.forEach(result::add);
+		
+		return result;
+	}
+	
+	static final int compare(final int[] endpoints, final int row1, final int row2) {
+		final int protoresult = Integer.compare(endpoints[2 * row1 + 0], endpoints[2 * row2 + 0]);
+		
+		return protoresult != 0 ? protoresult : Integer.compare(endpoints[2 * row1 + 1], endpoints[2 * row2 + 1]);
+	}
+	
+	/**
+	 * @param values
+	 * @param stride
+	 * <br>Number of values per row
+	 * @param permutation
+	 * @return a copy of <code>values</code> whose row <code>i</code> is row <code>permutation[i]</code> of <code>values</code>
+	 */
+	static final int[] permute(final int[] values, final int stride, final int[] permutation) {
+		final int[] result = values.clone();
+		
+		for (int i = 0; i < permutation.length; ++i) {
+			System.arraycopy(values, stride * permutation[i], result, stride * i, stride);
+		}
+		
+		return result;
+	}
+	
+	static final double[] permute(final double[] values, final int stride, final int[] permutation) {
+		final double[] result = values.clone();
+		
+		for (int i = 0; i < permutation.length; ++i) {
+			System.arraycopy(values, stride * permutation[i], result, stride * i, stride);
+		}
+		
+		return result;
+	}
+	
+}
@@ -73,6 +73,8 @@ public final class Demo {
 		final OrbiterMouseHandler orbiter = new OrbiterMouseHandler(null)
 			.setCenterX(canvas.getWidth() / 2.0)
 			.setCenterY(canvas.getHeight() / 2.0);
+		final StickMan stickMan = new StickMan(vertices, masses).translate(orbiter.getCenterX(), orbiter.getCenterY(), orbiter.getCenterZ());
+		
 		new MouseHandler(orbiter.getUpdateNeeded()) {
 			
 			private double massUnderMouse;
@@ -88,12 +90,12 @@ public final class Demo {
 				
 				if (newIdUnderMouse != oldIdUnderMouse) {
 					if (0 <= oldIdUnderMouse) {
-						masses.set(oldIdUnderMouse, this.massUnderMouse);
+						stickMan.setMass(oldIdUnderMouse, this.massUnderMouse);
 					}
 					
 					if (0 <= newIdUnderMouse) {
 						this.massUnderMouse = masses.get(newIdUnderMouse);
-						masses.set(newIdUnderMouse, Double.POSITIVE_INFINITY);
+						stickMan.setMass(newIdUnderMouse, Double.POSITIVE_INFINITY);
 					}
 					
 					this.getUpdateNeeded().set(true);
@@ -129,7 +131,6 @@ public final class Demo {
 			private static final long serialVersionUID = 1415975957612152368L;
 			
 		}.addTo(view);
-		final StickMan stickMan = new StickMan(vertices, masses).translate(orbiter.getCenterX(), orbiter.getCenterY(), orbiter.getCenterZ());
 		
 		orbiter.addTo(view);
 		
@@ -282,6 +283,8 @@ public final class Demo {
 		
 		private final int[] muscles;
 		
+		private final ConstraintTable constraintTable;
+		
 		public StickMan(final DoubleList vertices, final DoubleList masses) {
 			this.constraints = new ArrayList<Constraint>();
 			this.muscleConstraints = new ArrayList<Constraint>();
@@ -403,6 +406,8 @@ public final class Demo {
 				this.addMuscleConstraint(12, 13, 14);
 				this.addMuscleConstraint(13, 14, 7);
 			}
+			
+			this.constraintTable = ConstraintTable.of(this.constraints).sort().setMasses(this.masses.toArray());
 		}
 		
 		private final Constraint addMuscleConstraint(final int... path) {
@@ -425,6 +430,64 @@ public final class Demo {
 			return result;
 		}
 		
+		public final Collection<Constraint> getConstraints() {
+			return this.constraints;
+		}
+		
+		/**
+		 * @return the muscles, also in {@link #getConstraints()}
+		 */
+		public final List<Constraint> getMuscleConstraints() {
+			return this.muscleConstraints;
+		}
+		
+		public final DoubleList getVertices() {
+			return this.vertices;
+		}
+		
+		public final DoubleList getMasses() {
+			return this.masses;
+		}
+		
+		/**
+		 * @return the offset of the first coordinate of this stick man in {@link #getVertices()}
+		 */
+		public final int getOffset() {
+			return this.offset;
+		}
+		
+		/**
+		 * @return the offset following the last coordinate of this stick man in {@link #getVertices()}
+		 */
+		public final int getNextOffset() {
+			return this.nextOffset;
+		}
+		
+		/**
+		 * @return the packed form of {@link #getConstraints()} used by {@link #update()}
+		 */
+		public final ConstraintTable getConstraintTable() {
+			return this.constraintTable;
+		}
+		
+		/**
+		 * Sets the mass of joint <code>index</code> in the shared mass list and in {@link #getConstraintTable()}.
+		 * 
+		 * @param index
+		 * @param mass
+		 * <br><code>Double.POSITIVE_INFINITY</code> pins the joint
+		 * @return <code>this</code>
+		 */
+		public final StickMan setMass(final int index, final double mass) {
+			this.masses.set(index, mass);
+			
+			if (index < this.constraintTable.getJointCount()) {
+				this.constraintTable.setMass(index, mass);
+			}
+			
+			return this;
+		}
+		
 		public final StickMan translate(final double tx, final double ty, final double tz) {
 			final double[] locations = this.vertices.toArray();
 			
@@ -452,11 +515,12 @@ public final class Demo {
 				final Constraint activeMuscleConstraint = this.muscleConstraints.get(this.activeMuscleIndex);
 				
 				activeMuscleConstraint.setClampedPreferredDistance(activeMuscleConstraint.getPreferredDistance() + this.activeMuscleDelta);
+				this.constraintTable.update(activeMuscleConstraint);
 				
 				debugPrint(this.activeMuscleIndex, this.activeMuscleDelta, oldObjective, this.objective);
 			}
 			
-			return Constraint.applyExplicit(this.constraints, vertices, this.masses.toArray());
+			return this.constraintTable.apply(vertices);
 		}
 		
 		public final StickMan draw(final double[] locations, final Canvas canvas, final Canvas ids, final AtomicInteger idUnderMouse, final OrbiterMouseHandler orbiter) {
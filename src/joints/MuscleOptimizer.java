@@ -0,0 +1,622 @@
+package joints;
+
+import static java.lang.Math.exp;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+import static multij.tools.Tools.unchecked;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import joints.Demo.StickMan;
+
+import multij.primitivelists.DoubleList;
+import multij.tools.CommandLineArgumentsParser;
+
+/**
+ * Searches muscle activation schedules for a {@link StickMan} with a (&mu; + &lambda;) evolution strategy,
+ * evaluating each generation in parallel without a user interface.
+ * <br>A schedule is {@link #getKeyframeCount()} keyframes of activations (one per muscle, in <code>[0 .. 1]</code>),
+ * repeated every {@link #getPeriod()} frames and linearly interpolated in between;
+ * an activation sets the preferred distance of its muscle between the muscle's minimum (<code>0</code>) and maximum (<code>1</code>).
+ * <br>Each evaluation runs on its own copy of a packed {@link Body}, with the same frame loop as {@link Demo#main(String[])}:
+ * gravity, then constraint passes until the error is small enough.
+ * <br>Mutation steps are self-adapted: each individual carries its own step size, mutated log-normally before its genes.
+ *
+ * @author codistmonk (creation 2015-08-17)
+ */
+public final class MuscleOptimizer implements Serializable {
+	
+	private final Body body;
+	
+	private final Objective objective;
+	
+	private int frameCount;
+	
+	private int keyframeCount;
+	
+	private int period;
+	
+	private int populationSize;
+	
+	private int parentCount;
+	
+	private int parallelism;
+	
+	private long seed;
+	
+	private transient ForkJoinPool pool;
+	
+	private Individual[] parents;
+	
+	private int generation;
+	
+	private long evaluationCount;
+	
+	private long evaluationNanoseconds;
+	
+	public MuscleOptimizer(final Body body, final Objective objective) {
+		this.body = body;
+		this.objective = objective;
+		this.frameCount = 100;
+		this.keyframeCount = 4;
+		this.period = 20;
+		this.populationSize = 64;
+		this.parentCount = 16;
+		this.parallelism = Runtime.getRuntime().availableProcessors();
+		this.seed = 42L;
+	}
+	
+	public final Body getBody() {
+		return this.body;
+	}
+	
+	public final Objective getObjective() {
+		return this.objective;
+	}
+	
+	public final int getFrameCount() {
+		return this.frameCount;
+	}
+	
+	/**
+	 * @param frameCount
+	 * <br>Number of simulated frames per evaluation
+	 * @return <code>this</code>
+	 */
+	public final MuscleOptimizer setFrameCount(final int frameCount) {
+		this.frameCount = frameCount;
+		
+		return this;
+	}
+	
+	public final int getKeyframeCount() {
+		return this.keyframeCount;
+	}
+	
+	public final MuscleOptimizer setKeyframeCount(final int keyframeCount) {
+		this.keyframeCount = keyframeCount;
+		this.parents = null;
+		
+		return this;
+	}
+	
+	public final int getPeriod() {
+		return this.period;
+	}
+	
+	/**
+	 * @param period
+	 * <br>Number of frames after which a schedule repeats
+	 * @return <code>this</code>
+	 */
+	public final MuscleOptimizer setPeriod(final int period) {
+		this.period = period;
+		
+		return this;
+	}
+	
+	public final int getPopulationSize() {
+		return this.populationSize;
+	}
+	
+	/**
+	 * @param populationSize
+	 * <br>Number of children (&lambda;) evaluated per generation
+	 * @return <code>this</code>
+	 */
+	public final MuscleOptimizer setPopulationSize(final int populationSize) {
+		this.populationSize = populationSize;
+		
+		return this;
+	}
+	
+	public final int getParentCount() {
+		return this.parentCount;
+	}
+	
+	/**
+	 * @param parentCount
+	 * <br>Number of individuals (&mu;) kept from one generation to the next
+	 * @return <code>this</code>
+	 */
+	public final MuscleOptimizer setParentCount(final int parentCount) {
+		this.parentCount = parentCount;
+		this.parents = null;
+		
+		return this;
+	}
+	
+	public final int getParallelism() {
+		return this.parallelism;
+	}
+	
+	public final synchronized MuscleOptimizer setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+		
+		this.parallelism = parallelism;
+		
+		return this;
+	}
+	
+	public final MuscleOptimizer setSeed(final long seed) {
+		this.seed = seed;
+		this.parents = null;
+		
+		return this;
+	}
+	
+	public final int getGeneration() {
+		return this.generation;
+	}
+	
+	public final long getEvaluationCount() {
+		return this.evaluationCount;
+	}
+	
+	/**
+	 * @return evaluations per second of wall-clock time spent in {@link #step()}
+	 */
+	public final double getEvaluationsPerSecond() {
+		return this.evaluationNanoseconds == 0L ? 0.0 : this.evaluationCount * 1E9 / this.evaluationNanoseconds;
+	}
+	
+	/**
+	 * @return the best individual so far, or <code>null</code> before the first generation
+	 */
+	public final Individual getBest() {
+		return this.parents == null ? null : this.parents[0];
+	}
+	
+	/**
+	 * Evaluates one generation of children, and keeps the best among them and their parents.
+	 *
+	 * @return the best individual so far
+	 */
+	public final Individual step() {
+		final long start = System.nanoTime();
+		final int geneCount = this.getKeyframeCount() * this.getBody().getMuscleCount();
+		final Individual[] children = new Individual[this.getPopulationSize()];
+		
+		for (int i = 0; i < children.length; ++i) {
+			final Random random = new Random(this.seed + (long) this.generation * children.length + i);
+			
+			if (this.parents == null) {
+				children[i] = Individual.random(geneCount, random);
+			} else {
+				children[i] = this.parents[random.nextInt(this.parents.length)].mutate(random);
+			}
+		}
+		
+		try {
+			this.getPool().submit(() -> Arrays.stream(children).parallel().forEach(this::evaluate)).get();
+		} catch (final InterruptedException | ExecutionException exception) {
+			throw unchecked(exception);
+		}
+		
+		final Individual[] candidates = this.parents == null ? children : concatenate(this.parents, children);
+		
+		Arrays.sort(candidates, Comparator.comparingDouble(Individual::getFitness).reversed());
+		
+		this.parents = Arrays.copyOf(candidates, min(this.getParentCount(), candidates.length));
+		++this.generation;
+		this.evaluationCount += children.length;
+		this.evaluationNanoseconds += System.nanoTime() - start;
+		
+		return this.getBest();
+	}
+	
+	/**
+	 * Simulates the schedule of <code>individual</code> on a copy of {@link #getBody()} and sets its fitness
+	 * (the mean of {@link #getObjective()} over the frames).
+	 *
+	 * @param individual
+	 * @return <code>individual</code>
+	 */
+	public final Individual evaluate(final Individual individual) {
+		final Body body = this.getBody().copy();
+		final double[] initialLocations = this.getBody().getLocations();
+		final double[] activations = new double[body.getMuscleCount()];
+		final int n = this.getFrameCount();
+		double score = 0.0;
+		
+		for (int frame = 0; frame < n; ++frame) {
+			individual.getActivations(frame, this.getPeriod(), activations);
+			body.activate(activations).step();
+			score += this.getObjective().evaluate(initialLocations, body.getLocations(), frame);
+		}
+		
+		individual.fitness = score / max(1, n);
+		
+		return individual;
+	}
+	
+	private final synchronized ForkJoinPool getPool() {
+		if (this.pool == null) {
+			this.pool = new ForkJoinPool(this.getParallelism());
+		}
+		
+		return this.pool;
+	}
+	
+	private static final long serialVersionUID = 2446815858707217512L;
+	
+	/**
+	 * @param commandLineArguments
+	 * <br>[objective head|travelX|travelY] (default: head, like the disabled loop in {@link StickMan#update()})
+	 * <br>[generations 50]
+	 * <br>[population 64]
+	 * <br>[parents 16]
+	 * <br>[frames 100]
+	 * <br>[keyframes 4]
+	 * <br>[period 20]
+	 * <br>[parallelism availableProcessors]
+	 * <br>[seed 42]
+	 */
+	public static final void main(final String[] commandLineArguments) {
+		final CommandLineArgumentsParser arguments = new CommandLineArgumentsParser(commandLineArguments);
+		final String objectiveName = arguments.get("objective", "head");
+		final int generations = arguments.get("generations", 50)[0];
+		final Objective objective;
+		
+		if ("travelX".equals(objectiveName)) {
+			objective = Objective.travel(Constraint.X);
+		} else if ("travelY".equals(objectiveName)) {
+			objective = Objective.travel(Constraint.Y);
+		} else if ("head".equals(objectiveName)) {
+			objective = Objective.height(HEAD);
+		} else {
+			throw new IllegalArgumentException("Unknown objective: " + objectiveName);
+		}
+		
+		final MuscleOptimizer optimizer = new MuscleOptimizer(Body.of(new StickMan(new DoubleList(), new DoubleList())), objective)
+				.setPopulationSize(arguments.get("population", 64)[0])
+				.setParentCount(arguments.get("parents", 16)[0])
+				.setFrameCount(arguments.get("frames", 100)[0])
+				.setKeyframeCount(arguments.get("keyframes", 4)[0])
+				.setPeriod(arguments.get("period", 20)[0])
+				.setParallelism(arguments.get("parallelism", Runtime.getRuntime().availableProcessors())[0])
+				.setSeed(arguments.get("seed", 42)[0]);
+				
+		for (int i = 0; i < generations; ++i) {
+			final Individual best = optimizer.step();
+			
+			System.out.println("generation: " + optimizer.getGeneration() + " best: " + best.getFitness()
+					+ " sigma: " + best.getSigma() + " evaluations/s: " + Math.round(optimizer.getEvaluationsPerSecond()));
+		}
+		
+		System.out.println("best: " + Arrays.toString(optimizer.getBest().getGenes()));
+	}
+	
+	/**
+	 * Index of the head joint in a {@link StickMan}.
+	 */
+	public static final int HEAD = 8;
+	
+	/**
+	 * Vertical displacement applied to free joints each frame, as in {@link Demo#main(String[])}.
+	 */
+	public static final double GRAVITY = 10.0;
+	
+	/**
+	 * Constraint passes stop when the error falls below this value, as in {@link Demo#main(String[])}.
+	 */
+	public static final double TOLERANCE = 10.0;
+	
+	/**
+	 * Upper bound on the constraint passes per frame (the demo has none).
+	 */
+	public static final int MAXIMUM_PASSES = 64;
+	
+	static final Individual[] concatenate(final Individual[] array1, final Individual[] array2) {
+		final Individual[] result = Arrays.copyOf(array1, array1.length + array2.length);
+		
+		System.arraycopy(array2, 0, result, array1.length, array2.length);
+		
+		return result;
+	}
+	
+	/**
+	 * Scores the locations of a body after each frame; higher is better.
+	 *
+	 * @author codistmonk (creation 2015-08-17)
+	 */
+	public static abstract interface Objective extends Serializable {
+		
+		/**
+		 * @param initialLocations
+		 * <br>Packed (x, y, z per joint), before the first frame
+		 * @param locations
+		 * <br>Packed (x, y, z per joint), after <code>frame</code>
+		 * @param frame
+		 * @return the score of <code>frame</code>
+		 */
+		public abstract double evaluate(double[] initialLocations, double[] locations, int frame);
+		
+		/**
+		 * @param joint
+		 * @return an objective rewarding the height (z) of <code>joint</code>
+		 */
+		public static Objective height(final int joint) {
+			return (initialLocations, locations, frame) -> locations[3 * joint + Constraint.Z];
+		}
+		
+		/**
+		 * @param axis
+		 * <br>{@link Constraint#X}, {@link Constraint#Y} or {@link Constraint#Z}
+		 * @return an objective rewarding the displacement of the centroid along <code>axis</code>
+		 */
+		public static Objective travel(final int axis) {
+			return (initialLocations, locations, frame) -> centroid(locations, axis) - centroid(initialLocations, axis);
+		}
+		
+		public static double centroid(final double[] locations, final int axis) {
+			final int n = locations.length / 3;
+			double result = 0.0;
+			
+			for (int i = axis; i < locations.length; i += 3) {
+				result += locations[i];
+			}
+			
+			return result / max(1, n);
+		}
+		
+	}
+	
+	/**
+	 * Packed, independent state of a stick man: joint locations and constraints re-indexed from <code>0</code>.
+	 *
+	 * @author codistmonk (creation 2015-08-17)
+	 */
+	public static final class Body implements Serializable {
+		
+		private final double[] locations;
+		
+		private final ConstraintTable constraints;
+		
+		private final int[] muscleRows;
+		
+		private final double[] muscleMinima;
+		
+		private final double[] muscleMaxima;
+		
+		private Body(final double[] locations, final ConstraintTable constraints, final int[] muscleRows,
+				final double[] muscleMinima, final double[] muscleMaxima) {
+			this.locations = locations;
+			this.constraints = constraints;
+			this.muscleRows = muscleRows;
+			this.muscleMinima = muscleMinima;
+			this.muscleMaxima = muscleMaxima;
+		}
+		
+		public final double[] getLocations() {
+			return this.locations;
+		}
+		
+		public final ConstraintTable getConstraints() {
+			return this.constraints;
+		}
+		
+		public final int getMuscleCount() {
+			return this.muscleRows.length;
+		}
+		
+		public final Body copy() {
+			return new Body(this.locations.clone(), this.constraints.copy(), this.muscleRows, this.muscleMinima, this.muscleMaxima);
+		}
+		
+		/**
+		 * @param activations
+		 * <br>One per muscle, clamped to <code>[0 .. 1]</code>
+		 * @return <code>this</code>
+		 */
+		public final Body activate(final double[] activations) {
+			final int n = this.getMuscleCount();
+			
+			for (int i = 0; i < n; ++i) {
+				final double activation = max(0.0, min(activations[i], 1.0));
+				
+				this.constraints.setPreferredDistance(this.muscleRows[i],
+						Constraint.lerp(this.muscleMinima[i], this.muscleMaxima[i], activation));
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Applies gravity to the free joints (down to <code>z = 0</code>), then constraint passes
+		 * until the error is at most {@link #TOLERANCE} or {@link #MAXIMUM_PASSES} is reached.
+		 *
+		 * @return <code>this</code>
+		 */
+		public final Body step() {
+			final double[] locations = this.getLocations();
+			final ConstraintTable constraints = this.getConstraints();
+			final int n = locations.length / 3;
+			
+			for (int i = 0; i < n; ++i) {
+				if (!constraints.isPinned(i)) {
+					locations[3 * i + Constraint.Z] = max(0.0, locations[3 * i + Constraint.Z] - GRAVITY);
+				}
+			}
+			
+			for (int i = 0; i < MAXIMUM_PASSES && TOLERANCE < constraints.apply(locations); ++i) {
+				// NOP
+			}
+			
+			return this;
+		}
+		
+		private static final long serialVersionUID = -5383813839282314960L;
+		
+		/**
+		 * @param stickMan
+		 * @return a body with the current joint locations, masses and constraints of <code>stickMan</code>
+		 */
+		public static final Body of(final StickMan stickMan) {
+			final int j0 = stickMan.getOffset() / 3;
+			final int n = (stickMan.getNextOffset() - stickMan.getOffset()) / 3;
+			final double[] locations = Arrays.copyOfRange(stickMan.getVertices().toArray(), stickMan.getOffset(), stickMan.getNextOffset());
+			final double[] masses = Arrays.copyOfRange(stickMan.getMasses().toArray(), j0, j0 + n);
+			final ConstraintTable constraints = new ConstraintTable(stickMan.getConstraints().size());
+			
+			for (final Constraint constraint : stickMan.getConstraints()) {
+				constraints.add(localCopy(constraint, j0));
+			}
+			
+			constraints.sort().setMasses(masses);
+			
+			final List<Constraint> muscles = stickMan.getMuscleConstraints();
+			final int m = muscles.size();
+			final int[] muscleRows = new int[m];
+			final double[] muscleMinima = new double[m];
+			final double[] muscleMaxima = new double[m];
+			
+			for (int i = 0; i < m; ++i) {
+				final Constraint muscle = muscles.get(i);
+				
+				muscleRows[i] = constraints.indexOf(muscle.getIndex1() - j0, muscle.getIndex2() - j0);
+				muscleMinima[i] = muscle.getMinimumDistance();
+				muscleMaxima[i] = muscle.getMaximumDistance();
+			}
+			
+			return new Body(locations, constraints, muscleRows, muscleMinima, muscleMaxima);
+		}
+		
+		static final Constraint localCopy(final Constraint constraint, final int firstIndex) {
+			return new Constraint(constraint.getIndex1() - firstIndex, constraint.getIndex2() - firstIndex)
+					.setMinimumDistance(constraint.getMinimumDistance())
+					.setMaximumDistance(constraint.getMaximumDistance())
+					.setPreferredDistance(constraint.getPreferredDistance())
+					.setStrength(constraint.getStrength());
+		}
+		
+	}
+	
+	/**
+	 * Activation schedule with its mutation step size and fitness.
+	 *
+	 * @author codistmonk (creation 2015-08-17)
+	 */
+	public static final class Individual implements Serializable {
+		
+		private final double[] genes;
+		
+		private final double sigma;
+		
+		double fitness;
+		
+		public Individual(final double[] genes, final double sigma) {
+			this.genes = genes;
+			this.sigma = sigma;
+			this.fitness = Double.NaN;
+		}
+		
+		/**
+		 * @return the activations of each keyframe, one per muscle, keyframe after keyframe
+		 */
+		public final double[] getGenes() {
+			return this.genes;
+		}
+		
+		public final double getSigma() {
+			return this.sigma;
+		}
+		
+		/**
+		 * @return the fitness, or <code>NaN</code> if not evaluated yet
+		 */
+		public final double getFitness() {
+			return this.fitness;
+		}
+		
+		/**
+		 * @param frame
+		 * @param period
+		 * @param result
+		 * <br>One per muscle
+		 * @return <code>result</code>, interpolated between the keyframes surrounding <code>frame</code>
+		 */
+		public final double[] getActivations(final int frame, final int period, final double[] result) {
+			final int m = result.length;
+			final int keyframeCount = this.genes.length / m;
+			final double t = (double) (frame % period) * keyframeCount / period;
+			final int k1 = (int) t;
+			final int k2 = (k1 + 1) % keyframeCount;
+			final double alpha = t - k1;
+			
+			for (int i = 0; i < m; ++i) {
+				result[i] = Constraint.lerp(this.genes[k1 * m + i], this.genes[k2 * m + i], alpha);
+			}
+			
+			return result;
+		}
+		
+		/**
+		 * @param random
+		 * @return a child whose step size is this step size times a log-normal factor,
+		 * and whose genes are these genes plus gaussian noise of that step size (clamped to <code>[0 .. 1]</code>)
+		 */
+		public final Individual mutate(final Random random) {
+			final int n = this.genes.length;
+			final double sigma = this.sigma * exp(random.nextGaussian() / sqrt(n));
+			final double[] genes = new double[n];
+			
+			for (int i = 0; i < n; ++i) {
+				genes[i] = max(0.0, min(this.genes[i] + sigma * random.nextGaussian(), 1.0));
+			}
+			
+			return new Individual(genes, sigma);
+		}
+		
+		private static final long serialVersionUID = -4113575325549497335L;
+		
+		public static final double INITIAL_SIGMA = 0.2;
+		
+		public static final Individual random(final int geneCount, final Random random) {
+			final double[] genes = new double[geneCount];
+			
+			for (int i = 0; i < geneCount; ++i) {
+				genes[i] = random.nextDouble();
+			}
+			
+			return new Individual(genes, INITIAL_SIGMA);
+		}
+		
+	}
+	
+}
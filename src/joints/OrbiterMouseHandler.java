@@ -2,6 +2,7 @@ package joints;
 
 import static java.lang.Math.PI;
 import static java.lang.Math.cos;
+import static java.lang.Math.min;
 import static java.lang.Math.pow;
 import static java.lang.Math.signum;
 import static java.lang.Math.sin;
@@ -10,10 +11,14 @@ import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 import multij.swing.MouseHandler;
 
 /**
+ * Rotates locations around a center by a roll (around z) followed by a pitch (around x), after scaling.
+ * <br>The corresponding 3x3 matrix and its inverse are cached and only recomputed when the angles or the scale change.
+ * 
  * @author codistmonk (creation 2014-03-13)
  */
 public final class OrbiterMouseHandler extends MouseHandler {
@@ -32,10 +37,21 @@ public final class OrbiterMouseHandler extends MouseHandler {
 	
 	private double scale;
 	
+	private final double[] matrix;
+	
+	private final double[] inverseMatrix;
+	
+	private int parallelThreshold;
+	
 	public OrbiterMouseHandler(final AtomicBoolean sharedUpdateFlag) {
 		super(sharedUpdateFlag);
 		this.mouse = new Point();
 		this.scale = 1.0;
+		this.matrix = new double[9];
+		this.inverseMatrix = new double[9];
+		this.parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+		
+		this.updateMatrices();
 	}
 	
 	public final double getCenterX() {
@@ -75,6 +91,8 @@ public final class OrbiterMouseHandler extends MouseHandler {
 	public final OrbiterMouseHandler setRoll(final double roll) {
 		this.roll = roll;
 		
+		this.updateMatrices();
+		
 		return this;
 	}
 	
@@ -84,6 +102,8 @@ public final class OrbiterMouseHandler extends MouseHandler {
 	
 	public final void setPitch(final double pitch) {
 		this.pitch = pitch;
+		
+		this.updateMatrices();
 	}
 	
 	public final double getScale() {
@@ -93,6 +113,38 @@ public final class OrbiterMouseHandler extends MouseHandler {
 	public final OrbiterMouseHandler setScale(final double scale) {
 		this.scale = scale;
 		
+		this.updateMatrices();
+		
+		return this;
+	}
+	
+	/**
+	 * @return the row-major 3x3 matrix applied by {@link #transform(double[])}; do not modify
+	 */
+	public final double[] getMatrix() {
+		return this.matrix;
+	}
+	
+	/**
+	 * @return the row-major 3x3 matrix applied by {@link #inverseTransform(double[])}; do not modify
+	 */
+	public final double[] getInverseMatrix() {
+		return this.inverseMatrix;
+	}
+	
+	public final int getParallelThreshold() {
+		return this.parallelThreshold;
+	}
+	
+	/**
+	 * @param parallelThreshold
+	 * <br>Number of array elements from which transforms are split over the common fork-join pool;
+	 * use {@link Integer#MAX_VALUE} to always transform sequentially
+	 * @return <code>this</code>
+	 */
+	public final OrbiterMouseHandler setParallelThreshold(final int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+		
 		return this;
 	}
 	
@@ -122,19 +174,37 @@ public final class OrbiterMouseHandler extends MouseHandler {
 	public final void updateAngles(final double kRoll, final double kPitch) {
 		this.roll += kRoll * PI / 144.0;
 		this.pitch += kPitch * PI / 144.0;
+		this.updateMatrices();
 		this.getUpdateNeeded().set(true);
 	}
 	
 	public final void updateScale(final double kScale) {
 		this.scale *= kScale;
+		this.updateMatrices();
 		this.getUpdateNeeded().set(true);
 	}
 	
 	public final void transform(final double[] locations) {
 		this.transform(locations, this.getCenterX(), this.getCenterY(), this.getCenterZ());
 	}
+	
 	public final void transform(final double[] locations, final double centerX, final double centerY, final double centerZ) {
-		transform(locations, this.getRoll(), this.getPitch(), this.getScale(), centerX, centerY, centerZ);
+		this.transform(locations, 0, locations.length, centerX, centerY, centerZ);
+	}
+	
+	/**
+	 * @param locations
+	 * @param offset
+	 * @param length
+	 * <br>Number of array elements to transform (3 per location)
+	 */
+	public final void transform(final double[] locations, final int offset, final int length) {
+		this.transform(locations, offset, length, this.getCenterX(), this.getCenterY(), this.getCenterZ());
+	}
+	
+	public final void transform(final double[] locations, final int offset, final int length,
+			final double centerX, final double centerY, final double centerZ) {
+		apply(this.getMatrix(), locations, offset, length, centerX, centerY, centerZ, this.getParallelThreshold());
 	}
 	
 	public final void inverseTransform(final double[] locations) {
@@ -142,7 +212,21 @@ public final class OrbiterMouseHandler extends MouseHandler {
 	}
 	
 	public final void inverseTransform(final double[] locations, final double centerX, final double centerY, final double centerZ) {
-		inverseTransform(locations, this.getRoll(), this.getPitch(), this.getScale(), centerX, centerY, centerZ);
+		this.inverseTransform(locations, 0, locations.length, centerX, centerY, centerZ);
+	}
+	
+	public final void inverseTransform(final double[] locations, final int offset, final int length) {
+		this.inverseTransform(locations, offset, length, this.getCenterX(), this.getCenterY(), this.getCenterZ());
+	}
+	
+	public final void inverseTransform(final double[] locations, final int offset, final int length,
+			final double centerX, final double centerY, final double centerZ) {
+		apply(this.getInverseMatrix(), locations, offset, length, centerX, centerY, centerZ, this.getParallelThreshold());
+	}
+	
+	private final void updateMatrices() {
+		setMatrix(this.getRoll(), this.getPitch(), this.getScale(), this.matrix);
+		setInverseMatrix(this.getRoll(), this.getPitch(), this.getScale(), this.inverseMatrix);
 	}
 	
 	/**
@@ -150,41 +234,124 @@ public final class OrbiterMouseHandler extends MouseHandler {
 	 */
 	private static final long serialVersionUID = -5856300863217835793L;
 	
+	/**
+	 * {@value}.
+	 */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 3 << 16;
+	
 	public static final void transform(final double[] locations, final double roll, final double pitch, final double scale,
 			final double centerX, final double centerY, final double centerZ) {
-		final int n = locations.length;
-		
-		for (int i = 0; i < n; i += 3) {
-			final double x1 = scale * (locations[i + 0] - centerX);
-			final double y1 = scale * (locations[i + 1] - centerY);
-			final double z1 = scale * (locations[i + 2] - centerZ);
-			final double x2 = x1 * cos(roll) - y1 * sin(roll);
-			final double y2 = x1 * sin(roll) + y1 * cos(roll);
-			final double z2 = z1;
-			locations[i + 0] = centerX + x2;
-			locations[i + 1] = centerY + y2 * cos(pitch) - z2 * sin(pitch);
-			locations[i + 2] = centerZ + y2 * sin(pitch) + z2 * cos(pitch);
-		}
+		apply(setMatrix(roll, pitch, scale, new double[9]), locations, 0, locations.length, centerX, centerY, centerZ, Integer.MAX_VALUE);
 	}
 	
 	public static final void inverseTransform(final double[] locations, final double roll, final double pitch, final double scale,
 			final double centerX, final double centerY, final double centerZ) {
-		final int n = locations.length;
-		
-		for (int i = 0; i < n; i += 3) {
-			final double x4 = locations[i + 0] - centerX;
-			final double y4 = locations[i + 1] - centerY;
-			final double z4 = locations[i + 2] - centerZ;
-			final double x5 = x4;
-			final double y5 = y4 * cos(-pitch) - z4 * sin(-pitch);
-			final double z5 = y4 * sin(-pitch) + z4 * cos(-pitch);
-			final double x6 = x5 * cos(-roll) - y5 * sin(-roll);
-			final double y6 = x5 * sin(-roll) + y5 * cos(-roll);
-			final double z6 = z5;
-			locations[i + 0] = x6 / scale + centerX;
-			locations[i + 1] = y6 / scale + centerY;
-			locations[i + 2] = z6 / scale + centerZ;
+		apply(setInverseMatrix(roll, pitch, scale, new double[9]), locations, 0, locations.length, centerX, centerY, centerZ, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @param roll
+	 * @param pitch
+	 * @param scale
+	 * @param result
+	 * <br>Row-major 3x3 matrix of the scaling, then the roll, then the pitch
+	 * @return <code>result</code>
+	 */
+	public static final double[] setMatrix(final double roll, final double pitch, final double scale, final double[] result) {
+		final double cr = cos(roll);
+		final double sr = sin(roll);
+		final double cp = cos(pitch);
+		final double sp = sin(pitch);
+		
+		result[0] = scale * cr;
+		result[1] = -scale * sr;
+		result[2] = 0.0;
+		result[3] = scale * cp * sr;
+		result[4] = scale * cp * cr;
+		result[5] = -scale * sp;
+		result[6] = scale * sp * sr;
+		result[7] = scale * sp * cr;
+		result[8] = scale * cp;
+		
+		return result;
+	}
+	
+	/**
+	 * @param roll
+	 * @param pitch
+	 * @param scale
+	 * @param result
+	 * <br>Row-major inverse of {@link #setMatrix(double, double, double, double[])}
+	 * (its transpose divided by <code>scale<sup>2</sup></code>)
+	 * @return <code>result</code>
+	 */
+	public static final double[] setInverseMatrix(final double roll, final double pitch, final double scale, final double[] result) {
+		setMatrix(roll, pitch, 1.0 / scale, result);
+		
+		swap(result, 1, 3);
+		swap(result, 2, 6);
+		swap(result, 5, 7);
+		
+		return result;
+	}
+	
+	/**
+	 * Replaces each location <code>p</code> in <code>locations[offset .. offset + length - 1]</code>
+	 * with <code>center + matrix (p - center)</code>.
+	 * 
+	 * @param matrix
+	 * @param locations
+	 * @param offset
+	 * @param length
+	 * @param centerX
+	 * @param centerY
+	 * @param centerZ
+	 * @param parallelThreshold
+	 */
+	public static final void apply(final double[] matrix, final double[] locations, final int offset, final int length,
+			final double centerX, final double centerY, final double centerZ, final int parallelThreshold) {
+		if (length < parallelThreshold) {
+			applySequentially(matrix, locations, offset, offset + length, centerX, centerY, centerZ);
+		} else {
+			final int chunkLength = 3 * PARALLEL_CHUNK_SIZE;
+			final int end = offset + length;
+			
+			IntStream.range(0, (length + chunkLength - 1) / chunkLength).parallel().forEach(chunk -> {
+				final int chunkStart = offset + chunk * chunkLength;
+				
+				applySequentially(matrix, locations, chunkStart, min(end, chunkStart + chunkLength), centerX, centerY, centerZ);
+			});
 		}
 	}
 	
+	private static final int PARALLEL_CHUNK_SIZE = 4096;
+	
+	private static final void applySequentially(final double[] matrix, final double[] locations, final int start, final int end,
+			final double centerX, final double centerY, final double centerZ) {
+		final double m00 = matrix[0];
+		final double m01 = matrix[1];
+		final double m02 = matrix[2];
+		final double m10 = matrix[3];
+		final double m11 = matrix[4];
+		final double m12 = matrix[5];
+		final double m20 = matrix[6];
+		final double m21 = matrix[7];
+		final double m22 = matrix[8];
+		
+		for (int i = start; i < end; i += 3) {
+			final double x = locations[i + 0] - centerX;
+			final double y = locations[i + 1] - centerY;
+			final double z = locations[i + 2] - centerZ;
+			locations[i + 0] = centerX + m00 * x + m01 * y + m02 * z;
+			locations[i + 1] = centerY + m10 * x + m11 * y + m12 * z;
+			locations[i + 2] = centerZ + m20 * x + m21 * y + m22 * z;
+		}
+	}
+	
+	private static final void swap(final double[] array, final int i, final int j) {
+		final double tmp = array[i];
+		array[i] = array[j];
+		array[j] = tmp;
+	}
+	
 }
@@ -0,0 +1,328 @@
+package joints2;
+
+import static multij.tools.Tools.unchecked;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ObjIntConsumer;
+
+import javax.vecmath.Point3f;
+
+import multij.tools.CommandLineArgumentsParser;
+import multij.tools.IllegalInstantiationException;
+
+/**
+ * Runs simulations without a user interface: loads a model, applies a {@link Script} of joint pins and drags,
+ * steps the solver for a number of frames and writes the joint locations after each frame.
+ * <br>Each simulation runs on one thread; several input files are simulated in parallel.
+ *
+ * @author codistmonk (creation 2015-08-13)
+ */
+public final class BatchSimulator {
+	
+	private BatchSimulator() {
+		throw new IllegalInstantiationException();
+	}
+	
+	/**
+	 * Binary output: <code>MAGIC VERSION jointCount frameCount</code> (int32),
+	 * then <code>frameCount * jointCount * 3</code> float32 (x, y, z per joint per frame), big-endian.
+	 */
+	public static final int MAGIC = 0x4A4E5446;
+	
+	public static final int VERSION = 1;
+	
+	/**
+	 * @param commandLineArguments
+	 * <br>Must contain: files (comma-separated model files, XML or {@link JointsBinary#EXTENSION})
+	 * <br>[script path] (no pins or drags if absent)
+	 * <br>[frames 100]
+	 * <br>[output directory] (next to each input file if absent)
+	 * <br>[format binary|csv]
+	 * <br>[parallelism availableProcessors]
+	 */
+	public static final void main(final String[] commandLineArguments) throws Exception {
+		final CommandLineArgumentsParser arguments = new CommandLineArgumentsParser(commandLineArguments);
+		final String[] files = arguments.get("files", "").split(",");
+		final String scriptPath = arguments.get("script", "");
+		final int frames = arguments.get("frames", 100)[0];
+		final String outputPath = arguments.get("output", "");
+		final boolean csv = "csv".equals(arguments.get("format", "binary"));
+		final int parallelism = arguments.get("parallelism", Runtime.getRuntime().availableProcessors())[0];
+		final Script script;
+		
+		if (scriptPath.isEmpty()) {
+			script = new Script();
+		} else {
+			try (final Reader input = new FileReader(scriptPath)) {
+				script = Script.parse(input);
+			}
+		}
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		
+		try {
+			final List<Future<?>> tasks = new ArrayList<>(files.length);
+			
+			for (final String path : files) {
+				if (!path.isEmpty()) {
+					final File input = new File(path);
+					final File directory = outputPath.isEmpty() ? input.getAbsoluteFile().getParentFile() : new File(outputPath);
+					final File output = new File(directory, input.getName() + (csv ? ".frames.csv" : ".frames"));
+					
+					tasks.add(executor.submit(() -> {
+						simulate(input, script, frames, output, csv);
+						
+						return null;
+					}));
+				}
+			}
+			
+			for (final Future<?> task : tasks) {
+				task.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	public static final void simulate(final File input, final Script script, final int frames, final File output, final boolean csv) throws IOException {
+		final JointsModel model = load(input, new JointsModel(input.getName()));
+		
+		try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+			simulate(model, script, frames, csv ? newCSVWriter(out) : newBinaryWriter(out, model.getJointLocations().size(), frames));
+		}
+	}
+	
+	/**
+	 * Calls <code>listener</code> after each frame, with the frame index (from <code>0</code>).
+	 * <br>Each frame applies <code>script</code>, then {@link JointsModel#applyConstraints(AtomicBoolean)}.
+	 *
+	 * @param model
+	 * @param script
+	 * @param frames
+	 * @param listener
+	 * @return <code>model</code>
+	 */
+	public static final JointsModel simulate(final JointsModel model, final Script script, final int frames,
+			final ObjIntConsumer<JointsModel> listener) {
+		final AtomicBoolean updateNeeded = new AtomicBoolean();
+		
+		for (int frame = 0; frame < frames; ++frame) {
+			script.apply(frame, model);
+			model.applyConstraints(updateNeeded);
+			listener.accept(model, frame);
+		}
+		
+		return model;
+	}
+	
+	public static final JointsModel load(final File file, final JointsModel model) throws IOException {
+		if (JointsBinary.isBinary(file)) {
+			return JointsBinary.read(file, model);
+		}
+		
+		try (final InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+			return JointsXML.read(input, model);
+		}
+	}
+	
+	/**
+	 * @param output
+	 * @return a listener writing <code>frame,joint,x,y,z</code> lines, after a header line
+	 */
+	public static final ObjIntConsumer<JointsModel> newCSVWriter(final OutputStream output) {
+		final PrintStream out = new PrintStream(output);
+		
+		out.println("frame,joint,x,y,z");
+		
+		return (model, frame) -> {
+			final List<Point3f> joints = model.getJointLocations();
+			final int n = joints.size();
+			
+			for (int i = 0; i < n; ++i) {
+				final Point3f joint = joints.get(i);
+				
+				out.print(frame);
+				out.print(',');
+				out.print(i);
+				out.print(',');
+				out.print(joint.x);
+				out.print(',');
+				out.print(joint.y);
+				out.print(',');
+				out.println(joint.z);
+			}
+		};
+	}
+	
+	/**
+	 * @param output
+	 * @param jointCount
+	 * @param frameCount
+	 * @return a listener writing the binary format described in {@link #MAGIC}, header included
+	 */
+	public static final ObjIntConsumer<JointsModel> newBinaryWriter(final OutputStream output, final int jointCount, final int frameCount) {
+		final DataOutputStream out = new DataOutputStream(output);
+		
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(jointCount);
+			out.writeInt(frameCount);
+		} catch (final IOException exception) {
+			throw unchecked(exception);
+		}
+		
+		return (model, frame) -> {
+			try {
+				for (final Point3f joint : model.getJointLocations()) {
+					out.writeFloat(joint.x);
+					out.writeFloat(joint.y);
+					out.writeFloat(joint.z);
+				}
+			} catch (final IOException exception) {
+				throw unchecked(exception);
+			}
+		};
+	}
+	
+	/**
+	 * Timeline of pins and drags, one key per line (empty lines and lines starting with <code>#</code> are ignored):
+	 * <pre>
+	 * frame pin joint [x y z]
+	 * frame unpin joint
+	 * </pre>
+	 * A pin key with a location moves the joint there; between 2 consecutive pin keys with locations,
+	 * the joint is dragged along the line between them.
+	 * A pin key without a location pins the joint where it is.
+	 * Joints are designated by their index in the model.
+	 *
+	 * @author codistmonk (creation 2015-08-13)
+	 */
+	public static final class Script implements Serializable {
+		
+		private final Map<Integer, TreeMap<Integer, float[]>> keys = new TreeMap<>();
+		
+		/**
+		 * @param frame
+		 * @param joint
+		 * @param location
+		 * <br>(x, y, z), or empty to pin in place, or <code>null</code> to unpin
+		 * @return <code>this</code>
+		 */
+		public final Script addKey(final int frame, final int joint, final float[] location) {
+			this.keys.computeIfAbsent(joint, k -> new TreeMap<>()).put(frame, location);
+			
+			return this;
+		}
+		
+		/**
+		 * Pins and moves the scripted joints of <code>model</code> as they should be at <code>frame</code>.
+		 *
+		 * @param frame
+		 * @param model
+		 * @return <code>this</code>
+		 */
+		public final Script apply(final int frame, final JointsModel model) {
+			final JointsSolver solver = model.getSolver();
+			final List<Point3f> joints = model.getJointLocations();
+			
+			for (final Map.Entry<Integer, TreeMap<Integer, float[]>> entry : this.keys.entrySet()) {
+				final Map.Entry<Integer, float[]> key = entry.getValue().floorEntry(frame);
+				
+				if (key == null) {
+					continue;
+				}
+				
+				final Point3f joint = joints.get(entry.getKey());
+				final float[] location = key.getValue();
+				
+				if (location == null) {
+					solver.unpin(joint);
+				} else {
+					solver.pin(joint);
+					
+					if (location.length == 3) {
+						final Map.Entry<Integer, float[]> next = entry.getValue().higherEntry(frame);
+						
+						if (next != null && next.getValue() != null && next.getValue().length == 3) {
+							final float t = (float) (frame - key.getKey()) / (next.getKey() - key.getKey());
+							final float[] target = next.getValue();
+							
+							joint.set(lerp(location[0], target[0], t), lerp(location[1], target[1], t), lerp(location[2], target[2], t));
+						} else {
+							joint.set(location);
+						}
+					}
+				}
+			}
+			
+			return this;
+		}
+		
+		private static final long serialVersionUID = -1270616990069856733L;
+		
+		public static final Script parse(final Reader input) throws IOException {
+			final Script result = new Script();
+			final BufferedReader reader = new BufferedReader(input);
+			int lineNumber = 0;
+			
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				final String[] tokens = line.trim().split("\\s+");
+				
+				++lineNumber;
+				
+				if (tokens[0].isEmpty() || tokens[0].startsWith("#")) {
+					continue;
+				}
+				
+				try {
+					final int frame = Integer.parseInt(tokens[0]);
+					final int joint = Integer.parseInt(tokens[2]);
+					
+					if ("pin".equals(tokens[1]) && tokens.length == 3) {
+						result.addKey(frame, joint, new float[0]);
+					} else if ("pin".equals(tokens[1]) && tokens.length == 6) {
+						result.addKey(frame, joint, new float[] {
+								Float.parseFloat(tokens[3]), Float.parseFloat(tokens[4]), Float.parseFloat(tokens[5]) });
+					} else if ("unpin".equals(tokens[1]) && tokens.length == 3) {
+						result.addKey(frame, joint, null);
+					} else {
+						throw new IllegalArgumentException();
+					}
+				} catch (final RuntimeException exception) {
+					throw new IllegalArgumentException("Invalid script line " + lineNumber + ": " + line, exception);
+				}
+			}
+			
+			return result;
+		}
+		
+		private static final float lerp(final float a, final float b, final float t) {
+			return a + (b - a) * t;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,223 @@
+package joints2;
+
+import static multij.tools.Tools.unchecked;
+
+import java.io.Serializable;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * Compiled form of a segment constraint.
+ * <br>Numeric literals and arithmetic over literals (<code>+ - * /</code>, parentheses) are folded into a constant
+ * once; anything else is handed to the script engine, compiled when the engine is {@link Compilable}.
+ *
+ * @author codistmonk (creation 2015-08-03)
+ */
+public final class ConstraintExpression implements Serializable {
+	
+	private final String source;
+	
+	private final double constant;
+	
+	private transient ScriptEngine scriptEngine;
+	
+	private transient CompiledScript script;
+	
+	private ConstraintExpression(final String source, final double constant) {
+		this.source = source;
+		this.constant = constant;
+	}
+	
+	public final String getSource() {
+		return this.source;
+	}
+	
+	public final boolean isConstant() {
+		return !Double.isNaN(this.constant);
+	}
+	
+	/**
+	 * @return the folded value, or <code>NaN</code> if this expression needs a script engine
+	 */
+	public final double getConstant() {
+		return this.constant;
+	}
+	
+	public final double evaluate(final ScriptEngine scriptEngine) {
+		if (this.isConstant()) {
+			return this.constant;
+		}
+		
+		try {
+			return ((Number) this.eval(scriptEngine)).doubleValue();
+		} catch (final ScriptException exception) {
+			throw unchecked(exception);
+		}
+	}
+	
+	private final Object eval(final ScriptEngine scriptEngine) throws ScriptException {
+		if (!(scriptEngine instanceof Compilable)) {
+			return scriptEngine.eval(this.getSource());
+		}
+		
+		if (this.scriptEngine != scriptEngine) {
+			this.script = ((Compilable) scriptEngine).compile(this.getSource());
+			this.scriptEngine = scriptEngine;
+		}
+		
+		return this.script.eval();
+	}
+	
+	private static final long serialVersionUID = 2370153489437946834L;
+	
+	public static final ConstraintExpression compile(final String source) {
+		return new ConstraintExpression(source, fold(source));
+	}
+	
+	/**
+	 * @return the value of <code>source</code> if it is an arithmetic expression over numeric literals,
+	 * <code>NaN</code> otherwise
+	 */
+	public static final double fold(final String source) {
+		if (source == null) {
+			return Double.NaN;
+		}
+		
+		final Parser parser = new Parser(source);
+		
+		try {
+			final double result = parser.parseSum();
+			
+			parser.skipSpaces();
+			
+			return parser.isDone() ? result : Double.NaN;
+		} catch (final NumberFormatException exception) {
+			return Double.NaN;
+		}
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-03)
+	 */
+	private static final class Parser {
+		
+		private final String source;
+		
+		private int position;
+		
+		Parser(final String source) {
+			this.source = source;
+		}
+		
+		final boolean isDone() {
+			return this.source.length() <= this.position;
+		}
+		
+		final void skipSpaces() {
+			while (!this.isDone() && Character.isWhitespace(this.source.charAt(this.position))) {
+				++this.position;
+			}
+		}
+		
+		final boolean accept(final char c) {
+			this.skipSpaces();
+			
+			if (!this.isDone() && this.source.charAt(this.position) == c) {
+				++this.position;
+				
+				return true;
+			}
+			
+			return false;
+		}
+		
+		final double parseSum() {
+			double result = this.parseProduct();
+			
+			while (true) {
+				if (this.accept('+')) {
+					result += this.parseProduct();
+				} else if (this.accept('-')) {
+					result -= this.parseProduct();
+				} else {
+					return result;
+				}
+			}
+		}
+		
+		final double parseProduct() {
+			double result = this.parseUnary();
+			
+			while (true) {
+				if (this.accept('*')) {
+					result *= this.parseUnary();
+				} else if (this.accept('/')) {
+					result /= this.parseUnary();
+				} else {
+					return result;
+				}
+			}
+		}
+		
+		final double parseUnary() {
+			if (this.accept('-')) {
+				return -this.parseUnary();
+			}
+			
+			if (this.accept('+')) {
+				return this.parseUnary();
+			}
+			
+			if (this.accept('(')) {
+				final double result = this.parseSum();
+				
+				if (!this.accept(')')) {
+					throw new NumberFormatException();
+				}
+				
+				return result;
+			}
+			
+			return this.parseNumber();
+		}
+		
+		final double parseNumber() {
+			this.skipSpaces();
+			
+			final int start = this.position;
+			
+			this.skipDigits();
+			
+			if (this.accept('.')) {
+				this.skipDigits();
+			}
+			
+			if (!this.isDone() && Character.toLowerCase(this.source.charAt(this.position)) == 'e') {
+				++this.position;
+				
+				if (!this.accept('+')) {
+					this.accept('-');
+				}
+				
+				this.skipDigits();
+			}
+			
+			if (start == this.position) {
+				throw new NumberFormatException();
+			}
+			
+			return Double.parseDouble(this.source.substring(start, this.position));
+		}
+		
+		private final void skipDigits() {
+			while (!this.isDone() && Character.isDigit(this.source.charAt(this.position))) {
+				++this.position;
+			}
+		}
+		
+	}
+	
+}
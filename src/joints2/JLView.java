@@ -1,18 +1,27 @@
 package joints2;
 
 import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static multij.tools.Tools.unchecked;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
+import java.awt.Composite;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.Stroke;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.geom.AffineTransform;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 import javax.swing.JComponent;
 
@@ -29,8 +38,20 @@ public final class JLView extends JComponent implements JL {
 	
 	private final List<Consumer<Graphics2D>> renderers = new ArrayList<>();
 	
+	private final List<Layer> layers = new ArrayList<>();
+	
 	private Rectangle scissor;
 	
+	private int parallelism = 1;
+	
+	private int tileSize = 128;
+	
+	private transient ForkJoinPool pool;
+	
+	private final List<Metrics.Series> rendererMetrics = new ArrayList<>();
+	
+	private final List<Metrics.Series> layerMetrics = new ArrayList<>();
+	
 	{
 		this.addComponentListener(new ComponentAdapter() {
 			
@@ -47,6 +68,12 @@ public final class JLView extends JComponent implements JL {
 					g.translate(w / 2.0, h / 2.0);
 					g.scale(m / 2.0, -m / 2.0);
 					g.setStroke(new BasicStroke(DEFAULT_LINE_THICKNESS / m));
+					
+					for (final Layer layer : getLayers()) {
+						layer.getCanvas().setFormat(w, h).getGraphics().setTransform(g.getTransform());
+						layer.getCanvas().getGraphics().setStroke(g.getStroke());
+						layer.invalidate();
+					}
 				}
 			}
 			
@@ -59,10 +86,142 @@ public final class JLView extends JComponent implements JL {
 		return this.canvas;
 	}
 	
+	/**
+	 * Renderers run on every repaint, before the layers, directly on {@link #getCanvas()}.
+	 * <br>They are meant for per-frame work (clearing, updating transforms, solving);
+	 * drawing that can be cached should go into a layer.
+	 */
 	public final List<Consumer<Graphics2D>> getRenderers() {
 		return this.renderers;
 	}
 	
+	/**
+	 * @return the layers, composited in order over {@link #getCanvas()}
+	 */
+	public final List<Layer> getLayers() {
+		return this.layers;
+	}
+	
+	public final Layer newLayer() {
+		final Layer result = new Layer();
+		final Graphics2D g = this.getCanvas().getGraphics();
+		
+		if (g != null) {
+			result.getCanvas().setFormat(this.getCanvas().getWidth(), this.getCanvas().getHeight()).getGraphics().setTransform(g.getTransform());
+			result.getCanvas().getGraphics().setStroke(g.getStroke());
+			result.invalidate();
+		}
+		
+		this.getLayers().add(result);
+		
+		return result;
+	}
+	
+	public final int getParallelism() {
+		return this.parallelism;
+	}
+	
+	/**
+	 * With a parallelism above <code>1</code>, layers whose renderers are all {@link TileRenderer#isTileSafe() tile-safe}
+	 * are split into tiles rendered concurrently.
+	 * 
+	 * @param parallelism
+	 * <br>Range: <code>[1 .. Integer.MAX_VALUE]</code>
+	 * @return <code>this</code>
+	 */
+	public final synchronized JLView setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+		
+		this.parallelism = parallelism;
+		
+		return this;
+	}
+	
+	public final int getTileSize() {
+		return this.tileSize;
+	}
+	
+	/**
+	 * @param tileSize
+	 * <br>In pixels
+	 * <br>Range: <code>[1 .. Integer.MAX_VALUE]</code>
+	 * @return <code>this</code>
+	 */
+	public final JLView setTileSize(final int tileSize) {
+		if (tileSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		
+		this.tileSize = tileSize;
+		
+		return this;
+	}
+	
+	final synchronized ForkJoinPool getPool() {
+		if (this.pool == null) {
+			this.pool = new ForkJoinPool(this.getParallelism());
+		}
+		
+		return this.pool;
+	}
+	
+	public final JLView setStroke(final Stroke stroke) {
+		this.getCanvas().getGraphics().setStroke(stroke);
+		
+		for (final Layer layer : this.getLayers()) {
+			layer.getCanvas().getGraphics().setStroke(stroke);
+			layer.invalidate();
+		}
+		
+		return this;
+	}
+	
+	public final void invalidateLayers() {
+		this.getLayers().forEach(Layer::invalidate);
+	}
+	
+	/**
+	 * @return the union of the dirty regions of the layers, or <code>null</code> if all layers are clean
+	 */
+	public final Rectangle getDirtyRegion() {
+		Rectangle result = null;
+		
+		for (final Layer layer : this.getLayers()) {
+			final Rectangle dirtyRegion = layer.getDirtyRegion();
+			
+			if (dirtyRegion != null) {
+				if (result == null) {
+					result = new Rectangle(dirtyRegion);
+				} else {
+					result.add(dirtyRegion);
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Repaints the dirty region of the layers, or the whole view if all layers are clean
+	 * (so that the renderers still get a chance to run).
+	 */
+	public final void repaintDirtyRegion() {
+		final Rectangle dirtyRegion = this.getDirtyRegion();
+		
+		if (dirtyRegion == null) {
+			this.repaint();
+		} else {
+			this.repaint(dirtyRegion);
+		}
+	}
+	
 	@Override
 	public final void enable(final Constant flag) {
 		if (Constant.SCISSOR_TEST.equals(flag)) {
@@ -91,17 +250,242 @@ public final class JLView extends JComponent implements JL {
 	protected final void paintComponent(final Graphics g) {
 		super.paintComponent(g);
 		
+		final long frameStart = Metrics.start();
 		final Graphics2D g2d = this.getCanvas().getGraphics();
 		
 		if (g2d != null) {
-			this.getRenderers().forEach(r -> r.accept(g2d));
+			final List<Consumer<Graphics2D>> renderers = this.getRenderers();
+			final int n = renderers.size();
+			
+			for (int i = 0; i < n; ++i) {
+				final long start = Metrics.start();
+				
+				renderers.get(i).accept(g2d);
+				
+				metrics(this.rendererMetrics, "view.renderer.", i).stop(start);
+			}
+			
+			final Rectangle dirtyRegion = this.getDirtyRegion();
+			final Rectangle clipBounds = g.getClipBounds();
+			
+			if (dirtyRegion != null && clipBounds != null && !clipBounds.contains(dirtyRegion)) {
+				// The renderers invalidated more than what is being painted
+				this.repaint(dirtyRegion);
+			}
+			
+			final List<Layer> layers = this.getLayers();
+			final int m = layers.size();
+			
+			for (int i = 0; i < m; ++i) {
+				final Layer layer = layers.get(i);
+				
+				if (layer.isDirty()) {
+					final long start = Metrics.start();
+					
+					layer.update(this);
+					
+					metrics(this.layerMetrics, "view.layer.", i).stop(start);
+				}
+			}
+			
+			final long blitStart = Metrics.start();
 			
 			g.drawImage(this.getCanvas().getImage(), 0, 0, null);
+			
+			for (final Layer layer : layers) {
+				g.drawImage(layer.getCanvas().getImage(), 0, 0, null);
+			}
+			
+			BLIT_METRICS.stop(blitStart);
 		}
+		
+		FRAME_METRICS.stop(frameStart);
 	}
 	
 	private static final long serialVersionUID = -6662651660924313728L;
 	
 	public static final float DEFAULT_LINE_THICKNESS = 2F;
 	
+	private static final Metrics.Series FRAME_METRICS = Metrics.timer("view.frame");
+	
+	private static final Metrics.Series BLIT_METRICS = Metrics.timer("view.blit");
+	
+	/**
+	 * @param metrics
+	 * <br>Cache of the series named <code>prefix + index</code>
+	 * @param prefix
+	 * @param index
+	 * @return the timer for the renderer or layer at <code>index</code>
+	 */
+	private static final Metrics.Series metrics(final List<Metrics.Series> metrics, final String prefix, final int index) {
+		while (metrics.size() <= index) {
+			metrics.add(Metrics.timer(prefix + metrics.size()));
+		}
+		
+		return metrics.get(index);
+	}
+	
+	/**
+	 * Renderer that may be called concurrently, on disjoint tiles of a layer,
+	 * each with its own {@link Graphics2D} clipped to the tile.
+	 * <br>Implementations must not share mutable state between calls (use locals or thread-local scratch objects).
+	 * 
+	 * @author codistmonk (creation 2015-08-09)
+	 */
+	public static abstract interface TileRenderer extends Consumer<Graphics2D> {
+		
+		/**
+		 * @return whether this renderer can currently run on tiles
+		 */
+		public default boolean isTileSafe() {
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * Cached transparent image redrawn by its renderers only when invalidated,
+	 * and then only inside the invalidated region.
+	 * 
+	 * @author codistmonk (creation 2015-08-07)
+	 */
+	public static final class Layer implements Serializable {
+		
+		private final Canvas canvas = new Canvas();
+		
+		private final List<Consumer<Graphics2D>> renderers = new ArrayList<>();
+		
+		private final Rectangle dirtyRegion = new Rectangle();
+		
+		private boolean dirty = true;
+		
+		public final Canvas getCanvas() {
+			return this.canvas;
+		}
+		
+		public final List<Consumer<Graphics2D>> getRenderers() {
+			return this.renderers;
+		}
+		
+		public final boolean isDirty() {
+			return this.dirty;
+		}
+		
+		/**
+		 * @return the region (in pixels) to redraw, or <code>null</code> if this layer is clean
+		 */
+		public final Rectangle getDirtyRegion() {
+			return this.dirty ? this.dirtyRegion : null;
+		}
+		
+		public final Layer invalidate() {
+			this.dirtyRegion.setBounds(0, 0, this.getCanvas().getWidth(), this.getCanvas().getHeight());
+			this.dirty = true;
+			
+			return this;
+		}
+		
+		/**
+		 * @param region
+		 * <br>In pixels
+		 * @return <code>this</code>
+		 */
+		public final Layer invalidate(final Rectangle region) {
+			if (this.dirty) {
+				this.dirtyRegion.add(region);
+			} else {
+				this.dirtyRegion.setBounds(region);
+				this.dirty = true;
+			}
+			
+			return this;
+		}
+		
+		public final boolean isTileSafe() {
+			for (final Consumer<Graphics2D> renderer : this.getRenderers()) {
+				if (!(renderer instanceof TileRenderer) || !((TileRenderer) renderer).isTileSafe()) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		final void update(final JLView view) {
+			final Graphics2D g = this.getCanvas().getGraphics();
+			
+			if (!this.dirty || g == null) {
+				return;
+			}
+			
+			if (1 < view.getParallelism() && this.isTileSafe()) {
+				final Rectangle region = this.dirtyRegion.intersection(new Rectangle(this.getCanvas().getWidth(), this.getCanvas().getHeight()));
+				final int tileSize = view.getTileSize();
+				final int columns = (region.width + tileSize - 1) / tileSize;
+				final int rows = (region.height + tileSize - 1) / tileSize;
+				
+				if (1 < columns * rows) {
+					try {
+						view.getPool().submit(() -> IntStream.range(0, columns * rows).parallel().forEach(tile -> {
+							final int x = region.x + (tile % columns) * tileSize;
+							final int y = region.y + (tile / columns) * tileSize;
+							
+							this.update(g, new Rectangle(x, y, min(tileSize, region.x + region.width - x), min(tileSize, region.y + region.height - y)));
+						})).get();
+					} catch (final InterruptedException | ExecutionException exception) {
+						throw unchecked(exception);
+					} finally {
+						this.dirty = false;
+					}
+					
+					return;
+				}
+			}
+			
+			final AffineTransform transform = g.getTransform();
+			final Composite composite = g.getComposite();
+			
+			g.setTransform(IDENTITY);
+			g.setClip(this.dirtyRegion);
+			g.setComposite(AlphaComposite.Clear);
+			g.fill(this.dirtyRegion);
+			g.setComposite(composite);
+			g.setTransform(transform);
+			
+			try {
+				this.getRenderers().forEach(r -> r.accept(g));
+			} finally {
+				g.setClip(null);
+				this.dirty = false;
+			}
+		}
+		
+		/**
+		 * Renders <code>tile</code> through a new {@link Graphics2D} over the same image, configured like <code>g</code>.
+		 */
+		private final void update(final Graphics2D g, final Rectangle tile) {
+			final Graphics2D tileGraphics = this.getCanvas().getImage().createGraphics();
+			
+			try {
+				tileGraphics.setRenderingHints(g.getRenderingHints());
+				tileGraphics.setStroke(g.getStroke());
+				tileGraphics.setFont(g.getFont());
+				tileGraphics.setClip(tile);
+				tileGraphics.setComposite(AlphaComposite.Clear);
+				tileGraphics.fill(tile);
+				tileGraphics.setComposite(g.getComposite());
+				tileGraphics.setTransform(g.getTransform());
+				
+				this.getRenderers().forEach(r -> r.accept(tileGraphics));
+			} finally {
+				tileGraphics.dispose();
+			}
+		}
+		
+		private static final long serialVersionUID = -2431530957395513245L;
+		
+		private static final AffineTransform IDENTITY = new AffineTransform();
+		
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,265 @@
+package joints2;
+
+import static multij.tools.Tools.unchecked;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Point3f;
+
+import joints2.JointsModel.Group;
+import joints2.JointsModel.Segment;
+
+import multij.tools.IllegalInstantiationException;
+
+/**
+ * Versioned binary format for {@link JointsModel} (big-endian):
+ * <pre>
+ * int magic ({@link #MAGIC}), int version ({@link #VERSION})
+ * int jointCount, int segmentCount, int stringCount, int groupCount
+ * float[3 * jointCount] joint coordinates
+ * int[2 * segmentCount] segment endpoints (joint indices)
+ * int[2 * segmentCount] segment constraint and style (string indices)
+ * stringCount * (int byteCount, byte[byteCount] UTF-8)
+ * groupCount * (int name (string index), int flags, int memberCount, int[memberCount] (index &lt;&lt; 1 | isSegment))
+ * </pre>
+ * Constraints and styles are interned, so a rig where most segments share a style stores it once.
+ * <br>Files are read through a memory-mapped {@link FileChannel} and the coordinate and endpoint blocks
+ * are copied in bulk.
+ *
+ * @author codistmonk (creation 2015-08-06)
+ */
+public final class JointsBinary {
+	
+	private JointsBinary() {
+		throw new IllegalInstantiationException();
+	}
+	
+	public static final int MAGIC = 0x4A4E5453;
+	
+	public static final int VERSION = 1;
+	
+	public static final String EXTENSION = ".joints";
+	
+	private static final int GROUP_SEGMENT_SYNCHRONIZER = 1;
+	
+	public static final boolean isBinary(final File file) {
+		return file.getName().endsWith(EXTENSION);
+	}
+	
+	public static final JointsModel read(final File file, final JointsModel model) {
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return read(channel.map(MapMode.READ_ONLY, 0L, channel.size()), model);
+		} catch (final IOException exception) {
+			throw unchecked(exception);
+		}
+	}
+	
+	public static final JointsModel read(final ByteBuffer buffer, final JointsModel model) {
+		if (buffer.getInt() != MAGIC) {
+			throw new IllegalArgumentException("Not a joints binary file");
+		}
+		
+		final int version = buffer.getInt();
+		
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported version: " + version);
+		}
+		
+		final int jointCount = buffer.getInt();
+		final int segmentCount = buffer.getInt();
+		final int stringCount = buffer.getInt();
+		final int groupCount = buffer.getInt();
+		final float[] coordinates = new float[3 * jointCount];
+		final int[] endpoints = new int[2 * segmentCount];
+		final int[] strings = new int[2 * segmentCount];
+		
+		buffer.asFloatBuffer().get(coordinates);
+		buffer.position(buffer.position() + Float.BYTES * coordinates.length);
+		buffer.asIntBuffer().get(endpoints);
+		buffer.position(buffer.position() + Integer.BYTES * endpoints.length);
+		buffer.asIntBuffer().get(strings);
+		buffer.position(buffer.position() + Integer.BYTES * strings.length);
+		
+		final String[] stringTable = new String[stringCount];
+		
+		for (int i = 0; i < stringCount; ++i) {
+			final byte[] bytes = new byte[buffer.getInt()];
+			
+			buffer.get(bytes);
+			stringTable[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		final List<Point3f> joints = new ArrayList<>(jointCount);
+		final List<Segment> segments = new ArrayList<>(segmentCount);
+		
+		for (int i = 0, j = 0; i < jointCount; ++i, j += 3) {
+			joints.add(new Point3f(coordinates[j + 0], coordinates[j + 1], coordinates[j + 2]));
+		}
+		
+		// Styles are parsed once per distinct string and copied from a prototype segment
+		final Segment[] stylePrototypes = new Segment[stringCount];
+		
+		for (int i = 0, j = 0; i < segmentCount; ++i, j += 2) {
+			final Segment segment = new Segment(joints.get(endpoints[j + 0]), joints.get(endpoints[j + 1]), stringTable[strings[j + 0]]);
+			Segment stylePrototype = stylePrototypes[strings[j + 1]];
+			
+			if (stylePrototype == null) {
+				stylePrototype = segment.setStyle(stringTable[strings[j + 1]]);
+				stylePrototypes[strings[j + 1]] = stylePrototype;
+			} else {
+				stylePrototype.getStyle().forEach(segment::setStyle);
+			}
+			
+			segments.add(segment);
+		}
+		
+		final Map<String, Group> groups = new LinkedHashMap<>();
+		
+		for (int i = 0; i < groupCount; ++i) {
+			final String name = stringTable[buffer.getInt()];
+			final Group group = new Group().setSegmentSynchronizer((buffer.getInt() & GROUP_SEGMENT_SYNCHRONIZER) != 0);
+			final int memberCount = buffer.getInt();
+			
+			for (int j = 0; j < memberCount; ++j) {
+				final int member = buffer.getInt();
+				
+				group.getObjects().add((member & 1) == 0 ? joints.get(member >>> 1) : segments.get(member >>> 1));
+			}
+			
+			groups.put(name, group);
+		}
+		
+		// The model is only filled once the whole file has been decoded
+		joints.forEach(model::addJoint);
+		segments.forEach(model::addSegment);
+		model.getGroups().putAll(groups);
+		
+		return model;
+	}
+	
+	public static final void write(final JointsModel model, final File file) {
+		try (final OutputStream output = new FileOutputStream(file)) {
+			write(model, output);
+		} catch (final IOException exception) {
+			throw unchecked(exception);
+		}
+	}
+	
+	public static final void write(final JointsModel model, final OutputStream output) {
+		final List<Point3f> joints = model.getJointLocations();
+		final List<Segment> segments = model.getSegments();
+		final Map<String, Integer> strings = new LinkedHashMap<>();
+		
+		for (final Segment segment : segments) {
+			intern(segment.getConstraint(), strings);
+			intern(segment.getStyleAsString(), strings);
+		}
+		
+		model.getGroups().keySet().forEach(name -> intern(name, strings));
+		
+		try {
+			final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+			
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeInt(joints.size());
+			data.writeInt(segments.size());
+			data.writeInt(strings.size());
+			data.writeInt(model.getGroups().size());
+			
+			for (final Point3f joint : joints) {
+				data.writeFloat(joint.x);
+				data.writeFloat(joint.y);
+				data.writeFloat(joint.z);
+			}
+			
+			for (final Segment segment : segments) {
+				data.writeInt(model.indexOf(segment.getPoint1()));
+				data.writeInt(model.indexOf(segment.getPoint2()));
+			}
+			
+			for (final Segment segment : segments) {
+				data.writeInt(strings.get(segment.getConstraint()));
+				data.writeInt(strings.get(segment.getStyleAsString()));
+			}
+			
+			for (final String string : strings.keySet()) {
+				final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				
+				data.writeInt(bytes.length);
+				data.write(bytes);
+			}
+			
+			for (final Map.Entry<String, Group> entry : model.getGroups().entrySet()) {
+				final List<Object> members = entry.getValue().getObjects();
+				
+				data.writeInt(strings.get(entry.getKey()));
+				data.writeInt(entry.getValue().isSegmentSynchronizer() ? GROUP_SEGMENT_SYNCHRONIZER : 0);
+				data.writeInt(members.size());
+				
+				for (final Object member : members) {
+					data.writeInt(member instanceof Segment ? model.indexOf((Segment) member) << 1 | 1 : model.indexOf((Point3f) member) << 1);
+				}
+			}
+			
+			data.flush();
+		} catch (final IOException exception) {
+			throw unchecked(exception);
+		}
+	}
+	
+	/**
+	 * Converts between XML and binary, depending on the extension of the output file.
+	 * 
+	 * @param commandLineArguments
+	 * <br>Must contain: input output
+	 */
+	public static final void main(final String[] commandLineArguments) throws IOException {
+		if (commandLineArguments.length != 2) {
+			System.err.println("Usage: " + JointsBinary.class.getName() + " input output");
+			System.exit(1);
+		}
+		
+		final JointsModel model = new JointsModel("joints");
+		final File input = new File(commandLineArguments[0]);
+		final File output = new File(commandLineArguments[1]);
+		
+		if (isBinary(input)) {
+			read(input, model);
+		} else {
+			try (final InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+				JointsXML.read(in, model);
+			}
+		}
+		
+		if (isBinary(output)) {
+			write(model, output);
+		} else {
+			try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+				JointsXML.write(model, out);
+			}
+		}
+	}
+	
+	private static final void intern(final String string, final Map<String, Integer> strings) {
+		strings.computeIfAbsent(string, k -> strings.size());
+	}
+	
+}
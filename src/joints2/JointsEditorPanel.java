@@ -3,8 +3,8 @@ package joints2;
 import static java.lang.Float.parseFloat;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
 import static java.util.stream.Collectors.toList;
-import static joints2.JointsModel.indexOf;
 import static multij.swing.SwingTools.horizontalSplit;
 import static multij.swing.SwingTools.scrollable;
 import static multij.tools.Tools.*;
@@ -12,29 +12,40 @@ import static multij.tools.Tools.*;
 import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.Shape;
+import java.awt.Window;
 import java.awt.event.HierarchyEvent;
 import java.awt.event.HierarchyListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -44,6 +55,7 @@ import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.RowFilter;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.event.TableModelEvent;
@@ -51,15 +63,15 @@ import javax.swing.event.TableModelListener;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableModel;
 import javax.swing.table.TableRowSorter;
-import javax.vecmath.Matrix4f;
 import javax.vecmath.Point3f;
 
+import joints2.JLView.Layer;
+import joints2.JLView.TileRenderer;
 import joints2.JointsModel.Group;
 import joints2.JointsModel.Segment;
 
 import multij.swing.MouseHandler;
 import multij.swing.SwingTools;
-import multij.xml.XMLTools;
 
 /**
  * @author codistmonk (creation 2015-07-31)
@@ -78,6 +90,24 @@ public final class JointsEditorPanel extends JPanel {
 	
 	private final Orbiter orbiter;
 	
+	private final Simulation simulation;
+	
+	private final Layer metricsLayer;
+	
+	private final Timer metricsTimer;
+	
+	private final Rectangle metricsBounds;
+	
+	private final Map<Object, Integer> propertyRows;
+	
+	private boolean propertyRowsValid;
+	
+	private final ThreadLocal<Map<Color, Path2D>> segmentBatches = ThreadLocal.withInitial(LinkedHashMap::new);
+	
+	private final ThreadLocal<Line2D> segmentShape = ThreadLocal.withInitial(Line2D.Float::new);
+	
+	private final ThreadLocal<Ellipse2D> jointShape = ThreadLocal.withInitial(Ellipse2D.Double::new);
+	
 	public JointsEditorPanel() {
 		super(new BorderLayout());
 		this.controlPanel = new ControlPanel();
@@ -85,13 +115,37 @@ public final class JointsEditorPanel extends JPanel {
 		this.model = new JointsModel(this.getScene(), "joints");
 		this.highlighted = new int[1];
 		this.selection = new LinkedHashSet<>();
-		this.orbiter = new Orbiter(this.getScene().getUpdateNeeded(), this.getScene().getCamera()).addTo(this.getScene().getView());
+		this.propertyRows = new IdentityHashMap<>();
+		this.orbiter = new Orbiter(this.getScene().getRepaintScheduler(), this.getScene().getCamera()).addTo(this.getScene().getView());
+		this.simulation = new Simulation(this.getModel(), this.getScene()::requestUpdate);
+		this.metricsLayer = this.getScene().getView().newLayer();
+		this.metricsTimer = new Timer(METRICS_PERIOD, e -> this.scheduleMetricsUpdate());
+		this.metricsBounds = new Rectangle();
+		
+		Metrics.export();
 		
 		this.addHierarchyListener(new HierarchyListener() {
 			
+			private Window window;
+			
 			@Override
 			public final void hierarchyChanged(final HierarchyEvent event) {
-				getScene().setWindow(SwingUtilities.getWindowAncestor(JointsEditorPanel.this));
+				final Window window = SwingUtilities.getWindowAncestor(JointsEditorPanel.this);
+				
+				getScene().setWindow(window);
+				
+				if (window != null && window != this.window) {
+					this.window = window;
+					
+					window.addWindowListener(new WindowAdapter() {
+						
+						@Override
+						public final void windowClosing(final WindowEvent event) {
+							getSimulation().stop();
+						}
+						
+					});
+				}
 			}
 			
 		});
@@ -138,6 +192,35 @@ public final class JointsEditorPanel extends JPanel {
 		return this.orbiter;
 	}
 	
+	/**
+	 * @return the simulation stepping the model; joints must be moved through {@link Simulation#edit(Runnable)}
+	 */
+	public final Simulation getSimulation() {
+		return this.simulation;
+	}
+	
+	public final boolean isMetricsVisible() {
+		return this.metricsTimer.isRunning();
+	}
+	
+	/**
+	 * Shows or hides the {@link Metrics} overlay, refreshed every {@link #METRICS_PERIOD} milliseconds while visible.
+	 * 
+	 * @param metricsVisible
+	 * @return <code>this</code>
+	 */
+	public final JointsEditorPanel setMetricsVisible(final boolean metricsVisible) {
+		if (metricsVisible) {
+			this.metricsTimer.start();
+		} else {
+			this.metricsTimer.stop();
+		}
+		
+		this.scheduleMetricsUpdate();
+		
+		return this;
+	}
+	
 	public final void clear() {
 		final DefaultTableModel properties = ((DefaultTableModel) getControlPanel().getPropertyTable().getModel());
 		
@@ -160,15 +243,41 @@ public final class JointsEditorPanel extends JPanel {
 	
 	public final void deletePropertiesByValues(final List<? extends Object> values) {
 		final DefaultTableModel properties = ((DefaultTableModel) getControlPanel().getPropertyTable().getModel());
+		final Set<Object> removed = JointsModel.identitySet(values);
 		
 		for (int i = properties.getRowCount() - 1; 0 <= i; --i) {
-			for (final Object value : values) {
-				if (value == properties.getValueAt(i, 1)) {
-					properties.removeRow(i);
-					
-					break;
-				}
+			if (removed.contains(properties.getValueAt(i, 1))) {
+				properties.removeRow(i);
+			}
+		}
+	}
+	
+	/**
+	 * @param value
+	 * @return the property table row (model index) whose value is <code>value</code> (by identity), or <code>-1</code>
+	 */
+	public final int propertyRow(final Object value) {
+		if (!this.propertyRowsValid) {
+			final TableModel properties = this.getControlPanel().getPropertyTable().getModel();
+			final int n = properties.getRowCount();
+			
+			this.propertyRows.clear();
+			
+			for (int i = 0; i < n; ++i) {
+				this.indexPropertyRow(properties.getValueAt(i, 1), i);
 			}
+			
+			this.propertyRowsValid = true;
+		}
+		
+		final Integer result = this.propertyRows.get(value);
+		
+		return result == null ? -1 : result;
+	}
+	
+	private final void indexPropertyRow(final Object value, final int row) {
+		if (value != null && !(value instanceof String)) {
+			this.propertyRows.put(value, row);
 		}
 	}
 	
@@ -182,40 +291,48 @@ public final class JointsEditorPanel extends JPanel {
 	}
 	
 	public final JointsEditorPanel open(final File file) {
-		try (final InputStream input = new FileInputStream(file)) {
-			this.getModel().addFromXML(XMLTools.parse(input));
+		try {
+			if (JointsBinary.isBinary(file)) {
+				JointsBinary.read(file, this.getModel());
+			} else {
+				try (final InputStream input = new FileInputStream(file)) {
+					JointsXML.read(input, this.getModel());
+				}
+			}
+		} catch (final Exception exception) {
+			exception.printStackTrace();
+			
+			return this;
+		}
+		
+		{
+			final DefaultTableModel properties = ((DefaultTableModel) getControlPanel().getPropertyTable().getModel());
 			
 			{
-				final DefaultTableModel properties = ((DefaultTableModel) getControlPanel().getPropertyTable().getModel());
+				final List<Point3f> jointLocations = this.getModel().getJointLocations();
+				final int n = jointLocations.size();
 				
-				{
-					final List<Point3f> jointLocations = this.getModel().getJointLocations();
-					final int n = jointLocations.size();
-					
-					for (int i = 0; i < n; ++i) {
-						properties.addRow(array(list("joints/" + i), jointLocations.get(i)));
-					}
-				}
-				
-				{
-					final List<Segment> segments = this.getModel().getSegments();
-					final int n = segments.size();
-					
-					for (int i = 0; i < n; ++i) {
-						properties.addRow(array(list("segments/" + i), segments.get(i)));
-					}
+				for (int i = 0; i < n; ++i) {
+					properties.addRow(array(list("joints/" + i), jointLocations.get(i)));
 				}
+			}
+			
+			{
+				final List<Segment> segments = this.getModel().getSegments();
+				final int n = segments.size();
 				
-				for (final Map.Entry<String, Group> entry : this.getModel().getGroups().entrySet()) {
-					properties.addRow(array(list("groups/" + entry.getKey()), entry.getValue()));
+				for (int i = 0; i < n; ++i) {
+					properties.addRow(array(list("segments/" + i), segments.get(i)));
 				}
 			}
 			
-			scheduleUpdate();
-		} catch (final IOException exception) {
-			exception.printStackTrace();
+			for (final Map.Entry<String, Group> entry : this.getModel().getGroups().entrySet()) {
+				properties.addRow(array(list("groups/" + entry.getKey()), entry.getValue()));
+			}
 		}
 		
+		scheduleUpdate();
+		
 		return this;
 	}
 	
@@ -228,7 +345,15 @@ public final class JointsEditorPanel extends JPanel {
 	}
 	
 	public final JointsEditorPanel save(final File file) {
-		XMLTools.write(this.getModel().toXML(), file, 0);
+		try (final OutputStream output = new FileOutputStream(file)) {
+			if (JointsBinary.isBinary(file)) {
+				JointsBinary.write(this.getModel(), output);
+			} else {
+				JointsXML.write(this.getModel(), output);
+			}
+		} catch (final IOException exception) {
+			exception.printStackTrace();
+		}
 		
 		return this;
 	}
@@ -246,13 +371,13 @@ public final class JointsEditorPanel extends JPanel {
 					final Point3f point = point(id);
 					
 					pointsToRemove.add(point);
-					segmentsToRemove.addAll(getSegments().stream().filter(s -> s.isEndPoint(point)).collect(toList()));
+					segmentsToRemove.addAll(getModel().getIncidentSegments(point));
 				}
 			}
 			
 			this.clearSelection();
-			getJointLocations().removeAll(pointsToRemove);
-			getSegments().removeAll(segmentsToRemove);
+			getModel().removeSegments(segmentsToRemove);
+			getModel().removeJoints(pointsToRemove);
 			this.deletePropertiesByValues(segmentsToRemove);
 			this.deletePropertiesByValues(pointsToRemove);
 			
@@ -266,65 +391,109 @@ public final class JointsEditorPanel extends JPanel {
 	}
 	
 	public final boolean addToSelection(final int id) {
-		final Object object = isJoint(id) ? this.point(id) : this.segment(id);
-		final TableModel controlModel = this.getControlPanel().getPropertyTable().getModel();
+		final int row = this.propertyRow(isJoint(id) ? this.point(id) : this.segment(id));
 		final ListSelectionModel selectionModel = this.getControlPanel().getPropertyTable().getSelectionModel();
-		final int n = controlModel.getRowCount();
 		
-		for (int i = 0; i < n; ++i) {
-			if (controlModel.getValueAt(i, 1) == object) {
-				final boolean result = !selectionModel.isSelectedIndex(i);
-				
-				selectionModel.addSelectionInterval(i, i);
-				
-				return result;
-			}
+		if (row < 0) {
+			throw new IllegalStateException();
 		}
 		
-		throw new IllegalStateException();
+		final boolean result = !selectionModel.isSelectedIndex(row);
+		
+		selectionModel.addSelectionInterval(row, row);
+		
+		return result;
 	}
 	
 	public final boolean removeFromSelection(final int id) {
-		final Object object = isJoint(id) ? this.point(id) : this.segment(id);
-		final TableModel controlModel = this.getControlPanel().getPropertyTable().getModel();
+		final int row = this.propertyRow(isJoint(id) ? this.point(id) : this.segment(id));
 		final ListSelectionModel selectionModel = this.getControlPanel().getPropertyTable().getSelectionModel();
-		final int n = controlModel.getRowCount();
 		
-		for (int i = 0; i < n; ++i) {
-			if (controlModel.getValueAt(i, 1) == object) {
-				selectionModel.removeSelectionInterval(i, i);
-			}
+		if (0 <= row) {
+			selectionModel.removeSelectionInterval(row, row);
 		}
 		
 		return this.getSelection().remove(id);
 	}
 	
+	/**
+	 * Segments are batched into one path per color; the ids canvas still gets one line per segment.
+	 * <br>Highlight and selection are drawn separately by {@link #renderOverlay(Graphics2D)}.
+	 */
 	final void renderSegments(final Graphics2D g) {
-		final int n = getSegments().size();
+		final List<Segment> segments = getSegments();
+		final int n = segments.size();
+		final Map<Color, Path2D> batches = this.segmentBatches.get();
+		final Line2D shape = this.segmentShape.get();
+		
+		batches.values().forEach(Path2D::reset);
+		
+		final float[] projected = this.getProjectedJoints();
+		final int[] endpoints = getModel().getEndpoints();
 		
 		for (int i = 0; i < n; ++i) {
-			final Segment segment = getSegments().get(i);
+			final Segment segment = segments.get(i);
+			final int j1 = 3 * endpoints[2 * i + 0];
+			final int j2 = 3 * endpoints[2 * i + 1];
 			
-			if ("true".equalsIgnoreCase(segment.getStyle("visible"))) {
-				final int id = 2 * i + 2;
-				final Path2D shape = new Path2D.Double();
-				final Point3f p1 = getScene().getTransformed(segment.getPoint1());
-				final Point3f p2 = getScene().getTransformed(segment.getPoint2());
-				
-				shape.moveTo(p1.x, p1.y);
-				shape.lineTo(p2.x, p2.y);
+			if (segment.isVisible() && isProjected(projected, j1) && isProjected(projected, j2)) {
+				final Path2D batch = batches.computeIfAbsent(segment.getColor(), k -> new Path2D.Float());
 				
-				getScene().draw(shape, id == getHighlighted()[0] ? Color.YELLOW : getSelection().contains(id) ? Color.RED : decodeColor(segment.getStyle("color")), id, g);
+				batch.moveTo(projected[j1 + 0], projected[j1 + 1]);
+				batch.lineTo(projected[j2 + 0], projected[j2 + 1]);
+				shape.setLine(projected[j1 + 0], projected[j1 + 1], projected[j2 + 0], projected[j2 + 1]);
+				getScene().drawId(shape, segmentId(i));
+			}
+		}
+		
+		for (final Map.Entry<Color, Path2D> entry : batches.entrySet()) {
+			g.setColor(entry.getKey());
+			g.draw(entry.getValue());
+		}
+		
+		if ("true".equalsIgnoreCase(getControlPanel().getValue(KEY_CONFIG_SHOW_CONSTRAINTS).toString())) {
+			this.renderConstraints(g);
+		}
+	}
+	
+	/**
+	 * Draws the lengths and constraint values from the current snapshot,
+	 * because the simulation thread owns the joint locations and the script engine.
+	 * 
+	 * @param g
+	 */
+	private final void renderConstraints(final Graphics2D g) {
+		final Simulation.Snapshot snapshot = getSimulation().getSnapshot();
+		
+		if (snapshot.getModificationCount() != getModel().getModificationCount()) {
+			return;
+		}
+		
+		final List<Segment> segments = getSegments();
+		final int n = segments.size();
+		final float[] locations = snapshot.getLocations();
+		final float[] constraints = snapshot.getConstraints();
+		final AffineTransform transform = g.getTransform();
+		final AffineTransform idsTransform = getScene().getIds().getGraphics().getTransform();
+		final float[] projected = this.getProjectedJoints();
+		final int[] endpoints = getModel().getEndpoints();
+		final Point2D p2D = new Point2D.Double();
+		
+		g.setTransform(IDENTITY);
+		getScene().getIds().getGraphics().setTransform(IDENTITY);
+		
+		try {
+			for (int i = 0; i < n; ++i) {
+				final Segment segment = segments.get(i);
+				final int j1 = 3 * endpoints[2 * i + 0];
+				final int j2 = 3 * endpoints[2 * i + 1];
 				
-				if ("true".equalsIgnoreCase(getControlPanel().getValue(KEY_CONFIG_SHOW_CONSTRAINTS).toString())) {
-					final Point2D p2D = point2D(middle(p1, p2));
-					final AffineTransform transform = getScene().getGraphicsTransform();
+				if (segment.isVisible() && isProjected(projected, j1) && isProjected(projected, j2)) {
+					final String string = String.format("%.1f/%.1f", distance(locations, j1, j2), constraints[i]);
+					final Rectangle2D stringBounds = g.getFontMetrics().getStringBounds(string, g);
 					
+					p2D.setLocation(middle(projected[j1 + 0], projected[j2 + 0]), middle(projected[j1 + 1], projected[j2 + 1]));
 					transform.transform(p2D, p2D);
-					getScene().setGraphicsTransform(new AffineTransform());
-					
-					final String string = String.format("%.1f", segment.getPoint1().distance(segment.getPoint2())) + "/" + String.format("%.1f", segment.getConstraint());
-					final Rectangle2D stringBounds = g.getFontMetrics().getStringBounds(string, g);
 					
 					final float left = (float) (p2D.getX() - stringBounds.getWidth() / 2.0);
 					final float bottom = (float) (p2D.getY() + stringBounds.getHeight() / 2.0);
@@ -334,28 +503,278 @@ public final class JointsEditorPanel extends JPanel {
 					
 					g.drawString(string, left, bottom);
 					
-					getScene().fillId(stringBounds, id);
-					getScene().setGraphicsTransform(transform);
+					getScene().fillId(stringBounds, segmentId(i));
 				}
 			}
+		} finally {
+			g.setTransform(transform);
+			getScene().getIds().getGraphics().setTransform(idsTransform);
 		}
 	}
 	
 	final void renderJoints(final Graphics2D g) {
 		final double r = Double.parseDouble(getControlPanel().getValue(KEY_CONFIG_JOINT_RADIUS));
-		final int n = getJointLocations().size();
+		final float[] projected = this.getProjectedJoints();
+		final int n = min(getJointLocations().size(), projected.length / 3);
+		final Ellipse2D shape = this.jointShape.get();
 		
-		for (int i = 0; i < n; ++i) {
-			final int id = 2 * i + 1;
-			final Point3f p = getScene().getTransformed(getJointLocations().get(i));
-			final Shape shape = new Ellipse2D.Double(p.x - r, p.y - r, 2.0 * r, 2.0 * r);
+		for (int i = 0, j = 0; i < n; ++i, j += 3) {
+			if (isProjected(projected, j)) {
+				shape.setFrame(projected[j + 0] - r, projected[j + 1] - r, 2.0 * r, 2.0 * r);
+				
+				getScene().fill(shape, Color.BLUE, jointId(i), g);
+			}
+		}
+	}
+	
+	final void addPickables(final PickingIndex index) {
+		final float r = parseFloat(getControlPanel().getValue(KEY_CONFIG_JOINT_RADIUS));
+		final float[] projected = this.getProjectedJoints();
+		final List<Segment> segments = getSegments();
+		final int[] endpoints = getModel().getEndpoints();
+		final int n = min(getJointLocations().size(), projected.length / 3);
+		final int m = segments.size();
+		
+		for (int i = 0, j = 0; i < n; ++i, j += 3) {
+			if (isProjected(projected, j)) {
+				index.addPoint(jointId(i), projected[j + 0], projected[j + 1], r);
+			}
+		}
+		
+		for (int i = 0; i < m; ++i) {
+			final int j1 = 3 * endpoints[2 * i + 0];
+			final int j2 = 3 * endpoints[2 * i + 1];
+			
+			if (segments.get(i).isVisible() && isProjected(projected, j1) && isProjected(projected, j2)) {
+				index.addSegment(segmentId(i), projected[j1 + 0], projected[j1 + 1], projected[j2 + 0], projected[j2 + 1]);
+			}
+		}
+	}
+	
+	/**
+	 * Draws the selection in red and the highlighted object in yellow, without ids.
+	 */
+	final void renderOverlay(final Graphics2D g) {
+		final int highlighted = getHighlighted()[0];
+		
+		for (final int id : getSelection()) {
+			if (id != highlighted) {
+				this.renderOverlay(id, Color.RED, g);
+			}
+		}
+		
+		this.renderOverlay(highlighted, Color.YELLOW, g);
+	}
+	
+	private final void renderOverlay(final int id, final Color color, final Graphics2D g) {
+		final Shape shape = this.getShape(id);
+		
+		if (shape != null) {
+			g.setColor(color);
+			
+			if (isJoint(id)) {
+				g.fill(shape);
+			} else {
+				g.draw(shape);
+			}
+		}
+	}
+	
+	/**
+	 * Draws one line per {@link Metrics} series (last value, median and 99th percentile over its window,
+	 * in milliseconds for timers) followed by the histogram of its window, in pixel coordinates.
+	 */
+	final void renderMetrics(final Graphics2D g) {
+		if (!this.isMetricsVisible()) {
+			return;
+		}
+		
+		final AffineTransform transform = g.getTransform();
+		final Rectangle bounds = this.getMetricsBounds(g);
+		final int lineHeight = g.getFontMetrics(METRICS_FONT).getHeight();
+		final int histogramX = bounds.x + bounds.width - METRICS_MARGIN - METRICS_HISTOGRAM_BUCKETS * METRICS_HISTOGRAM_BAR_WIDTH;
+		int y = bounds.y + METRICS_MARGIN;
+		
+		g.setTransform(IDENTITY);
+		g.setFont(METRICS_FONT);
+		g.setColor(METRICS_BACKGROUND);
+		g.fill(bounds);
+		g.setColor(Color.WHITE);
+		g.drawString(String.format(METRICS_FORMAT, "stage", "last", "median", "p99"), bounds.x + METRICS_MARGIN, y + lineHeight - 3);
+		
+		for (final Metrics.Series series : Metrics.getSeries()) {
+			y += lineHeight;
+			
+			g.setColor(Color.WHITE);
+			g.drawString(String.format(METRICS_FORMAT, series.getName(), format(series, series.getLast()),
+					format(series, series.getMedian()), format(series, series.getPercentile99())), bounds.x + METRICS_MARGIN, y + lineHeight - 3);
+					
+			final long[] histogram = series.getHistogram();
+			// Timers start at 2^10 ns (about 1 microsecond)
+			final int offset = series.isTime() ? 10 : 0;
+			long maximum = 1L;
 			
-			getScene().fill(shape, id == getHighlighted()[0] ? Color.YELLOW : getSelection().contains(id) ? Color.RED : Color.BLUE, id, g);
+			for (int i = 0; i < METRICS_HISTOGRAM_BUCKETS; ++i) {
+				maximum = max(maximum, histogram[offset + i]);
+			}
+			
+			g.setColor(Color.GREEN);
+			
+			for (int i = 0; i < METRICS_HISTOGRAM_BUCKETS; ++i) {
+				final int h = (int) ((lineHeight - 2) * histogram[offset + i] / maximum);
+				
+				g.fillRect(histogramX + i * METRICS_HISTOGRAM_BAR_WIDTH, y + lineHeight - 1 - h, METRICS_HISTOGRAM_BAR_WIDTH - 1, h);
+			}
+		}
+		
+		g.setTransform(transform);
+	}
+	
+	private final Rectangle getMetricsBounds(final Graphics2D g) {
+		final int lineHeight = g.getFontMetrics(METRICS_FONT).getHeight();
+		final int textWidth = g.getFontMetrics(METRICS_FONT).stringWidth(String.format(METRICS_FORMAT, "", "", "", ""));
+		
+		return new Rectangle(METRICS_MARGIN, METRICS_MARGIN, textWidth + METRICS_HISTOGRAM_BUCKETS * METRICS_HISTOGRAM_BAR_WIDTH + 3 * METRICS_MARGIN,
+				(1 + Metrics.getSeries().size()) * lineHeight + 2 * METRICS_MARGIN);
+	}
+	
+	/**
+	 * Invalidates the part of the metrics layer covered by the overlay, as it was and as it will be.
+	 */
+	final void scheduleMetricsUpdate() {
+		final Graphics2D g = this.metricsLayer.getCanvas().getGraphics();
+		
+		if (g != null) {
+			this.metricsLayer.invalidate(this.metricsBounds);
+			this.metricsBounds.setBounds(this.getMetricsBounds(g));
+			this.metricsLayer.invalidate(this.metricsBounds);
+			getScene().requestUpdate();
+		}
+	}
+	
+	/**
+	 * Sets this thread's {@link #jointShape} or {@link #segmentShape} to the current (transformed) shape of <code>id</code>.
+	 * 
+	 * @param id
+	 * @return the updated shape, or <code>null</code> if <code>id</code> doesn't refer to a visible object
+	 */
+	private final Shape getShape(final int id) {
+		if (id <= 0) {
+			return null;
+		}
+		
+		final float[] projected = this.getProjectedJoints();
+		
+		if (isJoint(id)) {
+			final int j = 3 * jointIndex(id);
+			
+			if (getJointLocations().size() <= jointIndex(id) || !isProjected(projected, j)) {
+				return null;
+			}
+			
+			final double r = Double.parseDouble(getControlPanel().getValue(KEY_CONFIG_JOINT_RADIUS));
+			
+			final Ellipse2D result = this.jointShape.get();
+			
+			result.setFrame(projected[j + 0] - r, projected[j + 1] - r, 2.0 * r, 2.0 * r);
+			
+			return result;
+		}
+		
+		final int index = segmentIndex(id);
+		
+		if (getSegments().size() <= index || !getSegments().get(index).isVisible()) {
+			return null;
+		}
+		
+		final int[] endpoints = getModel().getEndpoints();
+		final int j1 = 3 * endpoints[2 * index + 0];
+		final int j2 = 3 * endpoints[2 * index + 1];
+		
+		if (!isProjected(projected, j1) || !isProjected(projected, j2)) {
+			return null;
 		}
+		
+		final Line2D result = this.segmentShape.get();
+		
+		result.setLine(projected[j1 + 0], projected[j1 + 1], projected[j2 + 0], projected[j2 + 1]);
+		
+		return result;
 	}
 	
+	/**
+	 * @return the projected joint locations (x, y, z per joint), see {@link Scene#getProjected(Object)}
+	 */
+	final float[] getProjectedJoints() {
+		return getScene().getProjected(getModel().getName());
+	}
+	
+	/**
+	 * @param segment
+	 * @return the constraint value of <code>segment</code> from the current snapshot,
+	 * or evaluated while holding the model's monitor if the snapshot is older than the model
+	 */
+	final double getConstraintValue(final Segment segment) {
+		final Simulation.Snapshot snapshot = getSimulation().getSnapshot();
+		
+		if (snapshot.getModificationCount() == getModel().getModificationCount()) {
+			return snapshot.getConstraints()[getModel().indexOf(segment)];
+		}
+		
+		synchronized (getModel()) {
+			return getModel().evaluateConstraint(segment);
+		}
+	}
+	
+	/**
+	 * @param id
+	 * @return the projected depth of the joint or of the middle of the segment <code>id</code>
+	 */
+	final float getProjectedDepth(final int id) {
+		final float[] projected = this.getProjectedJoints();
+		
+		if (isJoint(id)) {
+			return projected[3 * jointIndex(id) + 2];
+		}
+		
+		final int[] endpoints = getModel().getEndpoints();
+		
+		return middle(projected[3 * endpoints[2 * segmentIndex(id) + 0] + 2], projected[3 * endpoints[2 * segmentIndex(id) + 1] + 2]);
+	}
+	
+	/**
+	 * Invalidates the model and overlay layers.
+	 */
 	public final void scheduleUpdate() {
-		getScene().getUpdateNeeded().set(true);
+		getScene().getModelLayer().invalidate();
+		getScene().getOverlayLayer().invalidate();
+		getScene().requestUpdate();
+	}
+	
+	/**
+	 * Invalidates the whole overlay layer, for selection changes.
+	 */
+	public final void scheduleOverlayUpdate() {
+		getScene().getOverlayLayer().invalidate();
+		getScene().requestUpdate();
+	}
+	
+	/**
+	 * Invalidates the part of the overlay layer covered by <code>id</code>, for highlight changes.
+	 * 
+	 * @param id
+	 */
+	public final void scheduleOverlayUpdate(final int id) {
+		final Shape shape = this.getShape(id);
+		
+		if (shape != null) {
+			final Rectangle region = getScene().getView().getCanvas().getGraphics().getTransform().createTransformedShape(shape).getBounds();
+			final int margin = 2 + (int) Math.ceil(parseFloat(getControlPanel().getValue(KEY_CONFIG_SEGMENT_THICKNESS).toString()));
+			
+			region.grow(margin, margin);
+			getScene().getOverlayLayer().invalidate(region);
+			getScene().requestUpdate();
+		}
 	}
 	
 	public final Point3f point(final int id) {
@@ -367,20 +786,19 @@ public final class JointsEditorPanel extends JPanel {
 	}
 	
 	public final int id(final Object value) {
-		int index = indexOf(value, this.getJointLocations());
-		int result = 0;
+		if (value instanceof Point3f) {
+			final int index = this.getModel().indexOf((Point3f) value);
+			
+			return 0 <= index ? jointId(index) : 0;
+		}
 		
-		if (0 <= index) {
-			result = jointId(index);
-		} else {
-			index = indexOf(value, getSegments());
+		if (value instanceof Segment) {
+			final int index = this.getModel().indexOf((Segment) value);
 			
-			if (0 <= index) {
-				result = segmentId(index);
-			}
+			return 0 <= index ? segmentId(index) : 0;
 		}
 		
-		return result;
+		return 0;
 	}
 	
 	final List<Point3f> collectPointsFromSelection() {
@@ -401,11 +819,32 @@ public final class JointsEditorPanel extends JPanel {
 	}
 	
 	private final void setupScene() {
-		getScene().getView().getRenderers().add(g -> {
-			renderJoints(g);
-			renderSegments(g);
+		getScene().getModelLayer().getRenderers().add(new TileRenderer() {
+			
+			@Override
+			public final void accept(final Graphics2D g) {
+				renderJoints(g);
+				renderSegments(g);
+			}
+			
+			/**
+			 * The id canvas is shared and not clipped to tiles,
+			 * and constraint labels may go through the (single-threaded) script engine.
+			 */
+			@Override
+			public final boolean isTileSafe() {
+				return getScene().isAnalyticPicking()
+						&& !"true".equalsIgnoreCase(getControlPanel().getValue(KEY_CONFIG_SHOW_CONSTRAINTS).toString());
+			}
+			
 		});
 		
+		getScene().getOverlayLayer().getRenderers().add(this::renderOverlay);
+		this.metricsLayer.getRenderers().add(this::renderMetrics);
+		
+		getScene().setAnalyticPicking(true).getPickables().add(this::addPickables);
+		getScene().getView().setParallelism(Runtime.getRuntime().availableProcessors());
+		
 		new MouseHandler() {
 			
 			private float z = Float.NaN;
@@ -416,26 +855,21 @@ public final class JointsEditorPanel extends JPanel {
 					final List<Point3f> activePoints = collectPointsFromSelection();
 					
 					if (!activePoints.isEmpty()) {
-						final Point3f center = center(activePoints);
 						final AffineTransform graphicsTransform = getScene().getGraphicsTransform();
 						final Point2D currentMouse = new Point2D.Double(event.getX(), event.getY());
 						
 						try {
 							graphicsTransform.inverseTransform(currentMouse, currentMouse);
 							
-							final Matrix4f m = getScene().getCamera().getProjectionView(new Matrix4f());
-							
-							m.invert();
-							
-							final Point3f currentLocation = point3f(currentMouse, this.z);
-							
-							m.transform(currentLocation);
-							
-							currentLocation.sub(center);
+							final Point3f currentLocation = getScene().unproject(point3f(currentMouse, this.z));
 							
-							activePoints.forEach(p -> p.add(currentLocation));
-							
-							scheduleUpdate();
+							// The offset is computed when the edit is applied, so that queued drags don't accumulate
+							getSimulation().edit(() -> {
+								currentLocation.sub(center(activePoints));
+								
+								activePoints.forEach(p -> p.add(currentLocation));
+								activePoints.forEach(getModel().getSolver()::wake);
+							});
 						} catch (final NoninvertibleTransformException exception) {
 							exception.printStackTrace();
 						}
@@ -448,8 +882,9 @@ public final class JointsEditorPanel extends JPanel {
 				final int idUnderMouse = getScene().getIdUnderMouse();
 				
 				if (idUnderMouse != getHighlighted()[0]) {
+					scheduleOverlayUpdate(getHighlighted()[0]);
 					getHighlighted()[0] = idUnderMouse;
-					scheduleUpdate();
+					scheduleOverlayUpdate(idUnderMouse);
 				}
 			}
 			
@@ -466,7 +901,7 @@ public final class JointsEditorPanel extends JPanel {
 				if (id != 0) {
 					this.select(id, event);
 					
-					this.z = isJoint(id) ? getScene().getTransformed(point(id)).z : middle(getScene().getTransformed(segment(id).getPoint1()).z, getScene().getTransformed(segment(id).getPoint2()).z);
+					this.z = getProjectedDepth(id);
 					getScene().getView().removeMouseMotionListener(getOrbiter());
 					
 					scheduleUpdate();
@@ -485,18 +920,10 @@ public final class JointsEditorPanel extends JPanel {
 				final int id = getHighlighted()[0];
 				
 				if (event.getClickCount() == 2 && id == 0) {
-					final Matrix4f m = new Matrix4f();
-					
-					getScene().getCamera().getProjectionView(m);
-					
-					m.invert();
-					
-					final Point3f p = new Point3f(
+					final Point3f p = getScene().unproject(new Point3f(
 							2F * event.getX() / getScene().getView().getWidth() - 1F,
 							1F - 2F * event.getY() / getScene().getView().getHeight(),
-							0F);
-					
-					m.transform(p);
+							0F));
 					
 					final int newJointId = addJoint(p);
 					this.select(getHighlighted()[0] = newJointId, event);
@@ -539,6 +966,8 @@ public final class JointsEditorPanel extends JPanel {
 					save();
 				} else if (event.getKeyCode() == KeyEvent.VK_D) {
 					SwingTools.show(getScene().getIds().getImage(), "ids", false);
+				} else if (event.getKeyCode() == KeyEvent.VK_M) {
+					setMetricsVisible(!isMetricsVisible());
 				} else if (event.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
 					deleteSelection();
 				} else if (event.getKeyCode() == KeyEvent.VK_G) {
@@ -577,7 +1006,10 @@ public final class JointsEditorPanel extends JPanel {
 					
 					if (0 < n) {
 						if (Arrays.stream(selected).allMatch(JointsEditorPanel::isJoint)) {
+							final ListSelectionModel selectionModel = getControlPanel().getPropertyTable().getSelectionModel();
+							
 							clearSelection();
+							selectionModel.setValueIsAdjusting(true);
 							
 							for (int i = 0; i < n; ++i) {
 								for (int j = i + 1; j < n; ++j) {
@@ -585,10 +1017,12 @@ public final class JointsEditorPanel extends JPanel {
 								}
 							}
 							
+							selectionModel.setValueIsAdjusting(false);
+							
 							scheduleUpdate();
 						} else if (Arrays.stream(selected).allMatch(JointsEditorPanel::isSegment)) {
 							final ControlPanel message = new ControlPanel();
-							final double average = Arrays.stream(selected).map(JointsEditorPanel.this::segment).mapToDouble(getModel()::evaluateConstraint).average().getAsDouble();
+							final double average = Arrays.stream(selected).map(JointsEditorPanel.this::segment).mapToDouble(JointsEditorPanel.this::getConstraintValue).average().getAsDouble();
 							final String commonVisibility = Arrays.stream(selected).map(JointsEditorPanel.this::segment).map(s -> s.getStyle("visible")).reduce((v1, v2) -> v1.equals(v2) ? v1 : "").get().toString();
 							final String commonColor = Arrays.stream(selected).map(JointsEditorPanel.this::segment).map(s -> s.getStyle("color")).reduce((v1, v2) -> v1.equals(v2) ? v1 : "").get().toString();
 							
@@ -601,7 +1035,13 @@ public final class JointsEditorPanel extends JPanel {
 								final String newVisibility = message.getValue("visible");
 								final String newColor = message.getValue("color");
 								
-								Arrays.stream(selected).forEach(id -> segment(id).updateConstraint(newConstraint).updateStyle("visible", newVisibility).updateStyle("color", newColor));
+								final List<Segment> segments = Arrays.stream(selected).map(JointsEditorPanel.this::segment).collect(toList());
+								
+								getSimulation().edit(() -> {
+									segments.forEach(segment -> segment.updateStyle("visible", newVisibility).updateStyle("color", newColor));
+									segments.forEach(segment -> segment.updateConstraint(newConstraint));
+									segments.forEach(segment -> getModel().getSolver().wake(segment.getPoint1()));
+								});
 								
 								scheduleUpdate();
 							}
@@ -614,12 +1054,27 @@ public final class JointsEditorPanel extends JPanel {
 		
 		getScene().getView().setFocusable(true);
 		
-		getScene().getView().getRenderers().add(g -> {
-			if ("true".equalsIgnoreCase(getControlPanel().getValue(KEY_CONFIG_SOLVE_CONSTRAINTS).toString())) {
-				getModel().applyConstraints(getScene().getUpdateNeeded());
+		// Picking up the latest snapshot before the scene projects its locations shows it in the same frame
+		getScene().getView().getRenderers().add(0, g -> {
+			if (getSimulation().acquireSnapshot() != null) {
+				getScene().getModelLayer().invalidate();
+				getScene().getOverlayLayer().invalidate();
+			}
+			
+			final Simulation.Snapshot snapshot = getSimulation().getSnapshot();
+			
+			// A snapshot taken before the last structural change may not match the joint indices anymore
+			if (snapshot.getModificationCount() == getModel().getModificationCount()) {
+				getScene().getLocationSnapshots().put(getModel().getName(), snapshot.getLocations());
+			} else {
+				getScene().getLocationSnapshots().remove(getModel().getName());
+				// The simulation may be parked and unaware of the change
+				getSimulation().wake();
 			}
 		});
 		
+		getSimulation().start();
+		
 		{
 			final List<Point3f> locations = getScene().getLocations().computeIfAbsent("shape", k -> new ArrayList<>());
 			
@@ -629,7 +1084,7 @@ public final class JointsEditorPanel extends JPanel {
 			locations.add(new Point3f(1F, 0F, -1F));
 		}
 		
-		getScene().getView().getRenderers().add(g -> {
+		getScene().getBackgroundLayer().getRenderers().add(g -> {
 			getScene().draw(getScene().polygon("shape", new Path2D.Float()), Color.BLACK, -1, g);
 		});
 	}
@@ -643,6 +1098,22 @@ public final class JointsEditorPanel extends JPanel {
 		properties.addRow(array(KEY_CONFIG_SEGMENT_THICKNESS, Float.toString(JLView.DEFAULT_LINE_THICKNESS)));
 		properties.addRow(array(KEY_CONFIG_JOINT_RADIUS, "0.02"));
 		
+		properties.addTableModelListener(new TableModelListener() {
+			
+			@Override
+			public final void tableChanged(final TableModelEvent event) {
+				if (event.getType() == TableModelEvent.INSERT && propertyRowsValid
+						&& event.getLastRow() == properties.getRowCount() - 1) {
+					for (int i = event.getFirstRow(); i <= event.getLastRow(); ++i) {
+						indexPropertyRow(properties.getValueAt(i, 1), i);
+					}
+				} else if (event.getType() != TableModelEvent.UPDATE || event.getColumn() != 0) {
+					propertyRowsValid = false;
+				}
+			}
+			
+		});
+		
 		properties.addTableModelListener(new TableModelListener() {
 			
 			@Override
@@ -650,13 +1121,14 @@ public final class JointsEditorPanel extends JPanel {
 				if (event.getType() == TableModelEvent.UPDATE) {
 					final Object key = properties.getValueAt(event.getFirstRow(), 0);
 					
-					if (KEY_CONFIG_SEGMENT_THICKNESS.equals(key)) {
+					if (KEY_CONFIG_SOLVE_CONSTRAINTS.equals(key)) {
+						getSimulation().setSolving("true".equalsIgnoreCase(properties.getValueAt(event.getFirstRow(), 1).toString()));
+					} else if (KEY_CONFIG_SEGMENT_THICKNESS.equals(key)) {
 						final String value = properties.getValueAt(event.getFirstRow(), 1).toString();
 						final JLView view = getScene().getView();
-						final Graphics2D canvasGraphics = view.getCanvas().getGraphics();
 						
-						canvasGraphics.setStroke(new BasicStroke(parseFloat(value) / max(view.getWidth(), view.getHeight())));
-						getScene().getIds().getGraphics().setStroke(canvasGraphics.getStroke());
+						view.setStroke(new BasicStroke(parseFloat(value) / max(view.getWidth(), view.getHeight())));
+						getScene().getIds().getGraphics().setStroke(view.getCanvas().getGraphics().getStroke());
 						
 						scheduleUpdate();
 					}
@@ -674,9 +1146,9 @@ public final class JointsEditorPanel extends JPanel {
 				if (!event.getValueIsAdjusting()) {
 					getSelection().clear();
 					
-					final int n = properties.getRowCount();
+					final int n = min(selectionModel.getMaxSelectionIndex() + 1, properties.getRowCount());
 					
-					for (int i = 0; i < n; ++i) {
+					for (int i = max(0, selectionModel.getMinSelectionIndex()); i < n; ++i) {
 						if (selectionModel.isSelectedIndex(i)) {
 							final Object value = properties.getValueAt(i, 1);
 							
@@ -698,7 +1170,7 @@ public final class JointsEditorPanel extends JPanel {
 						}
 					}
 					
-					scheduleUpdate();
+					scheduleOverlayUpdate();
 				}
 			}
 			
@@ -706,9 +1178,7 @@ public final class JointsEditorPanel extends JPanel {
 	}
 	
 	public final int addJoint(final Point3f location) {
-		final int index = getJointLocations().size();
-		
-		this.getJointLocations().add(location);
+		final int index = this.getModel().addJoint(location);
 		
 		((DefaultTableModel) this.getControlPanel().getPropertyTable().getModel()).addRow(
 				array(list("joints/" + index), location));
@@ -719,29 +1189,26 @@ public final class JointsEditorPanel extends JPanel {
 	public final Segment segment(final int joint1Id, final int joint2Id) {
 		final int id1 = min(joint1Id, joint2Id);
 		final int id2 = max(joint1Id, joint2Id);
-		final Segment segment = new Segment(point(id1), point(id2));
-		final int index = this.getSegments().indexOf(segment);
 		
-		return this.getSegments().get(index);
+		return this.getModel().getSegment(point(id1), point(id2));
 	}
 	
 	public final Segment addSegmentIfAbsent(final int joint1Id, final int joint2Id) {
 		final int id1 = min(joint1Id, joint2Id);
 		final int id2 = max(joint1Id, joint2Id);
-		final Segment segment = new Segment(point(id1), point(id2));
 		
 		{
-			final int index = this.getSegments().indexOf(segment);
+			final Segment segment = this.getModel().getSegment(point(id1), point(id2));
 			
-			if (0 <= index) {
-				return this.getSegments().get(index);
+			if (segment != null) {
+				return segment;
 			}
 		}
 		
 		{
-			final int index = getSegments().size();
+			final Segment segment = this.getModel().addSegment(new Segment(point(id1), point(id2)));
+			final int index = this.getModel().indexOf(segment);
 			
-			getSegments().add(segment);
 			((DefaultTableModel) getControlPanel().getPropertyTable().getModel()).addRow(
 					array(list("segments/" + index), segment));
 			addToSelection(segmentId(index));
@@ -760,6 +1227,34 @@ public final class JointsEditorPanel extends JPanel {
 	
 	static final List<String> KEY_CONFIG_SOLVE_CONSTRAINTS = Arrays.asList("config/solve_constraints");
 	
+	private static final AffineTransform IDENTITY = new AffineTransform();
+	
+	/**
+	 * In milliseconds.
+	 */
+	public static final int METRICS_PERIOD = 250;
+	
+	private static final Font METRICS_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+	
+	private static final String METRICS_FORMAT = "%-26s %9s %9s %9s ";
+	
+	private static final Color METRICS_BACKGROUND = new Color(0, 0, 0, 192);
+	
+	private static final int METRICS_MARGIN = 4;
+	
+	private static final int METRICS_HISTOGRAM_BUCKETS = 20;
+	
+	private static final int METRICS_HISTOGRAM_BAR_WIDTH = 4;
+	
+	/**
+	 * @param series
+	 * @param value
+	 * @return <code>value</code> in milliseconds if <code>series</code> is a timer
+	 */
+	static final String format(final Metrics.Series series, final long value) {
+		return series.isTime() ? String.format("%.3f", value / 1E6) : Long.toString(value);
+	}
+	
 	public static final Point3f center(final List<Point3f> points) {
 		final Point3f result = new Point3f();
 		
@@ -820,13 +1315,32 @@ public final class JointsEditorPanel extends JPanel {
 	}
 	
 	public static final Color decodeColor(final String color) {
-		return new Color(Long.decode(color).intValue(), true);
+		return JointsModel.decodeColor(color);
 	}
 	
 	public static final float middle(final float a, final float b) {
 		return (a + b) / 2F;
 	}
 	
+	/**
+	 * @param locations
+	 * <br>Packed coordinates (x, y, z per joint)
+	 * @param offset1
+	 * @param offset2
+	 * @return the distance between the joints at <code>offset1</code> and <code>offset2</code> in <code>locations</code>
+	 */
+	public static final double distance(final float[] locations, final int offset1, final int offset2) {
+		final double dx = locations[offset2 + 0] - locations[offset1 + 0];
+		final double dy = locations[offset2 + 1] - locations[offset1 + 1];
+		final double dz = locations[offset2 + 2] - locations[offset1 + 2];
+		
+		return sqrt(dx * dx + dy * dy + dz * dz);
+	}
+	
+	static final boolean isProjected(final float[] projected, final int offset) {
+		return 0 <= offset && offset + 2 < projected.length && !Float.isNaN(projected[offset]);
+	}
+	
 	static final boolean isJoint(final int id) {
 		return (id & 1) == 1;
 	}
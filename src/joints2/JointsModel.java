@@ -1,6 +1,5 @@
 package joints2;
 
-import static java.lang.Math.random;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static multij.tools.Tools.*;
@@ -9,13 +8,16 @@ import static multij.xml.XMLTools.getNodes;
 import static multij.xml.XMLTools.getNumber;
 import static multij.xml.XMLTools.getString;
 
+import java.awt.Color;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.script.ScriptEngine;
@@ -31,6 +33,13 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
+ * Joints and segments are indexed incrementally (joint and segment indices, incident segments per joint);
+ * structural changes should go through {@link #addJoint(Point3f)}, {@link #addSegment(Segment)},
+ * {@link #removeJoints(Collection)}, {@link #removeSegments(Collection)} and {@link #clear()},
+ * or be followed by {@link #reindex()}.
+ * <br>These methods and {@link #applyConstraints(AtomicBoolean)} synchronize on the model,
+ * so that a {@link Simulation} can step it while another thread edits its structure.
+ * 
  * @author codistmonk (creation 2015-07-31)
  */
 public final class JointsModel implements Serializable {
@@ -39,21 +48,57 @@ public final class JointsModel implements Serializable {
 	
 	private final List<Point3f> jointLocations;
 	
-	private final Map<Point3f, Point3f> previousJointLocations;
-	
 	private final List<Segment> segments;
 	
 	private final Map<String, Group> groups;
 	
 	private final ScriptEngine scriptEngine;
 	
+	private final JointsSolver solver;
+	
+	private final Map<Point3f, Integer> jointIndices;
+	
+	private final Map<Segment, Integer> segmentIndices;
+	
+	private final Map<Point3f, List<Segment>> incidentSegments;
+	
+	private long modificationCount;
+	
+	private transient int[] endpoints;
+	
+	private transient long endpointsModificationCount;
+	
+	/**
+	 * Creates a model whose joint locations are shared with <code>scene</code> under the key <code>name</code>.
+	 * 
+	 * @param scene
+	 * @param name
+	 */
 	public JointsModel(final Scene scene, final String name) {
+		this(name, scene.getLocations().computeIfAbsent(name, k -> new ArrayList<>()));
+	}
+	
+	/**
+	 * Creates a model that is not attached to any scene, for headless use.
+	 * 
+	 * @param name
+	 */
+	public JointsModel(final String name) {
+		this(name, new ArrayList<>());
+	}
+	
+	private JointsModel(final String name, final List<Point3f> jointLocations) {
 		this.name = name;
-		this.jointLocations = scene.getLocations().computeIfAbsent(name, k -> new ArrayList<>());
-		this.previousJointLocations = new IdentityHashMap<>();
+		this.jointLocations = jointLocations;
 		this.segments = new ArrayList<>();
 		this.groups = new LinkedHashMap<>();
 		this.scriptEngine = Scripting.getEngine("");
+		this.solver = new JointsSolver(this);
+		this.jointIndices = new IdentityHashMap<>();
+		this.segmentIndices = new IdentityHashMap<>();
+		this.incidentSegments = new IdentityHashMap<>();
+		
+		this.reindex();
 	}
 	
 	public final String getName() {
@@ -72,6 +117,10 @@ public final class JointsModel implements Serializable {
 		return this.groups;
 	}
 	
+	public final JointsSolver getSolver() {
+		return this.solver;
+	}
+	
 	public final ScriptEngine getScriptEngine() {
 		return this.scriptEngine;
 	}
@@ -84,13 +133,206 @@ public final class JointsModel implements Serializable {
 		}
 	}
 	
-	public final JointsModel clear() {
+	/**
+	 * @return a counter incremented by every structural change made through this object
+	 */
+	public final long getModificationCount() {
+		return this.modificationCount;
+	}
+	
+	/**
+	 * @return the joint indices of the segment endpoints (2 per segment, in segment order),
+	 * cached until the next structural change
+	 */
+	public final int[] getEndpoints() {
+		int[] result = this.endpoints;
+		
+		if (result == null || this.endpointsModificationCount != this.modificationCount) {
+			final List<Segment> segments = this.getSegments();
+			final int n = segments.size();
+			
+			if (result == null || result.length != 2 * n) {
+				result = new int[2 * n];
+				this.endpoints = result;
+			}
+			
+			for (int i = 0; i < n; ++i) {
+				final Segment segment = segments.get(i);
+				
+				result[2 * i + 0] = this.indexOf(segment.getPoint1());
+				result[2 * i + 1] = this.indexOf(segment.getPoint2());
+			}
+			
+			this.endpointsModificationCount = this.modificationCount;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @param joint
+	 * @return the index of <code>joint</code> in {@link #getJointLocations()} (by identity), or <code>-1</code>
+	 */
+	public final int indexOf(final Point3f joint) {
+		final Integer result = this.jointIndices.get(joint);
+		
+		return result == null ? -1 : result;
+	}
+	
+	/**
+	 * @param segment
+	 * @return the index of <code>segment</code> in {@link #getSegments()} (by identity), or <code>-1</code>
+	 */
+	public final int indexOf(final Segment segment) {
+		final Integer result = this.segmentIndices.get(segment);
+		
+		return result == null ? -1 : result;
+	}
+	
+	/**
+	 * @param joint
+	 * @return an unmodifiable view of the segments having <code>joint</code> as an endpoint
+	 */
+	public final Collection<Segment> getIncidentSegments(final Point3f joint) {
+		final List<Segment> segments = this.incidentSegments.get(joint);
+		
+		return segments == null ? Collections.emptyList() : Collections.unmodifiableList(segments);
+	}
+	
+	/**
+	 * @param point1
+	 * @param point2
+	 * @return the first segment added between <code>point1</code> and <code>point2</code> (in any order), or <code>null</code>
+	 */
+	public final Segment getSegment(final Point3f point1, final Point3f point2) {
+		for (final Segment segment : this.getIncidentSegments(point1)) {
+			if (segment.getPoint1() == point1 && segment.getPoint2() == point2
+					|| segment.getPoint1() == point2 && segment.getPoint2() == point1) {
+				return segment;
+			}
+		}
+		
+		return null;
+	}
+	
+	public final synchronized int addJoint(final Point3f joint) {
+		final int result = this.getJointLocations().size();
+		
+		this.getJointLocations().add(joint);
+		this.jointIndices.put(joint, result);
+		++this.modificationCount;
+		
+		return result;
+	}
+	
+	public final synchronized Segment addSegment(final Segment segment) {
+		this.segmentIndices.put(segment, this.getSegments().size());
+		this.getSegments().add(segment);
+		this.link(segment);
+		++this.modificationCount;
+		
+		return segment;
+	}
+	
+	public final synchronized Segment addSegmentIfAbsent(final Point3f point1, final Point3f point2) {
+		final Segment result = this.getSegment(point1, point2);
+		
+		return result != null ? result : this.addSegment(new Segment(point1, point2));
+	}
+	
+	public final synchronized JointsModel removeSegments(final Collection<Segment> segments) {
+		if (!segments.isEmpty()) {
+			final Set<Segment> removed = identitySet(segments);
+			
+			this.getSegments().removeIf(removed::contains);
+			removed.forEach(this::unlink);
+			this.reindexSegments();
+			++this.modificationCount;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Removes <code>joints</code> and their incident segments.
+	 * 
+	 * @param joints
+	 * @return <code>this</code>
+	 */
+	public final synchronized JointsModel removeJoints(final Collection<Point3f> joints) {
+		if (!joints.isEmpty()) {
+			final Set<Point3f> removed = identitySet(joints);
+			final List<Segment> segments = new ArrayList<>();
+			
+			removed.forEach(joint -> segments.addAll(this.getIncidentSegments(joint)));
+			
+			this.removeSegments(segments);
+			this.getJointLocations().removeIf(removed::contains);
+			removed.forEach(this.incidentSegments::remove);
+			this.reindexJoints();
+			++this.modificationCount;
+		}
+		
+		return this;
+	}
+	
+	public final synchronized JointsModel clear() {
 		getJointLocations().clear();
 		getSegments().clear();
 		
+		return this.reindex();
+	}
+	
+	/**
+	 * Rebuilds all indices from {@link #getJointLocations()} and {@link #getSegments()}.
+	 * 
+	 * @return <code>this</code>
+	 */
+	public final synchronized JointsModel reindex() {
+		this.reindexJoints();
+		this.reindexSegments();
+		this.incidentSegments.clear();
+		this.getSegments().forEach(this::link);
+		++this.modificationCount;
+		
 		return this;
 	}
 	
+	private final void reindexJoints() {
+		final List<Point3f> joints = this.getJointLocations();
+		final int n = joints.size();
+		
+		this.jointIndices.clear();
+		
+		for (int i = 0; i < n; ++i) {
+			this.jointIndices.put(joints.get(i), i);
+		}
+	}
+	
+	private final void reindexSegments() {
+		final List<Segment> segments = this.getSegments();
+		final int n = segments.size();
+		
+		this.segmentIndices.clear();
+		
+		for (int i = 0; i < n; ++i) {
+			this.segmentIndices.put(segments.get(i), i);
+		}
+	}
+	
+	private final void link(final Segment segment) {
+		this.incidentSegments.computeIfAbsent(segment.getPoint1(), k -> new ArrayList<>(4)).add(segment);
+		
+		if (segment.getPoint2() != segment.getPoint1()) {
+			this.incidentSegments.computeIfAbsent(segment.getPoint2(), k -> new ArrayList<>(4)).add(segment);
+		}
+	}
+	
+	private final void unlink(final Segment segment) {
+		unlink(this.incidentSegments.get(segment.getPoint1()), segment);
+		unlink(this.incidentSegments.get(segment.getPoint2()), segment);
+	}
+	
 	public final JointsModel addFromXML(final Document xml) {
 		final List<Point3f> newJointLocations = getNodes(xml, "/model/joint").stream().map(n ->
 				new Point3f(getFloat(n, "@x"), getFloat(n, "@y"), getFloat(n, "@z")))
@@ -104,8 +346,8 @@ public final class JointsModel implements Serializable {
 						c -> "joint".equals(c.getNodeName()) ? newJointLocations.get(getInt(c, "@index")) : newSegments.get(getInt(c, "@index"))).collect(toList()))))
 						.collect(toMap(Pair::getFirst, Pair::getSecond));
 		
-		this.getJointLocations().addAll(newJointLocations);
-		this.getSegments().addAll(newSegments);
+		newJointLocations.forEach(this::addJoint);
+		newSegments.forEach(this::addSegment);
 		this.getGroups().putAll(newGroups);
 		
 		return this;
@@ -126,8 +368,8 @@ public final class JointsModel implements Serializable {
 		for (final Segment segment : getSegments()) {
 			final Element element = (Element) root.appendChild(result.createElement("segment"));
 			
-			element.setAttribute("point1", Integer.toString(indexOf(segment.getPoint1(), getJointLocations())));
-			element.setAttribute("point2", Integer.toString(indexOf(segment.getPoint2(), getJointLocations())));
+			element.setAttribute("point1", Integer.toString(this.indexOf(segment.getPoint1())));
+			element.setAttribute("point2", Integer.toString(this.indexOf(segment.getPoint2())));
 			element.setAttribute("constraint", segment.getConstraint());
 			element.setAttribute("style", segment.getStyleAsString());
 		}
@@ -142,11 +384,11 @@ public final class JointsModel implements Serializable {
 				if (object instanceof Segment) {
 					final Element child = (Element) element.appendChild(result.createElement("segment"));
 					
-					child.setAttribute("index", Integer.toString(this.getSegments().indexOf(object)));
+					child.setAttribute("index", Integer.toString(this.indexOf((Segment) object)));
 				} else {
 					final Element child = (Element) element.appendChild(result.createElement("joint"));
 					
-					child.setAttribute("index", Integer.toString(this.getJointLocations().indexOf(object)));
+					child.setAttribute("index", Integer.toString(this.indexOf((Point3f) object)));
 				}
 			}
 		}
@@ -154,53 +396,24 @@ public final class JointsModel implements Serializable {
 		return result;
 	}
 	
-	public final void applyConstraints(final AtomicBoolean updateNeeded) {
-		final float momentum = 0.4F;
-		final float springiness = 0.9F;
-		final int rigidity = 32;
+	/**
+	 * @param updateNeeded
+	 * <br>Set to <code>true</code> if the solver needs more iterations
+	 * @return <code>true</code> if joints may have moved
+	 */
+	public final synchronized boolean applyConstraints(final AtomicBoolean updateNeeded) {
+		final long start = Metrics.start();
 		
-		for (int i = 0; i < rigidity; ++i) {
-			for (final Point3f point : this.getJointLocations()) {
-				final Point3f previous = this.previousJointLocations.computeIfAbsent(point, p -> new Point3f(p));
-				
-				point.x += (point.x - previous.x) * momentum;
-				point.y += (point.y - previous.y) * momentum;
-				point.z += (point.z - previous.z) * momentum;
-				
-				previous.set(point);
-			}
-			
-			for (final Segment segment : this.getSegments()) {
-				final Point3f point1 = segment.getPoint1();
-				final Point3f point2 = segment.getPoint2();
-				final double constraint = this.evaluateConstraint(segment);
-				double distance = point1.distance(point2);
-				
-				if (distance != constraint) {
-					final Point3f middle = JointsEditorPanel.middle(point1, point2);
-					
-					if (distance == 0.0) {
-						final Point3f delta = new Point3f((float) (random() - 0.5), (float) (random() - 0.5), (float) (random() - 0.5));
-						point1.add(delta);
-						point2.sub(delta);
-						
-						distance = point1.distance(point2);
-					}
-					
-					if (distance != 0.0) {
-						final float k = (float) (lerp(distance, springiness, constraint) / distance);
-						
-						middle.scale(1F - k);
-						point1.scale(k);
-						point1.add(middle);
-						point2.scale(k);
-						point2.add(middle);
-					}
-					
-					updateNeeded.set(true);
-				}
-			}
+		if (this.getSolver().load().solve()) {
+			updateNeeded.set(true);
 		}
+		
+		this.getSolver().store();
+		
+		SOLVER_METRICS.stop(start);
+		SOLVER_ITERATION_METRICS.record(this.getSolver().getLastIterationCount());
+		
+		return 0 < this.getSolver().getLastIterationCount();
 	}
 	
 	public final double evaluateConstraint(final Segment segment) {
@@ -215,6 +428,10 @@ public final class JointsModel implements Serializable {
 	
 	private static final long serialVersionUID = -7402680801009890782L;
 	
+	private static final Metrics.Series SOLVER_METRICS = Metrics.timer("model.solver");
+	
+	private static final Metrics.Series SOLVER_ITERATION_METRICS = Metrics.counter("model.solver.iterations");
+	
 	public static final int indexOf(final Object needle, final List<? extends Object> haystack) {
 		int i = 0;
 		
@@ -229,6 +446,23 @@ public final class JointsModel implements Serializable {
 		return -1;
 	}
 	
+	public static final <E> Set<E> identitySet(final Collection<? extends E> elements) {
+		final Set<E> result = Collections.newSetFromMap(new IdentityHashMap<>(elements.size()));
+		
+		result.addAll(elements);
+		
+		return result;
+	}
+	
+	/**
+	 * Removes <code>segment</code> from <code>segments</code> by identity, since equal segments may connect the same joints.
+	 */
+	private static final void unlink(final List<Segment> segments, final Segment segment) {
+		if (segments != null) {
+			segments.removeIf(s -> s == segment);
+		}
+	}
+	
 	public static final double lerp(final double a, final double t, final double b) {
 		return a * (1.0 - t) + b * t;
 	}
@@ -257,6 +491,10 @@ public final class JointsModel implements Serializable {
 		return getString(segmentNode, "@constraint");
 	}
 	
+	public static final Color decodeColor(final String color) {
+		return new Color(Long.decode(color).intValue(), true);
+	}
+	
 	/**
 	 * @author codistmonk (creation 2015-07-30)
 	 */
@@ -268,23 +506,42 @@ public final class JointsModel implements Serializable {
 		
 		private String constraint;
 		
+		private transient ConstraintExpression compiledConstraint;
+		
 		private final Map<Object, Object> style;
 		
+		private transient boolean styleDecoded;
+		
+		private transient boolean visible;
+		
+		private transient Color color;
+		
 		public Segment(final Point3f point1, final Point3f point2) {
+			this(point1, point2, "" + point1.distance(point2));
+		}
+		
+		public Segment(final Point3f point1, final Point3f point2, final String constraint) {
 			this.point1 = point1;
 			this.point2 = point2;
 			this.style = new LinkedHashMap<>();
 			
-			this.setConstraint("" + point1.distance(point2));
+			this.setConstraint(constraint);
 			this.setStyle("visible", "true").setStyle("color", "#FF0000FF");
 		}
 		
 		public final double evaluateConstraint(final ScriptEngine scriptEngine) {
-			try {
-				return ((Number) scriptEngine.eval(this.getConstraint())).doubleValue();
-			} catch (final ScriptException exception) {
-				throw unchecked(exception);
+			return this.getCompiledConstraint().evaluate(scriptEngine);
+		}
+		
+		public final ConstraintExpression getCompiledConstraint() {
+			ConstraintExpression result = this.compiledConstraint;
+			
+			if (result == null) {
+				result = ConstraintExpression.compile(this.getConstraint());
+				this.compiledConstraint = result;
 			}
+			
+			return result;
 		}
 		
 		public final String getConstraint() {
@@ -297,6 +554,7 @@ public final class JointsModel implements Serializable {
 		
 		public final Segment setConstraint(final String constraint) {
 			this.constraint = constraint;
+			this.compiledConstraint = null;
 			
 			return this;
 		}
@@ -332,10 +590,36 @@ public final class JointsModel implements Serializable {
 		
 		public final Segment setStyle(final Object key, final Object value) {
 			this.getStyle().put(key, value);
+			this.styleDecoded = false;
 			
 			return this;
 		}
 		
+		public final boolean isVisible() {
+			this.decodeStyle();
+			
+			return this.visible;
+		}
+		
+		public final Color getColor() {
+			this.decodeStyle();
+			
+			return this.color;
+		}
+		
+		/**
+		 * Caches the values of the "visible" and "color" entries for rendering.
+		 * <br>The cache is invalidated by {@link #setStyle(Object, Object)},
+		 * so changes must not be made directly through {@link #getStyle()}.
+		 */
+		private final void decodeStyle() {
+			if (!this.styleDecoded) {
+				this.visible = "true".equalsIgnoreCase(this.getStyle("visible"));
+				this.color = decodeColor(this.getStyle("color"));
+				this.styleDecoded = true;
+			}
+		}
+		
 		public final Segment updateStyle(final Object key, final Object value) {
 			return value != null && !value.toString().isEmpty() ? this.setStyle(key, value) : this;
 		}
@@ -368,7 +652,7 @@ public final class JointsModel implements Serializable {
 		public final String toString() {
 			return "constraint=" + this.getConstraint() + " style=" + this.getStyle();
 		}
-
+		
 		private static final long serialVersionUID = 2645415714139697519L;
 		
 	}
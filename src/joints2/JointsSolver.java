@@ -0,0 +1,2418 @@
+package joints2;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.random;
+import static java.lang.Math.sqrt;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import javax.vecmath.Point3f;
+
+import joints2.JointsModel.Segment;
+
+/**
+ * Structure-of-arrays relaxation core for {@link JointsModel}.
+ * <br>Joint locations, previous locations and segment endpoints are packed into flat arrays
+ * (3 floats per joint, 2 joint indices per segment) so that the momentum and spring passes run without allocation.
+ * <br>{@link #load()} copies the model into the arrays (rebuilding the topology only when the model's joint or segment lists changed),
+ * {@link #solve()} works on the arrays only, and {@link #store()} copies the locations back into the model's {@link Point3f}s.
+ * <br>With a parallelism above 1, segments are greedily colored so that no two segments of a color share a joint,
+ * and each color is relaxed as an independent batch on a {@link ForkJoinPool}.
+ * <br>Joints are grouped into islands (connected components of the segment graph); an island whose joints all moved
+ * less than {@link #getSleepThreshold()} during {@link #getSleepFrames()} consecutive calls to {@link #solve()} is put to sleep
+ * and skipped until one of its joints is moved from outside, one of its constraints changes, or {@link #wake(Point3f)} is called.
+ * <br>Joints held rigidly together by constant segments are grouped into rigid clusters (see {@link #setCollapsingRigidClusters(boolean)}):
+ * the segments inside a cluster are no longer relaxed one by one, and the cluster is moved as a single body instead.
+ * <br>Islands without cycles are solved as trees (see {@link #setSolvingTrees(boolean)}) instead of being relaxed.
+ *
+ * @author codistmonk (creation 2015-08-03)
+ */
+public final class JointsSolver implements Serializable {
+	
+	private final JointsModel model;
+	
+	private float momentum;
+	
+	private float springiness;
+	
+	private Policy policy;
+	
+	private int parallelism;
+	
+	private boolean deterministic;
+	
+	private transient ForkJoinPool pool;
+	
+	private long iteration;
+	
+	private int lastIterationCount;
+	
+	private double lastResidual;
+	
+	private float sleepThreshold;
+	
+	private int sleepFrames;
+	
+	private Point3f[] joints;
+	
+	private Segment[] modelSegments;
+	
+	private Segment[] segments;
+	
+	private int jointCount;
+	
+	private int segmentCount;
+	
+	private float[] locations;
+	
+	private float[] previousLocations;
+	
+	private int[] endpoints;
+	
+	private float[] constraints;
+	
+	private int variableSegmentCount;
+	
+	private int[] batchOffsets;
+	
+	private int[] batchedSegments;
+	
+	private long modificationCount;
+	
+	private Map<Point3f, Integer> jointIndices;
+	
+	private float[] startLocations;
+	
+	private int[] jointIslands;
+	
+	private int islandCount;
+	
+	private boolean[] awakeIslands;
+	
+	private int awakeIslandCount;
+	
+	private int[] islandStillFrames;
+	
+	private float[] islandMotions;
+	
+	private final Set<Point3f> pinnedJoints;
+	
+	private boolean[] pinned;
+	
+	private int pinnedCount;
+	
+	private boolean pinsChanged;
+	
+	private boolean collapsingRigidClusters;
+	
+	private boolean[] constantSegments;
+	
+	private boolean structureChanged;
+	
+	private int[] activeSegments;
+	
+	private int activeSegmentCount;
+	
+	private int clusterCount;
+	
+	private int[] clusterOffsets;
+	
+	private int[] clusterJoints;
+	
+	private float[] clusterShapes;
+	
+	private double[] clusterRotations;
+	
+	private final double[] fitBuffer;
+	
+	private boolean[] dragged;
+	
+	private boolean solvingTrees;
+	
+	private int treeCount;
+	
+	private boolean[] treeIslands;
+	
+	private int[] islandOffsets;
+	
+	private int[] islandJoints;
+	
+	private int[] treeIncidenceOffsets;
+	
+	private int[] treeIncidences;
+	
+	private int awakeTreeCount;
+	
+	private int[] treeStarts;
+	
+	private boolean[] multiplyAnchoredTrees;
+	
+	private float[] treeResiduals;
+	
+	private float[] treeTolerances;
+	
+	/**
+	 * Indexed by island; set for the trees that are relaxed until their island sleeps.
+	 */
+	private boolean[] relaxedTrees;
+	
+	private int[] treeOrder;
+	
+	private int[] treeParents;
+	
+	private int[] treeParentSegments;
+	
+	private boolean[] anchoredSubtrees;
+	
+	private float[] treeSums;
+	
+	private int[] treeCounts;
+	
+	public JointsSolver(final JointsModel model) {
+		this.model = model;
+		this.momentum = 0.4F;
+		this.springiness = 0.9F;
+		this.policy = new Policy();
+		this.sleepThreshold = 1E-5F;
+		this.sleepFrames = 16;
+		this.jointIndices = new IdentityHashMap<>();
+		this.startLocations = new float[0];
+		this.jointIslands = new int[0];
+		this.awakeIslands = new boolean[0];
+		this.islandStillFrames = new int[0];
+		this.islandMotions = new float[0];
+		this.parallelism = 1;
+		this.joints = new Point3f[0];
+		this.modelSegments = new Segment[0];
+		this.segments = new Segment[0];
+		this.locations = new float[0];
+		this.previousLocations = new float[0];
+		this.endpoints = new int[0];
+		this.constraints = new float[0];
+		this.pinnedJoints = Collections.newSetFromMap(new IdentityHashMap<>());
+		this.pinned = new boolean[0];
+		this.collapsingRigidClusters = true;
+		this.constantSegments = new boolean[0];
+		this.activeSegments = new int[0];
+		this.clusterOffsets = new int[1];
+		this.clusterJoints = new int[0];
+		this.clusterShapes = new float[0];
+		this.clusterRotations = new double[0];
+		this.fitBuffer = new double[24];
+		this.dragged = new boolean[0];
+		this.solvingTrees = true;
+		this.treeIslands = new boolean[0];
+		this.treeStarts = new int[1];
+		this.multiplyAnchoredTrees = new boolean[0];
+		this.treeResiduals = new float[0];
+		this.treeTolerances = new float[0];
+		this.relaxedTrees = new boolean[0];
+	}
+	
+	public final JointsModel getModel() {
+		return this.model;
+	}
+	
+	public final float getMomentum() {
+		return this.momentum;
+	}
+	
+	public final JointsSolver setMomentum(final float momentum) {
+		this.momentum = momentum;
+		
+		return this;
+	}
+	
+	public final float getSpringiness() {
+		return this.springiness;
+	}
+	
+	public final JointsSolver setSpringiness(final float springiness) {
+		this.springiness = springiness;
+		
+		return this;
+	}
+	
+	public final Policy getPolicy() {
+		return this.policy;
+	}
+	
+	public final JointsSolver setPolicy(final Policy policy) {
+		this.policy = policy;
+		
+		return this;
+	}
+	
+	/**
+	 * @return the number of iterations performed by the last call to {@link #solve()}
+	 */
+	public final int getLastIterationCount() {
+		return this.lastIterationCount;
+	}
+	
+	/**
+	 * @return the largest constraint violation measured during the last iteration of the last call to {@link #solve()}
+	 */
+	public final double getLastResidual() {
+		return this.lastResidual;
+	}
+	
+	public final float getSleepThreshold() {
+		return this.sleepThreshold;
+	}
+	
+	/**
+	 * @param sleepThreshold
+	 * <br>Largest joint displacement per call to {@link #solve()} considered as rest; <code>0</code> disables sleeping
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver setSleepThreshold(final float sleepThreshold) {
+		this.sleepThreshold = sleepThreshold;
+		
+		return this;
+	}
+	
+	public final int getSleepFrames() {
+		return this.sleepFrames;
+	}
+	
+	public final JointsSolver setSleepFrames(final int sleepFrames) {
+		this.sleepFrames = sleepFrames;
+		
+		return this;
+	}
+	
+	public final int getIslandCount() {
+		return this.islandCount;
+	}
+	
+	public final int getAwakeIslandCount() {
+		return this.awakeIslandCount;
+	}
+	
+	/**
+	 * @return <code>true</code> if all islands sleep and all constraints are constant as of the last {@link #solve()},
+	 * so that solving again changes nothing until the model is edited
+	 */
+	public final boolean isIdle() {
+		return this.awakeIslandCount == 0 && this.variableSegmentCount == 0;
+	}
+	
+	public final boolean isAwake(final Point3f joint) {
+		final Integer index = this.jointIndices.get(joint);
+		
+		return index == null || this.awakeIslands[this.jointIslands[index]];
+	}
+	
+	/**
+	 * Wakes up the island containing <code>joint</code>, if it is known to this solver.
+	 * 
+	 * @param joint
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver wake(final Point3f joint) {
+		final Integer index = this.jointIndices.get(joint);
+		
+		if (index != null) {
+			this.wakeIsland(this.jointIslands[index]);
+		}
+		
+		return this;
+	}
+	
+	public final boolean isPinned(final Point3f joint) {
+		return this.pinnedJoints.contains(joint);
+	}
+	
+	/**
+	 * Pins <code>joint</code>: the solver no longer moves it, and only moves the other endpoint of its segments.
+	 * <br>A pinned joint can still be moved in the model, e.g. to drag it along a path.
+	 * Segments between 2 pinned joints are ignored.
+	 * 
+	 * @param joint
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver pin(final Point3f joint) {
+		if (this.pinnedJoints.add(joint)) {
+			this.pinsChanged = true;
+			this.wake(joint);
+		}
+		
+		return this;
+	}
+	
+	public final JointsSolver unpin(final Point3f joint) {
+		if (this.pinnedJoints.remove(joint)) {
+			this.pinsChanged = true;
+			this.wake(joint);
+		}
+		
+		return this;
+	}
+	
+	public final JointsSolver unpinAll() {
+		if (!this.pinnedJoints.isEmpty()) {
+			this.pinnedJoints.clear();
+			this.pinsChanged = true;
+			this.wakeAll();
+		}
+		
+		return this;
+	}
+	
+	public final JointsSolver wakeAll() {
+		for (int i = 0; i < this.islandCount; ++i) {
+			this.wakeIsland(i);
+		}
+		
+		return this;
+	}
+	
+	public final int getParallelism() {
+		return this.parallelism;
+	}
+	
+	/**
+	 * @param parallelism
+	 * <br>Number of worker threads used to relax each batch; <code>1</code> keeps everything on the calling thread
+	 * <br>Range: <code>[1 .. Integer.MAX_VALUE]</code>
+	 * @return <code>this</code>
+	 */
+	public final synchronized JointsSolver setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException();
+		}
+		
+		if (this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+		
+		this.parallelism = parallelism;
+		
+		return this;
+	}
+	
+	public final boolean isDeterministic() {
+		return this.deterministic;
+	}
+	
+	/**
+	 * In deterministic mode, segments are always processed in color order (even with a parallelism of 1)
+	 * and coincident endpoints are separated with a seeded offset instead of {@link Math#random()},
+	 * so that results only depend on the initial state and not on the parallelism or thread scheduling.
+	 * 
+	 * @param deterministic
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver setDeterministic(final boolean deterministic) {
+		this.deterministic = deterministic;
+		
+		return this;
+	}
+	
+	/**
+	 * @return the number of segment batches, <code>0</code> if the segments have not been colored yet
+	 */
+	public final int getBatchCount() {
+		return this.batchOffsets == null ? 0 : this.batchOffsets.length - 1;
+	}
+	
+	public final boolean isCollapsingRigidClusters() {
+		return this.collapsingRigidClusters;
+	}
+	
+	/**
+	 * When enabled (the default), constant segments are searched for rigid clusters:
+	 * a cluster starts from a triangle of constant segments and grows by the joints that have constant segments
+	 * to 3 non-collinear joints of the cluster (tetrahedra), which determine their locations.
+	 * <br>The shape of each cluster is rebuilt from the constraint values when its topology or constants change;
+	 * redundant constant segments inside a cluster are assumed to agree with it.
+	 * During {@link #solve()}, each cluster is then a rigid body with 6 degrees of freedom:
+	 * after each relaxation pass, its joints are moved to the rotation and translation of its shape
+	 * that best fit their current locations, pinned joints excepted (they weigh {@link #PINNED_WEIGHT} in the fit).
+	 * <br>Clusters of less than {@link #MINIMUM_CLUSTER_SIZE} joints are left to relaxation,
+	 * and triangulated sheets can fold, so they only form clusters where they are braced.
+	 *
+	 * @param collapsingRigidClusters
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver setCollapsingRigidClusters(final boolean collapsingRigidClusters) {
+		if (this.collapsingRigidClusters != collapsingRigidClusters) {
+			this.collapsingRigidClusters = collapsingRigidClusters;
+			this.structureChanged = true;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * @return the number of rigid clusters found by the last call to {@link #solve()}
+	 */
+	public final int getClusterCount() {
+		return this.clusterCount;
+	}
+	
+	/**
+	 * @return the number of segments relaxed one by one, i.e. neither inside a rigid cluster nor in a tree
+	 */
+	public final int getActiveSegmentCount() {
+		return this.activeSegmentCount;
+	}
+	
+	public final boolean isSolvingTrees() {
+		return this.solvingTrees;
+	}
+	
+	/**
+	 * When enabled (the default), each island whose segments form a tree (chains, limbs, ropes...)
+	 * is solved with forward and backward reaching passes (FABRIK) instead of relaxation.
+	 * <br>The tree is rooted at a pinned joint, or else at a dragged joint (a joint moved in the model since the last {@link #store()}),
+	 * or else at its first joint.
+	 * Pinned and dragged joints are anchors: they stay where they were at the start of {@link #solve()}.
+	 * <br>The forward pass places each joint at the constrained distance from its parent, towards its current location,
+	 * going away from the root; it satisfies all the constraints of a tree with one anchor in one pass.
+	 * With other anchors, a backward pass first moves each joint leading to an anchor to the average of the locations
+	 * suggested by its children leading to anchors, going towards the root.
+	 * <br>These passes converge slowly or not at all when the anchors cannot all be reached (e.g. a taut chain
+	 * pinned at both ends and dragged in the middle): when an iteration leaves more than {@link #MAXIMUM_TREE_RESIDUAL_RATIO}
+	 * of the previous violation, such a tree is relaxed like a cyclic island until its island sleeps.
+	 * <br>Cyclic islands are still relaxed.
+	 *
+	 * @param solvingTrees
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver setSolvingTrees(final boolean solvingTrees) {
+		if (this.solvingTrees != solvingTrees) {
+			this.solvingTrees = solvingTrees;
+			this.structureChanged = true;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * @return the number of islands solved as trees, as of the last call to {@link #solve()}
+	 */
+	public final int getTreeCount() {
+		return this.treeCount;
+	}
+	
+	public final int getJointCount() {
+		return this.jointCount;
+	}
+	
+	public final int getSegmentCount() {
+		return this.segmentCount;
+	}
+	
+	/**
+	 * @return <code>3 * getJointCount()</code> packed coordinates (more if the array is oversized)
+	 */
+	public final float[] getLocations() {
+		return this.locations;
+	}
+	
+	/**
+	 * @return <code>2 * getSegmentCount()</code> packed joint indices (more if the array is oversized)
+	 */
+	public final int[] getEndpoints() {
+		return this.endpoints;
+	}
+	
+	/**
+	 * @return <code>getSegmentCount()</code> constraint values as evaluated by the last {@link #solve()}
+	 * (more if the array is oversized)
+	 */
+	public final float[] getConstraints() {
+		return this.constraints;
+	}
+	
+	/**
+	 * Synchronizes the arrays with the model: topology if the joint or segment lists changed, locations always.
+	 * <br>A joint moved since the last {@link #store()} is considered dragged until the next call to this method,
+	 * and its island is woken up if it was sleeping.
+	 *
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver load() {
+		final boolean topologyChanged = this.updateTopology();
+		
+		if (this.pinsChanged) {
+			this.updatePins();
+		}
+		
+		final Point3f[] joints = this.joints;
+		final float[] locations = this.locations;
+		final int[] jointIslands = this.jointIslands;
+		final boolean[] awakeIslands = this.awakeIslands;
+		final boolean[] dragged = this.dragged;
+		final int n = this.jointCount;
+		
+		for (int i = 0, j = 0; i < n; ++i, j += 3) {
+			final Point3f joint = joints[i];
+			final boolean moved = !topologyChanged && (locations[j + 0] != joint.x || locations[j + 1] != joint.y || locations[j + 2] != joint.z);
+			
+			dragged[i] = moved;
+			
+			if (moved && !awakeIslands[jointIslands[i]]) {
+				this.wakeIsland(jointIslands[i]);
+			}
+			
+			locations[j + 0] = joint.x;
+			locations[j + 1] = joint.y;
+			locations[j + 2] = joint.z;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Runs momentum and spring passes over the packed arrays until the {@link #getPolicy() policy} says to stop:
+	 * <br>after its maximum number of iterations, when the largest constraint violation falls below its tolerance,
+	 * or when its time budget is exhausted.
+	 * 
+	 * @return <code>true</code> if the final residual is above the absolute tolerance
+	 */
+	public final boolean solve() {
+		final long startNanoseconds = System.nanoTime();
+		final Policy policy = this.getPolicy();
+		final int maximumIterations = policy.getMaximumIterations();
+		final double absoluteTolerance = policy.getAbsoluteTolerance();
+		double tolerance = absoluteTolerance;
+		double residual = 0.0;
+		int i = 0;
+		
+		this.evaluateConstraints();
+		
+		if (this.structureChanged) {
+			this.updateClusters();
+		}
+		
+		if (this.awakeIslandCount == 0) {
+			this.lastIterationCount = 0;
+			this.lastResidual = 0.0;
+			
+			return false;
+		}
+		
+		this.orderTrees();
+		
+		System.arraycopy(this.locations, 0, this.startLocations, 0, 3 * this.jointCount);
+		
+		while (i < maximumIterations) {
+			this.applyMomentum();
+			residual = this.relax();
+			++i;
+			++this.iteration;
+			
+			if (i == 1) {
+				tolerance = max(absoluteTolerance, policy.getRelativeTolerance() * residual);
+			}
+			
+			if (residual <= tolerance || policy.getTimeBudget() <= System.nanoTime() - startNanoseconds) {
+				break;
+			}
+		}
+		
+		this.lastIterationCount = i;
+		this.lastResidual = residual;
+		
+		this.updateSleep();
+		
+		return absoluteTolerance < residual;
+	}
+	
+	/**
+	 * Copies the packed locations back into the model's {@link Point3f}s.
+	 *
+	 * @return <code>this</code>
+	 */
+	public final JointsSolver store() {
+		final Point3f[] joints = this.joints;
+		final float[] locations = this.locations;
+		final int n = this.jointCount;
+		
+		for (int i = 0, j = 0; i < n; ++i, j += 3) {
+			joints[i].set(locations[j + 0], locations[j + 1], locations[j + 2]);
+		}
+		
+		return this;
+	}
+	
+	private final void evaluateConstraints() {
+		final Segment[] segments = this.segments;
+		final float[] constraints = this.constraints;
+		final boolean[] constantSegments = this.constantSegments;
+		final int m = this.segmentCount;
+		final long start = Metrics.start();
+		int variableSegmentCount = 0;
+		
+		for (int i = 0; i < m; ++i) {
+			final float constraint = (float) this.getModel().evaluateConstraint(segments[i]);
+			final boolean constant = segments[i].getCompiledConstraint().isConstant();
+			
+			if (!constant) {
+				++variableSegmentCount;
+			}
+			
+			if (constant != constantSegments[i]) {
+				constantSegments[i] = constant;
+				this.structureChanged = true;
+			}
+			
+			if (constraint != constraints[i]) {
+				constraints[i] = constraint;
+				this.structureChanged |= constant;
+				this.wakeIsland(this.jointIslands[this.endpoints[2 * i]]);
+			}
+		}
+		
+		this.variableSegmentCount = variableSegmentCount;
+		
+		CONSTRAINT_METRICS.stop(start);
+	}
+	
+	private final void wakeIsland(final int island) {
+		this.islandStillFrames[island] = 0;
+		
+		if (!this.awakeIslands[island]) {
+			this.awakeIslands[island] = true;
+			++this.awakeIslandCount;
+		}
+	}
+	
+	private final void updateSleep() {
+		final float threshold = this.getSleepThreshold();
+		final int n = this.jointCount;
+		final float[] locations = this.locations;
+		final float[] startLocations = this.startLocations;
+		final int[] jointIslands = this.jointIslands;
+		final boolean[] awakeIslands = this.awakeIslands;
+		final float[] islandMotions = this.islandMotions;
+		
+		Arrays.fill(islandMotions, 0F);
+		
+		for (int i = 0, j = 0; i < n; ++i, j += 3) {
+			final int island = jointIslands[i];
+			
+			if (awakeIslands[island]) {
+				islandMotions[island] = max(islandMotions[island], max(abs(locations[j + 0] - startLocations[j + 0]),
+						max(abs(locations[j + 1] - startLocations[j + 1]), abs(locations[j + 2] - startLocations[j + 2]))));
+			}
+		}
+		
+		for (int i = 0; i < this.islandCount; ++i) {
+			if (awakeIslands[i]) {
+				if (islandMotions[i] < threshold) {
+					if (this.getSleepFrames() <= ++this.islandStillFrames[i]) {
+						awakeIslands[i] = false;
+						--this.awakeIslandCount;
+						this.relaxedTrees[i] = false;
+					}
+				} else {
+					this.islandStillFrames[i] = 0;
+				}
+			}
+		}
+	}
+	
+	private final void applyMomentum() {
+		final int n = 3 * this.jointCount;
+		
+		if (this.isParallel() && PARALLEL_THRESHOLD < n) {
+			this.getPool().invoke(new MomentumTask(0, n));
+		} else {
+			this.applyMomentum(0, n);
+		}
+	}
+	
+	final void applyMomentum(final int start, final int end) {
+		final float momentum = this.getMomentum();
+		final float[] locations = this.locations;
+		final float[] previousLocations = this.previousLocations;
+		final int[] jointIslands = this.jointIslands;
+		final boolean[] awakeIslands = this.awakeIslands;
+		final boolean[] pinned = this.pinnedCount == 0 ? null : this.pinned;
+		
+		for (int i = start; i < end; ++i) {
+			if (awakeIslands[jointIslands[i / 3]]) {
+				if (pinned != null && pinned[i / 3]) {
+					// A pinned joint must not carry the motion of its path over once it is released
+					previousLocations[i] = locations[i];
+				} else {
+					final float location = locations[i] + (locations[i] - previousLocations[i]) * momentum;
+					
+					locations[i] = location;
+					previousLocations[i] = location;
+				}
+			}
+		}
+	}
+	
+	private final float relax() {
+		if (this.isParallel() || this.isDeterministic()) {
+			final int[] batchOffsets = this.getBatchOffsets();
+			final int n = batchOffsets.length - 1;
+			float result = 0F;
+			
+			for (int i = 0; i < n; ++i) {
+				final int start = batchOffsets[i];
+				final int end = batchOffsets[i + 1];
+				
+				if (this.isParallel() && PARALLEL_THRESHOLD < end - start) {
+					result = max(result, this.getPool().invoke(new RelaxTask(start, end)));
+				} else {
+					result = max(result, this.relaxBatch(start, end));
+				}
+			}
+			
+			return max(result, max(this.projectClusters(), this.solveTrees()));
+		}
+		
+		final int[] endpoints = this.endpoints;
+		final int[] activeSegments = this.activeSegments;
+		final int m = this.activeSegmentCount;
+		float result = 0F;
+		
+		final int[] jointIslands = this.jointIslands;
+		final boolean[] awakeIslands = this.awakeIslands;
+		
+		for (int k = 0; k < m; ++k) {
+			final int i = activeSegments[k];
+			final int j = 2 * i;
+			
+			if (awakeIslands[jointIslands[endpoints[j]]]) {
+				result = max(result, this.relax(i, 3 * endpoints[j + 0], 3 * endpoints[j + 1], this.constraints[i]));
+			}
+		}
+		
+		return max(result, max(this.projectClusters(), this.solveTrees()));
+	}
+	
+	final float relaxBatch(final int start, final int end) {
+		final int[] batchedSegments = this.batchedSegments;
+		final int[] endpoints = this.endpoints;
+		float result = 0F;
+		
+		final int[] jointIslands = this.jointIslands;
+		final boolean[] awakeIslands = this.awakeIslands;
+		
+		for (int i = start; i < end; ++i) {
+			final int segment = batchedSegments[i];
+			
+			if (awakeIslands[jointIslands[endpoints[2 * segment]]]) {
+				result = max(result, this.relax(segment, 3 * endpoints[2 * segment + 0], 3 * endpoints[2 * segment + 1], this.constraints[segment]));
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return the constraint violation before the update
+	 */
+	private final float relax(final int segment, final int offset1, final int offset2, final float constraint) {
+		final boolean pinned1 = this.pinnedCount != 0 && this.pinned[offset1 / 3];
+		final boolean pinned2 = this.pinnedCount != 0 && this.pinned[offset2 / 3];
+		
+		if (pinned1 && pinned2) {
+			return 0F;
+		}
+		
+		final float[] locations = this.locations;
+		float x1 = locations[offset1 + 0];
+		float y1 = locations[offset1 + 1];
+		float z1 = locations[offset1 + 2];
+		float x2 = locations[offset2 + 0];
+		float y2 = locations[offset2 + 1];
+		float z2 = locations[offset2 + 2];
+		double distance = distance(x1, y1, z1, x2, y2, z2);
+		
+		if (distance == constraint) {
+			return 0F;
+		}
+		
+		final float result = (float) abs(distance - constraint);
+		
+		final float middleX = (x1 + x2) / 2F;
+		final float middleY = (y1 + y2) / 2F;
+		final float middleZ = (z1 + z2) / 2F;
+		
+		if (distance == 0.0) {
+			final long seed = this.iteration * 0x9E3779B97F4A7C15L + 3L * segment;
+			final boolean deterministic = this.isDeterministic();
+			final float dx = deterministic ? jitter(seed + 0L) : (float) (random() - 0.5);
+			final float dy = deterministic ? jitter(seed + 1L) : (float) (random() - 0.5);
+			final float dz = deterministic ? jitter(seed + 2L) : (float) (random() - 0.5);
+			
+			if (!pinned1) {
+				x1 += dx;
+				y1 += dy;
+				z1 += dz;
+			}
+			
+			if (!pinned2) {
+				x2 -= dx;
+				y2 -= dy;
+				z2 -= dz;
+			}
+			
+			distance = distance(x1, y1, z1, x2, y2, z2);
+		}
+		
+		if (distance != 0.0) {
+			final float k = (float) (JointsModel.lerp(distance, this.getSpringiness(), constraint) / distance);
+			final float l = 1F - k;
+			
+			if (pinned1) {
+				locations[offset2 + 0] = x1 + (x2 - x1) * k;
+				locations[offset2 + 1] = y1 + (y2 - y1) * k;
+				locations[offset2 + 2] = z1 + (z2 - z1) * k;
+			} else if (pinned2) {
+				locations[offset1 + 0] = x2 + (x1 - x2) * k;
+				locations[offset1 + 1] = y2 + (y1 - y2) * k;
+				locations[offset1 + 2] = z2 + (z1 - z2) * k;
+			} else {
+				locations[offset1 + 0] = x1 * k + middleX * l;
+				locations[offset1 + 1] = y1 * k + middleY * l;
+				locations[offset1 + 2] = z1 * k + middleZ * l;
+				locations[offset2 + 0] = x2 * k + middleX * l;
+				locations[offset2 + 1] = y2 * k + middleY * l;
+				locations[offset2 + 2] = z2 * k + middleZ * l;
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return <code>true</code> if the arrays were rebuilt
+	 */
+	private final boolean updateTopology() {
+		final List<Point3f> modelJoints = this.getModel().getJointLocations();
+		final List<Segment> modelSegments = this.getModel().getSegments();
+		
+		if (this.modificationCount == this.getModel().getModificationCount()
+				&& modelJoints.size() == this.jointCount && modelSegments.size() == this.modelSegments.length) {
+			return false;
+		}
+		
+		this.modificationCount = this.getModel().getModificationCount();
+		
+		if (sameElements(modelJoints, this.joints, this.jointCount) && sameElements(modelSegments, this.modelSegments, this.modelSegments.length)) {
+			return false;
+		}
+		
+		final Map<Point3f, Integer> oldIndices = this.jointIndices;
+		final float[] oldPreviousLocations = this.previousLocations;
+		final int n = modelJoints.size();
+		final Point3f[] joints = modelJoints.toArray(new Point3f[n]);
+		final float[] previousLocations = new float[3 * n];
+		
+		for (int i = 0, j = 0; i < n; ++i, j += 3) {
+			final Point3f joint = joints[i];
+			final Integer oldIndex = oldIndices.get(joint);
+			
+			if (oldIndex != null) {
+				System.arraycopy(oldPreviousLocations, 3 * oldIndex, previousLocations, j, 3);
+			} else {
+				previousLocations[j + 0] = joint.x;
+				previousLocations[j + 1] = joint.y;
+				previousLocations[j + 2] = joint.z;
+			}
+		}
+		
+		final Map<Point3f, Integer> newIndices = indices(joints, n);
+		final int m = modelSegments.size();
+		final Segment[] allSegments = modelSegments.toArray(new Segment[m]);
+		final Segment[] segments = new Segment[m];
+		final int[] endpoints = new int[2 * m];
+		int segmentCount = 0;
+		
+		for (final Segment segment : allSegments) {
+			final Integer index1 = newIndices.get(segment.getPoint1());
+			final Integer index2 = newIndices.get(segment.getPoint2());
+			
+			if (index1 != null && index2 != null) {
+				endpoints[2 * segmentCount + 0] = index1;
+				endpoints[2 * segmentCount + 1] = index2;
+				segments[segmentCount++] = segment;
+			}
+		}
+		
+		this.joints = joints;
+		this.jointCount = n;
+		this.locations = new float[3 * n];
+		this.previousLocations = previousLocations;
+		this.modelSegments = allSegments;
+		this.segments = segments;
+		this.segmentCount = segmentCount;
+		this.endpoints = endpoints;
+		this.constraints = new float[m];
+		this.constantSegments = new boolean[m];
+		this.structureChanged = true;
+		this.batchOffsets = null;
+		this.batchedSegments = null;
+		this.jointIndices = newIndices;
+		this.startLocations = new float[3 * n];
+		this.pinsChanged = true;
+		this.dragged = new boolean[n];
+		this.updateIslands();
+		
+		return true;
+	}
+	
+	/**
+	 * Packs the pins by joint index and forgets the pinned joints that are no longer in the model.
+	 */
+	private final void updatePins() {
+		final int n = this.jointCount;
+		
+		if (this.pinned.length != n) {
+			this.pinned = new boolean[n];
+		} else {
+			Arrays.fill(this.pinned, false);
+		}
+		
+		this.pinnedJoints.retainAll(this.jointIndices.keySet());
+		
+		for (final Point3f joint : this.pinnedJoints) {
+			this.pinned[this.jointIndices.get(joint)] = true;
+		}
+		
+		this.pinnedCount = this.pinnedJoints.size();
+		this.pinsChanged = false;
+	}
+	
+	/**
+	 * Union-find over the segment endpoints; every island starts awake.
+	 */
+	private final void updateIslands() {
+		final int n = this.jointCount;
+		final int m = this.segmentCount;
+		final int[] endpoints = this.endpoints;
+		final int[] parents = new int[n];
+		
+		for (int i = 0; i < n; ++i) {
+			parents[i] = i;
+		}
+		
+		for (int i = 0; i < m; ++i) {
+			final int root1 = root(parents, endpoints[2 * i + 0]);
+			final int root2 = root(parents, endpoints[2 * i + 1]);
+			
+			if (root1 != root2) {
+				parents[max(root1, root2)] = min(root1, root2);
+			}
+		}
+		
+		final int[] jointIslands = new int[n];
+		int islandCount = 0;
+		
+		for (int i = 0; i < n; ++i) {
+			final int root = root(parents, i);
+			
+			jointIslands[i] = root == i ? islandCount++ : jointIslands[root];
+		}
+		
+		this.jointIslands = jointIslands;
+		this.islandCount = islandCount;
+		this.awakeIslands = new boolean[islandCount];
+		this.awakeIslandCount = islandCount;
+		this.islandStillFrames = new int[islandCount];
+		this.islandMotions = new float[islandCount];
+		this.relaxedTrees = new boolean[islandCount];
+		
+		Arrays.fill(this.awakeIslands, true);
+	}
+	
+	/**
+	 * Rebuilds the rigid clusters, the trees and the list of active segments (see {@link #setCollapsingRigidClusters(boolean)}).
+	 * <br>Reference shapes are laid out from the constraint values, in a frame attached to the current locations of the first triangle
+	 * (so that the initial rotation is the identity), and each joint added to a cluster is placed on the side of its 3 anchors
+	 * where it currently is.
+	 */
+	private final void updateClusters() {
+		final int n = this.jointCount;
+		final int m = this.segmentCount;
+		final int[] endpoints = this.endpoints;
+		final float[] constraints = this.constraints;
+		final float[] locations = this.locations;
+		final boolean[] rigidSegments = new boolean[m];
+		final int[] jointClusters = new int[n];
+		final int[] clusterOffsets = new int[n / 3 + 2];
+		final int[] clusterJoints = new int[n];
+		final float[] clusterShapes = new float[3 * n];
+		int clusterCount = 0;
+		int clusterJointCount = 0;
+		
+		Arrays.fill(jointClusters, -1);
+		
+		if (this.isCollapsingRigidClusters()) {
+			for (int i = 0; i < m; ++i) {
+				rigidSegments[i] = this.constantSegments[i] && 0F < constraints[i] && endpoints[2 * i + 0] != endpoints[2 * i + 1];
+			}
+			
+			final int[] incidenceOffsets = new int[n + 1];
+			
+			for (int i = 0; i < 2 * m; ++i) {
+				if (rigidSegments[i >> 1]) {
+					++incidenceOffsets[endpoints[i] + 1];
+				}
+			}
+			
+			for (int i = 0; i < n; ++i) {
+				incidenceOffsets[i + 1] += incidenceOffsets[i];
+			}
+			
+			final int[] incidences = new int[incidenceOffsets[n]];
+			final int[] fill = Arrays.copyOf(incidenceOffsets, n);
+			
+			for (int i = 0; i < 2 * m; ++i) {
+				if (rigidSegments[i >> 1]) {
+					incidences[fill[endpoints[i]]++] = i >> 1;
+				}
+			}
+			
+			final int[] queue = new int[n];
+			final boolean[] queued = new boolean[n];
+			final int[] anchors = new int[3];
+			final float[] distances = new float[3];
+			
+			for (int s = 0; s < m; ++s) {
+				final int a = endpoints[2 * s + 0];
+				final int b = endpoints[2 * s + 1];
+				
+				if (!rigidSegments[s] || 0 <= jointClusters[a] || 0 <= jointClusters[b]) {
+					continue;
+				}
+				
+				final int c = this.findTriangle(a, b, jointClusters, incidenceOffsets, incidences, distances);
+				
+				if (c < 0) {
+					continue;
+				}
+				
+				final int cluster = clusterCount++;
+				final int clusterStart = clusterJointCount;
+				int queueStart = 0;
+				int queueEnd = 0;
+				
+				clusterOffsets[cluster] = clusterStart;
+				layOutTriangle(locations, a, b, c, constraints[s], distances[0], distances[1], clusterShapes, 3 * clusterStart);
+				
+				for (final int joint : new int[] { a, b, c }) {
+					jointClusters[joint] = cluster;
+					clusterJoints[clusterJointCount++] = joint;
+				}
+				
+				for (final int joint : new int[] { a, b, c }) {
+					queueEnd = enqueueNeighbors(joint, endpoints, jointClusters, incidenceOffsets, incidences, queue, queued, queueEnd);
+				}
+				
+				while (queueStart != queueEnd) {
+					final int joint = queue[queueStart];
+					
+					queueStart = (queueStart + 1) % n;
+					queued[joint] = false;
+					
+					if (0 <= jointClusters[joint] || !this.findAnchors(joint, cluster, jointClusters, clusterJoints, clusterStart, clusterJointCount,
+							clusterShapes, incidenceOffsets, incidences, anchors, distances)) {
+						continue;
+					}
+					
+					trilaterate(locations, clusterJoints, clusterShapes, anchors, distances, joint, 3 * clusterJointCount);
+					jointClusters[joint] = cluster;
+					clusterJoints[clusterJointCount++] = joint;
+					queueEnd = enqueueNeighbors(joint, endpoints, jointClusters, incidenceOffsets, incidences, queue, queued, queueEnd);
+				}
+				
+				if (clusterJointCount - clusterStart < MINIMUM_CLUSTER_SIZE) {
+					for (int k = clusterStart; k < clusterJointCount; ++k) {
+						jointClusters[clusterJoints[k]] = -1;
+					}
+					
+					clusterJointCount = clusterStart;
+					--clusterCount;
+				}
+			}
+		}
+		
+		clusterOffsets[clusterCount] = clusterJointCount;
+		
+		this.updateTrees();
+		
+		final boolean[] treeIslands = this.treeIslands;
+		final int[] jointIslands = this.jointIslands;
+		final int[] activeSegments = new int[m];
+		int activeSegmentCount = 0;
+		
+		for (int i = 0; i < m; ++i) {
+			final int cluster = jointClusters[endpoints[2 * i + 0]];
+			
+			if (treeIslands[jointIslands[endpoints[2 * i + 0]]]) {
+				continue;
+			}
+			
+			if (!rigidSegments[i] || cluster < 0 || cluster != jointClusters[endpoints[2 * i + 1]]) {
+				activeSegments[activeSegmentCount++] = i;
+			}
+		}
+		
+		final int[] joints = Arrays.copyOf(clusterJoints, clusterJointCount);
+		final float[] shapes = Arrays.copyOf(clusterShapes, 3 * clusterJointCount);
+		
+		// Joints are sorted within each cluster so that projections access the locations in order
+		for (int i = 0; i < clusterCount; ++i) {
+			final int start = clusterOffsets[i];
+			final int end = clusterOffsets[i + 1];
+			final Integer[] order = new Integer[end - start];
+			
+			for (int k = 0; k < order.length; ++k) {
+				order[k] = start + k;
+			}
+			
+			Arrays.sort(order, (k1, k2) -> Integer.compare(clusterJoints[k1], clusterJoints[k2]));
+			
+			for (int k = 0; k < order.length; ++k) {
+				joints[start + k] = clusterJoints[order[k]];
+				System.arraycopy(clusterShapes, 3 * order[k], shapes, 3 * (start + k), 3);
+			}
+		}
+		
+		this.clusterCount = clusterCount;
+		this.clusterOffsets = Arrays.copyOf(clusterOffsets, clusterCount + 1);
+		this.clusterJoints = joints;
+		this.clusterShapes = shapes;
+		this.clusterRotations = new double[4 * clusterCount];
+		this.activeSegments = activeSegments;
+		this.activeSegmentCount = activeSegmentCount;
+		this.batchOffsets = null;
+		this.batchedSegments = null;
+		this.structureChanged = false;
+		
+		for (int i = 0; i < clusterCount; ++i) {
+			this.clusterRotations[4 * i] = 1.0;
+		}
+	}
+	
+	/**
+	 * @param distances
+	 * <br>Receives the constraints of the segments (a, c) and (b, c)
+	 * @return a joint <code>c</code> outside any cluster forming a non-degenerate triangle of rigid segments with <code>a</code> and <code>b</code>,
+	 * or <code>-1</code>
+	 */
+	private final int findTriangle(final int a, final int b, final int[] jointClusters,
+			final int[] incidenceOffsets, final int[] incidences, final float[] distances) {
+		final int[] endpoints = this.endpoints;
+		final float[] constraints = this.constraints;
+		final float ab = constraints[findSegment(a, b, endpoints, incidenceOffsets, incidences)];
+		
+		for (int j = incidenceOffsets[a]; j < incidenceOffsets[a + 1]; ++j) {
+			final int ac = incidences[j];
+			final int c = other(endpoints, ac, a);
+			
+			if (c == b || 0 <= jointClusters[c]) {
+				continue;
+			}
+			
+			final int bc = findSegment(b, c, endpoints, incidenceOffsets, incidences);
+			
+			if (0 <= bc) {
+				final double x = (ab * ab + constraints[ac] * constraints[ac] - constraints[bc] * constraints[bc]) / (2.0 * ab);
+				final double y2 = constraints[ac] * constraints[ac] - x * x;
+				final double tolerance = COLLINEARITY_TOLERANCE * max(ab, constraints[ac]);
+				
+				if (tolerance * tolerance < y2) {
+					distances[0] = constraints[ac];
+					distances[1] = constraints[bc];
+					
+					return c;
+				}
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @param anchors
+	 * <br>Receives 3 non-collinear joints of <code>cluster</code> with rigid segments to <code>joint</code>
+	 * @param distances
+	 * <br>Receives the constraints of these segments
+	 * @return <code>true</code> if 3 anchors were found
+	 */
+	private final boolean findAnchors(final int joint, final int cluster, final int[] jointClusters, final int[] clusterJoints, final int clusterStart,
+			final int clusterEnd, final float[] clusterShapes, final int[] incidenceOffsets, final int[] incidences, final int[] anchors, final float[] distances) {
+		final int[] endpoints = this.endpoints;
+		int anchorCount = 0;
+		
+		for (int j = incidenceOffsets[joint]; j < incidenceOffsets[joint + 1] && anchorCount < 3; ++j) {
+			final int segment = incidences[j];
+			final int anchor = other(endpoints, segment, joint);
+			
+			if (jointClusters[anchor] != cluster) {
+				continue;
+			}
+			
+			final int offset = 3 * indexOf(clusterJoints, clusterStart, clusterEnd, anchor);
+			
+			if (anchorCount == 1 && distance(clusterShapes, 3 * anchors[0], offset) == 0.0
+					|| anchorCount == 2 && !isTriangle(clusterShapes, 3 * anchors[0], 3 * anchors[1], offset)) {
+				continue;
+			}
+			
+			anchors[anchorCount] = offset / 3;
+			distances[anchorCount] = this.constraints[segment];
+			++anchorCount;
+		}
+		
+		return anchorCount == 3;
+	}
+	
+	private final float projectClusters() {
+		final int[] clusterOffsets = this.clusterOffsets;
+		final int[] clusterJoints = this.clusterJoints;
+		final int[] jointIslands = this.jointIslands;
+		final boolean[] awakeIslands = this.awakeIslands;
+		float result = 0F;
+		
+		for (int i = 0; i < this.clusterCount; ++i) {
+			if (awakeIslands[jointIslands[clusterJoints[clusterOffsets[i]]]]) {
+				result = max(result, this.projectCluster(i));
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Moves the free joints of <code>cluster</code> to the rigid transform of its shape that best fits their current locations.
+	 * 
+	 * @return the largest joint displacement
+	 */
+	private final float projectCluster(final int cluster) {
+		final int start = this.clusterOffsets[cluster];
+		final int end = this.clusterOffsets[cluster + 1];
+		final int[] clusterJoints = this.clusterJoints;
+		final float[] shapes = this.clusterShapes;
+		final float[] locations = this.locations;
+		final boolean[] pinned = this.pinnedCount == 0 ? null : this.pinned;
+		final double[] fit = this.fitBuffer;
+		// Sums are taken relatively to the first joint to limit cancellation
+		final int l0 = 3 * clusterJoints[start];
+		final int s0 = 3 * start;
+		final double x0 = locations[l0 + 0];
+		final double y0 = locations[l0 + 1];
+		final double z0 = locations[l0 + 2];
+		final double sx0 = shapes[s0 + 0];
+		final double sy0 = shapes[s0 + 1];
+		final double sz0 = shapes[s0 + 2];
+		double totalWeight = 0.0;
+		int freeCount = 0;
+		
+		Arrays.fill(fit, 0, 15, 0.0);
+		
+		// Weighted sums of the locations (0-2), of the shape (3-5), and of their products (6-14)
+		for (int k = start, s = 3 * start; k < end; ++k, s += 3) {
+			final int l = 3 * clusterJoints[k];
+			final boolean fixed = pinned != null && pinned[l / 3];
+			final double weight = fixed ? PINNED_WEIGHT : 1.0;
+			final double x = weight * (locations[l + 0] - x0);
+			final double y = weight * (locations[l + 1] - y0);
+			final double z = weight * (locations[l + 2] - z0);
+			final double sx = shapes[s + 0] - sx0;
+			final double sy = shapes[s + 1] - sy0;
+			final double sz = shapes[s + 2] - sz0;
+			
+			fit[0] += x;
+			fit[1] += y;
+			fit[2] += z;
+			fit[3] += weight * sx;
+			fit[4] += weight * sy;
+			fit[5] += weight * sz;
+			fit[6] += x * sx;
+			fit[7] += x * sy;
+			fit[8] += x * sz;
+			fit[9] += y * sx;
+			fit[10] += y * sy;
+			fit[11] += y * sz;
+			fit[12] += z * sx;
+			fit[13] += z * sy;
+			fit[14] += z * sz;
+			totalWeight += weight;
+			
+			if (!fixed) {
+				++freeCount;
+			}
+		}
+		
+		if (freeCount == 0) {
+			return 0F;
+		}
+		
+		for (int i = 0; i < 6; ++i) {
+			fit[i] /= totalWeight;
+		}
+		
+		// Covariance of the locations and the shape, about their centers
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				fit[6 + 3 * i + j] -= totalWeight * fit[i] * fit[3 + j];
+			}
+		}
+		
+		final double[] r = extractRotation(fit, 6, this.clusterRotations, 4 * cluster, fit, 15);
+		float result = 0F;
+		
+		for (int k = start, s = 3 * start; k < end; ++k, s += 3) {
+			final int l = 3 * clusterJoints[k];
+			
+			if (pinned != null && pinned[l / 3]) {
+				continue;
+			}
+			
+			final double sx = shapes[s + 0] - sx0 - fit[3];
+			final double sy = shapes[s + 1] - sy0 - fit[4];
+			final double sz = shapes[s + 2] - sz0 - fit[5];
+			final float x = (float) (x0 + fit[0] + r[15] * sx + r[16] * sy + r[17] * sz);
+			final float y = (float) (y0 + fit[1] + r[18] * sx + r[19] * sy + r[20] * sz);
+			final float z = (float) (z0 + fit[2] + r[21] * sx + r[22] * sy + r[23] * sz);
+			
+			result = max(result, max(abs(x - locations[l + 0]), max(abs(y - locations[l + 1]), abs(z - locations[l + 2]))));
+			locations[l + 0] = x;
+			locations[l + 1] = y;
+			locations[l + 2] = z;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Finds the islands whose segments form a tree (one segment less than joints), and indexes their segments by joint.
+	 */
+	private final void updateTrees() {
+		final int n = this.jointCount;
+		final int m = this.segmentCount;
+		final int islandCount = this.islandCount;
+		final int[] endpoints = this.endpoints;
+		final int[] jointIslands = this.jointIslands;
+		final int[] islandOffsets = new int[islandCount + 1];
+		final int[] islandSegmentCounts = new int[islandCount];
+		final boolean[] treeIslands = new boolean[islandCount];
+		int treeCount = 0;
+		
+		for (int i = 0; i < n; ++i) {
+			++islandOffsets[jointIslands[i] + 1];
+		}
+		
+		for (int i = 0; i < m; ++i) {
+			++islandSegmentCounts[jointIslands[endpoints[2 * i]]];
+		}
+		
+		for (int i = 0; i < islandCount; ++i) {
+			if (this.isSolvingTrees() && 0 < islandSegmentCounts[i] && islandSegmentCounts[i] == islandOffsets[i + 1] - 1) {
+				treeIslands[i] = true;
+				++treeCount;
+			}
+			
+			islandOffsets[i + 1] += islandOffsets[i];
+		}
+		
+		final int[] islandJoints = new int[n];
+		final int[] next = Arrays.copyOf(islandOffsets, islandCount);
+		
+		for (int i = 0; i < n; ++i) {
+			islandJoints[next[jointIslands[i]]++] = i;
+		}
+		
+		final int[] incidenceOffsets = new int[n + 1];
+		
+		for (int i = 0; i < 2 * m; ++i) {
+			if (treeIslands[jointIslands[endpoints[i]]]) {
+				++incidenceOffsets[endpoints[i] + 1];
+			}
+		}
+		
+		for (int i = 0; i < n; ++i) {
+			incidenceOffsets[i + 1] += incidenceOffsets[i];
+		}
+		
+		final int[] incidences = new int[incidenceOffsets[n]];
+		final int[] fill = Arrays.copyOf(incidenceOffsets, n);
+		
+		for (int i = 0; i < 2 * m; ++i) {
+			if (treeIslands[jointIslands[endpoints[i]]]) {
+				incidences[fill[endpoints[i]]++] = i >> 1;
+			}
+		}
+		
+		this.treeCount = treeCount;
+		this.treeIslands = treeIslands;
+		this.islandOffsets = islandOffsets;
+		this.islandJoints = islandJoints;
+		this.treeIncidenceOffsets = incidenceOffsets;
+		this.treeIncidences = incidences;
+		this.treeStarts = new int[treeCount + 1];
+		this.multiplyAnchoredTrees = new boolean[treeCount];
+		this.treeResiduals = new float[treeCount];
+		this.treeTolerances = new float[treeCount];
+		this.treeOrder = new int[n];
+		this.treeParents = new int[n];
+		this.treeParentSegments = new int[n];
+		this.anchoredSubtrees = new boolean[n];
+		this.treeSums = new float[3 * n];
+		this.treeCounts = new int[n];
+		this.awakeTreeCount = 0;
+	}
+	
+	private final boolean isAnchor(final int joint) {
+		return this.dragged[joint] || this.pinnedCount != 0 && this.pinned[joint];
+	}
+	
+	/**
+	 * Roots the awake trees and sorts their joints breadth-first into {@link #treeOrder},
+	 * marking the joints that have anchors below them.
+	 */
+	private final void orderTrees() {
+		final int[] order = this.treeOrder;
+		final int[] parents = this.treeParents;
+		final int[] parentSegments = this.treeParentSegments;
+		final boolean[] anchoredSubtrees = this.anchoredSubtrees;
+		final int[] incidenceOffsets = this.treeIncidenceOffsets;
+		final int[] incidences = this.treeIncidences;
+		final int[] endpoints = this.endpoints;
+		int treeCount = 0;
+		int size = 0;
+		
+		for (int island = 0; island < this.islandCount && 0 < this.treeCount; ++island) {
+			if (!this.treeIslands[island] || !this.awakeIslands[island]) {
+				continue;
+			}
+			
+			final int start = size;
+			final int root = this.findRoot(island);
+			int anchorCount = 0;
+			
+			order[size++] = root;
+			parents[root] = -1;
+			
+			for (int k = start; k < size; ++k) {
+				final int joint = order[k];
+				
+				anchoredSubtrees[joint] = this.isAnchor(joint);
+				
+				if (k != start && anchoredSubtrees[joint]) {
+					++anchorCount;
+				}
+				
+				for (int j = incidenceOffsets[joint]; j < incidenceOffsets[joint + 1]; ++j) {
+					final int segment = incidences[j];
+					final int child = other(endpoints, segment, joint);
+					
+					if (child != parents[joint]) {
+						parents[child] = joint;
+						parentSegments[child] = segment;
+						order[size++] = child;
+					}
+				}
+			}
+			
+			for (int k = size - 1; start < k; --k) {
+				if (anchoredSubtrees[order[k]]) {
+					anchoredSubtrees[parents[order[k]]] = true;
+				}
+			}
+			
+			this.treeStarts[treeCount] = start;
+			this.multiplyAnchoredTrees[treeCount] = 0 < anchorCount;
+			this.treeResiduals[treeCount] = Float.POSITIVE_INFINITY;
+			++treeCount;
+		}
+		
+		this.treeStarts[treeCount] = size;
+		this.awakeTreeCount = treeCount;
+	}
+	
+	/**
+	 * @return the first pinned joint of <code>island</code>, or else its first dragged joint, or else its first joint
+	 */
+	private final int findRoot(final int island) {
+		final int start = this.islandOffsets[island];
+		final int end = this.islandOffsets[island + 1];
+		
+		if (this.pinnedCount != 0) {
+			for (int k = start; k < end; ++k) {
+				if (this.pinned[this.islandJoints[k]]) {
+					return this.islandJoints[k];
+				}
+			}
+		}
+		
+		for (int k = start; k < end; ++k) {
+			if (this.dragged[this.islandJoints[k]]) {
+				return this.islandJoints[k];
+			}
+		}
+		
+		return this.islandJoints[start];
+	}
+	
+	/**
+	 * A tree with several anchors whose residual stops decreasing before convergence
+	 * (e.g. because its anchors are too far apart) is relaxed instead until its island sleeps.
+	 * 
+	 * @return the largest constraint violation left by the forward passes or by relaxation
+	 */
+	private final float solveTrees() {
+		final int[] order = this.treeOrder;
+		final int[] jointIslands = this.jointIslands;
+		final boolean[] relaxedTrees = this.relaxedTrees;
+		final float[] treeResiduals = this.treeResiduals;
+		final float[] treeTolerances = this.treeTolerances;
+		float result = 0F;
+		
+		for (int i = 0; i < this.awakeTreeCount; ++i) {
+			final int start = this.treeStarts[i];
+			final int end = this.treeStarts[i + 1];
+			final int island = jointIslands[order[start]];
+			
+			if (relaxedTrees[island]) {
+				result = max(result, this.relaxTree(start, end));
+			} else if (this.multiplyAnchoredTrees[i]) {
+				this.reachBackward(start, end);
+				
+				final float residual = this.reachForward(start, end);
+				
+				if (treeResiduals[i] == Float.POSITIVE_INFINITY) {
+					// Near convergence, rounding errors can stall the residual without the tree being stuck
+					treeTolerances[i] = (float) max(this.getPolicy().getAbsoluteTolerance(),
+							max(this.getPolicy().getRelativeTolerance(), TREE_RELATIVE_TOLERANCE) * residual);
+				}
+				
+				if (treeTolerances[i] < residual && MAXIMUM_TREE_RESIDUAL_RATIO * treeResiduals[i] < residual) {
+					// The passes may have swung the joints far away; relaxation restarts from the initial locations
+					this.restoreTree(start, end);
+					relaxedTrees[island] = true;
+					result = max(result, this.relaxTree(start, end));
+				} else {
+					treeResiduals[i] = residual;
+					result = max(result, residual);
+				}
+			} else {
+				result = max(result, this.reachForward(start, end));
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Moves the joints of a tree back to their locations at the start of {@link #solve()}, without momentum.
+	 */
+	private final void restoreTree(final int start, final int end) {
+		final int[] order = this.treeOrder;
+		
+		for (int k = start; k < end; ++k) {
+			final int offset = 3 * order[k];
+			
+			System.arraycopy(this.startLocations, offset, this.locations, offset, 3);
+			System.arraycopy(this.startLocations, offset, this.previousLocations, offset, 3);
+		}
+	}
+	
+	/**
+	 * Relaxes the segments of a tree, alternately from the root and from the leaves
+	 * so that the order does not make the tree creep in one direction.
+	 */
+	private final float relaxTree(final int start, final int end) {
+		final int[] order = this.treeOrder;
+		final int[] parents = this.treeParents;
+		final int[] parentSegments = this.treeParentSegments;
+		final boolean reverse = (this.iteration & 1L) != 0L;
+		float result = 0F;
+		
+		for (int i = start + 1; i < end; ++i) {
+			final int joint = order[reverse ? start + end - i : i];
+			final int segment = parentSegments[joint];
+			
+			result = max(result, this.relax(segment, 3 * parents[joint], 3 * joint, this.constraints[segment]));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * From the leaves to the root, moves each joint with anchors below it to the average of the locations
+	 * at the constrained distance from its children with anchors below them; anchors are moved back to their targets.
+	 */
+	private final void reachBackward(final int start, final int end) {
+		final int[] order = this.treeOrder;
+		final int[] parents = this.treeParents;
+		final int[] parentSegments = this.treeParentSegments;
+		final boolean[] anchoredSubtrees = this.anchoredSubtrees;
+		final float[] locations = this.locations;
+		final float[] sums = this.treeSums;
+		final int[] counts = this.treeCounts;
+		
+		for (int k = end - 1; start < k; --k) {
+			final int joint = order[k];
+			
+			if (!anchoredSubtrees[joint]) {
+				continue;
+			}
+			
+			final int offset = 3 * joint;
+			
+			if (this.isAnchor(joint)) {
+				System.arraycopy(this.startLocations, offset, locations, offset, 3);
+			} else {
+				locations[offset + 0] = sums[offset + 0] / counts[joint];
+				locations[offset + 1] = sums[offset + 1] / counts[joint];
+				locations[offset + 2] = sums[offset + 2] / counts[joint];
+			}
+			
+			sums[offset + 0] = 0F;
+			sums[offset + 1] = 0F;
+			sums[offset + 2] = 0F;
+			counts[joint] = 0;
+			
+			final int parent = parents[joint];
+			final int parentOffset = 3 * parent;
+			final float k1 = this.reach(offset, parentOffset, this.constraints[parentSegments[joint]], joint);
+			
+			sums[parentOffset + 0] += locations[offset + 0] + (locations[parentOffset + 0] - locations[offset + 0]) * k1;
+			sums[parentOffset + 1] += locations[offset + 1] + (locations[parentOffset + 1] - locations[offset + 1]) * k1;
+			sums[parentOffset + 2] += locations[offset + 2] + (locations[parentOffset + 2] - locations[offset + 2]) * k1;
+			++counts[parent];
+		}
+		
+		final int root = 3 * order[start];
+		
+		sums[root + 0] = 0F;
+		sums[root + 1] = 0F;
+		sums[root + 2] = 0F;
+		counts[order[start]] = 0;
+	}
+	
+	/**
+	 * From the root to the leaves, places each joint that is not an anchor at the constrained distance from its parent.
+	 * 
+	 * @return the largest constraint violation left, on the segments leading to anchors
+	 */
+	private final float reachForward(final int start, final int end) {
+		final int[] order = this.treeOrder;
+		final int[] parents = this.treeParents;
+		final int[] parentSegments = this.treeParentSegments;
+		final float[] locations = this.locations;
+		float result = 0F;
+		
+		if (this.isAnchor(order[start])) {
+			System.arraycopy(this.startLocations, 3 * order[start], locations, 3 * order[start], 3);
+		}
+		
+		for (int k = start + 1; k < end; ++k) {
+			final int joint = order[k];
+			final int parent = parents[joint];
+			final int offset = 3 * joint;
+			final int parentOffset = 3 * parent;
+			final float constraint = this.constraints[parentSegments[joint]];
+			
+			if (this.isAnchor(joint)) {
+				System.arraycopy(this.startLocations, offset, locations, offset, 3);
+				
+				if (!this.isAnchor(parent)) {
+					result = max(result, (float) abs(distance(locations, offset, parentOffset) - constraint));
+				}
+			} else {
+				final float k1 = this.reach(parentOffset, offset, constraint, joint);
+				
+				locations[offset + 0] = locations[parentOffset + 0] + (locations[offset + 0] - locations[parentOffset + 0]) * k1;
+				locations[offset + 1] = locations[parentOffset + 1] + (locations[offset + 1] - locations[parentOffset + 1]) * k1;
+				locations[offset + 2] = locations[parentOffset + 2] + (locations[offset + 2] - locations[parentOffset + 2]) * k1;
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Separates the locations at <code>offset2</code> from the one at <code>offset1</code> if they coincide (as in relaxation).
+	 * 
+	 * @return the factor to apply to the vector from <code>offset1</code> to <code>offset2</code> so that its length becomes <code>constraint</code>
+	 */
+	private final float reach(final int offset1, final int offset2, final float constraint, final int joint) {
+		final float[] locations = this.locations;
+		double distance = distance(locations, offset1, offset2);
+		
+		if (distance == 0.0) {
+			final long seed = this.iteration * 0x9E3779B97F4A7C15L + 3L * joint;
+			final boolean deterministic = this.isDeterministic();
+			
+			locations[offset2 + 0] += deterministic ? jitter(seed + 0L) : (float) (random() - 0.5);
+			locations[offset2 + 1] += deterministic ? jitter(seed + 1L) : (float) (random() - 0.5);
+			locations[offset2 + 2] += deterministic ? jitter(seed + 2L) : (float) (random() - 0.5);
+			distance = distance(locations, offset1, offset2);
+		}
+		
+		return distance == 0.0 ? 0F : (float) (constraint / distance);
+	}
+	
+	private final boolean isParallel() {
+		return 1 < this.getParallelism();
+	}
+	
+	private final synchronized ForkJoinPool getPool() {
+		if (this.pool == null) {
+			this.pool = new ForkJoinPool(this.getParallelism());
+		}
+		
+		return this.pool;
+	}
+	
+	private final int[] getBatchOffsets() {
+		if (this.batchOffsets == null) {
+			this.colorSegments();
+		}
+		
+		return this.batchOffsets;
+	}
+	
+	/**
+	 * Greedy edge coloring of the active segments: each segment gets the smallest color not used by a segment sharing one of its joints.
+	 * <br>Segments are then sorted by color (stable, so by index within a color) into {@link #batchedSegments}.
+	 */
+	private final void colorSegments() {
+		final int n = this.jointCount;
+		final int m = this.activeSegmentCount;
+		final int[] activeSegments = this.activeSegments;
+		final int[] endpoints = this.endpoints;
+		final int[] incidenceOffsets = new int[n + 1];
+		
+		for (int k = 0; k < m; ++k) {
+			++incidenceOffsets[endpoints[2 * activeSegments[k] + 0] + 1];
+			++incidenceOffsets[endpoints[2 * activeSegments[k] + 1] + 1];
+		}
+		
+		for (int i = 0; i < n; ++i) {
+			incidenceOffsets[i + 1] += incidenceOffsets[i];
+		}
+		
+		final int[] incidences = new int[2 * m];
+		final int[] fill = Arrays.copyOf(incidenceOffsets, n);
+		
+		for (int k = 0; k < m; ++k) {
+			incidences[fill[endpoints[2 * activeSegments[k] + 0]]++] = activeSegments[k];
+			incidences[fill[endpoints[2 * activeSegments[k] + 1]]++] = activeSegments[k];
+		}
+		
+		final int[] colors = new int[this.segmentCount];
+		int[] stamps = new int[8];
+		int colorCount = 0;
+		
+		Arrays.fill(colors, -1);
+		Arrays.fill(stamps, -1);
+		
+		for (int s = 0; s < m; ++s) {
+			final int i = activeSegments[s];
+			
+			for (int k = 0; k < 2; ++k) {
+				final int joint = endpoints[2 * i + k];
+				
+				for (int j = incidenceOffsets[joint]; j < incidenceOffsets[joint + 1]; ++j) {
+					final int color = colors[incidences[j]];
+					
+					if (0 <= color) {
+						stamps[color] = i;
+					}
+				}
+			}
+			
+			int color = 0;
+			
+			while (color < colorCount && stamps[color] == i) {
+				++color;
+			}
+			
+			if (color == colorCount) {
+				if (stamps.length <= colorCount) {
+					stamps = Arrays.copyOf(stamps, 2 * colorCount);
+					Arrays.fill(stamps, colorCount, stamps.length, -1);
+				}
+				
+				++colorCount;
+			}
+			
+			colors[i] = color;
+		}
+		
+		final int[] batchOffsets = new int[colorCount + 1];
+		
+		for (int k = 0; k < m; ++k) {
+			++batchOffsets[colors[activeSegments[k]] + 1];
+		}
+		
+		for (int i = 0; i < colorCount; ++i) {
+			batchOffsets[i + 1] += batchOffsets[i];
+		}
+		
+		final int[] batchedSegments = new int[m];
+		final int[] next = Arrays.copyOf(batchOffsets, colorCount);
+		
+		for (int k = 0; k < m; ++k) {
+			batchedSegments[next[colors[activeSegments[k]]]++] = activeSegments[k];
+		}
+		
+		this.batchOffsets = batchOffsets;
+		this.batchedSegments = batchedSegments;
+	}
+	
+	private static final long serialVersionUID = 3315396513307512826L;
+	
+	/**
+	 * Times constraint evaluation, which goes through the script engine for non-constant expressions.
+	 */
+	private static final Metrics.Series CONSTRAINT_METRICS = Metrics.timer("model.constraints");
+	
+	/**
+	 * Work items below this size are not split across threads.
+	 * <br>{@value}.
+	 */
+	public static final int PARALLEL_THRESHOLD = 1024;
+	
+	/**
+	 * Weight of a pinned joint relatively to a free joint when fitting a rigid cluster to the locations of its joints.
+	 * <br>{@value}.
+	 */
+	public static final double PINNED_WEIGHT = 1E6;
+	
+	/**
+	 * 3 joints are considered collinear when the distance from one of them to the line through the others
+	 * is below this fraction of the distance between the others.
+	 * <br>{@value}.
+	 */
+	public static final double COLLINEARITY_TOLERANCE = 1E-3;
+	
+	/**
+	 * Smaller rigid clusters are left to relaxation, which is cheaper for them than fitting a rigid body.
+	 * <br>{@value}.
+	 */
+	public static final int MINIMUM_CLUSTER_SIZE = 8;
+	
+	/**
+	 * Maximum number of iterations when extracting the rotation of a rigid cluster, starting from the rotation of the previous fit.
+	 * <br>{@value}.
+	 */
+	public static final int ROTATION_ITERATIONS = 8;
+	
+	/**
+	 * Half-angle (in radians) below which the extraction of the rotation of a rigid cluster stops.
+	 * <br>{@value}.
+	 */
+	public static final double ROTATION_TOLERANCE = 1E-7;
+	
+	/**
+	 * A tree with several anchors is relaxed instead of being solved with reaching passes
+	 * when an iteration leaves more than this fraction of the violation left by the previous one.
+	 * <br>{@value}.
+	 */
+	public static final float MAXIMUM_TREE_RESIDUAL_RATIO = 0.9F;
+	
+	/**
+	 * A tree with several anchors is not relaxed for a lack of progress once its violation falls below
+	 * this fraction of the violation left by its first iteration.
+	 * <br>{@value}.
+	 */
+	public static final float TREE_RELATIVE_TOLERANCE = 1E-4F;
+	
+	/**
+	 * @return a pseudorandom value in <code>[-0.5 .. 0.5[</code> that only depends on <code>seed</code>
+	 */
+	public static final float jitter(final long seed) {
+		long z = seed + 0x9E3779B97F4A7C15L;
+		
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z ^= z >>> 31;
+		
+		return (z >>> 40) / (float) (1 << 24) - 0.5F;
+	}
+	
+	public static final double distance(final float x1, final float y1, final float z1, final float x2, final float y2, final float z2) {
+		final float dx = x1 - x2;
+		final float dy = y1 - y2;
+		final float dz = z1 - z2;
+		
+		return sqrt(dx * dx + dy * dy + dz * dz);
+	}
+	
+	static final int root(final int[] parents, final int element) {
+		int result = element;
+		
+		while (parents[result] != result) {
+			parents[result] = parents[parents[result]];
+			result = parents[result];
+		}
+		
+		return result;
+	}
+	
+	static final int other(final int[] endpoints, final int segment, final int joint) {
+		final int result = endpoints[2 * segment + 0];
+		
+		return result != joint ? result : endpoints[2 * segment + 1];
+	}
+	
+	/**
+	 * @return a segment between <code>joint1</code> and <code>joint2</code> among the incidences of <code>joint1</code>, or <code>-1</code>
+	 */
+	static final int findSegment(final int joint1, final int joint2, final int[] endpoints, final int[] incidenceOffsets, final int[] incidences) {
+		for (int j = incidenceOffsets[joint1]; j < incidenceOffsets[joint1 + 1]; ++j) {
+			if (other(endpoints, incidences[j], joint1) == joint2) {
+				return incidences[j];
+			}
+		}
+		
+		return -1;
+	}
+	
+	static final int indexOf(final int[] array, final int start, final int end, final int value) {
+		for (int i = start; i < end; ++i) {
+			if (array[i] == value) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Appends the neighbors of <code>joint</code> through the incidences that are outside any cluster and not already in <code>queue</code>.
+	 * 
+	 * @return the new end of <code>queue</code>, a circular buffer
+	 */
+	static final int enqueueNeighbors(final int joint, final int[] endpoints, final int[] jointClusters,
+			final int[] incidenceOffsets, final int[] incidences, final int[] queue, final boolean[] queued, final int queueEnd) {
+		int result = queueEnd;
+		
+		for (int j = incidenceOffsets[joint]; j < incidenceOffsets[joint + 1]; ++j) {
+			final int neighbor = other(endpoints, incidences[j], joint);
+			
+			if (jointClusters[neighbor] < 0 && !queued[neighbor]) {
+				queued[neighbor] = true;
+				queue[result] = neighbor;
+				result = (result + 1) % queue.length;
+			}
+		}
+		
+		return result;
+	}
+	
+	static final double distance(final float[] locations, final int offset1, final int offset2) {
+		return distance(locations[offset1 + 0], locations[offset1 + 1], locations[offset1 + 2],
+				locations[offset2 + 0], locations[offset2 + 1], locations[offset2 + 2]);
+	}
+	
+	/**
+	 * @return <code>true</code> if the distance from the third location to the line through the first 2
+	 * is above {@link #COLLINEARITY_TOLERANCE} times the distance between the first 2
+	 */
+	static final boolean isTriangle(final float[] locations, final int offset1, final int offset2, final int offset3) {
+		final double[] u = new double[3];
+		final double[] v = new double[3];
+		
+		for (int i = 0; i < 3; ++i) {
+			u[i] = locations[offset2 + i] - locations[offset1 + i];
+			v[i] = locations[offset3 + i] - locations[offset1 + i];
+		}
+		
+		final double[] w = cross(u, v, new double[3]);
+		final double uu = dot(u, u);
+		
+		// |u x v| / |u| > tolerance * |u|
+		return 0.0 < uu && COLLINEARITY_TOLERANCE * COLLINEARITY_TOLERANCE * uu * uu * uu < dot(w, w) * uu;
+	}
+	
+	/**
+	 * Writes the locations of the triangle (a, b, c) with the given side lengths into <code>shapes</code>,
+	 * with <code>a</code> at its current location, <code>b</code> in the current direction of <code>b - a</code>,
+	 * and <code>c</code> in the current plane of the triangle, on the same side of (a, b).
+	 */
+	static final void layOutTriangle(final float[] locations, final int a, final int b, final int c,
+			final double ab, final double ac, final double bc, final float[] shapes, final int offset) {
+		final double[] ex = new double[3];
+		final double[] ey = new double[3];
+		
+		for (int i = 0; i < 3; ++i) {
+			ex[i] = locations[3 * b + i] - locations[3 * a + i];
+			ey[i] = locations[3 * c + i] - locations[3 * a + i];
+		}
+		
+		if (!normalize(ex)) {
+			ex[0] = 1.0;
+		}
+		
+		final double exey = dot(ex, ey);
+		
+		for (int i = 0; i < 3; ++i) {
+			ey[i] -= exey * ex[i];
+		}
+		
+		if (!normalize(ey)) {
+			// Any direction orthogonal to ex
+			final double[] axis = abs(ex[0]) < 0.9 ? new double[] { 1.0, 0.0, 0.0 } : new double[] { 0.0, 1.0, 0.0 };
+			
+			normalize(cross(ex, axis, ey));
+		}
+		
+		final double x = (ab * ab + ac * ac - bc * bc) / (2.0 * ab);
+		final double y = sqrt(max(0.0, ac * ac - x * x));
+		
+		for (int i = 0; i < 3; ++i) {
+			final double origin = locations[3 * a + i];
+			
+			shapes[offset + 0 + i] = (float) origin;
+			shapes[offset + 3 + i] = (float) (origin + ab * ex[i]);
+			shapes[offset + 6 + i] = (float) (origin + x * ex[i] + y * ey[i]);
+		}
+	}
+	
+	/**
+	 * Writes into <code>shapes</code> at <code>offset</code> the location at the given distances from the 3 anchors
+	 * (indices of locations in <code>shapes</code>, non-collinear), on the side of their plane where <code>joint</code> currently is
+	 * relatively to the current locations of the anchors.
+	 * <br>If the distances are inconsistent, the location is projected onto the plane.
+	 */
+	static final void trilaterate(final float[] locations, final int[] clusterJoints, final float[] shapes,
+			final int[] anchors, final float[] distances, final int joint, final int offset) {
+		final double[] ex = new double[3];
+		final double[] ey = new double[3];
+		final double[] ez = new double[3];
+		final double[] u = new double[3];
+		final double[] v = new double[3];
+		final double[] w = new double[3];
+		
+		for (int i = 0; i < 3; ++i) {
+			ex[i] = shapes[3 * anchors[1] + i] - shapes[3 * anchors[0] + i];
+			ey[i] = shapes[3 * anchors[2] + i] - shapes[3 * anchors[0] + i];
+			u[i] = locations[3 * clusterJoints[anchors[1]] + i] - locations[3 * clusterJoints[anchors[0]] + i];
+			v[i] = locations[3 * clusterJoints[anchors[2]] + i] - locations[3 * clusterJoints[anchors[0]] + i];
+			w[i] = locations[3 * joint + i] - locations[3 * clusterJoints[anchors[0]] + i];
+		}
+		
+		final double d = sqrt(dot(ex, ex));
+		
+		normalize(ex);
+		
+		final double ax = dot(ex, ey);
+		
+		for (int k = 0; k < 3; ++k) {
+			ey[k] -= ax * ex[k];
+		}
+		
+		final double ay = sqrt(dot(ey, ey));
+		
+		normalize(ey);
+		cross(ex, ey, ez);
+		
+		final double r1 = distances[0];
+		final double r2 = distances[1];
+		final double r3 = distances[2];
+		final double x = (r1 * r1 - r2 * r2 + d * d) / (2.0 * d);
+		final double y = (r1 * r1 - r3 * r3 + ax * ax + ay * ay) / (2.0 * ay) - ax * x / ay;
+		final double z = sqrt(max(0.0, r1 * r1 - x * x - y * y));
+		final double side = dot(cross(u, v, new double[3]), w) < 0.0 ? -z : z;
+		
+		for (int k = 0; k < 3; ++k) {
+			shapes[offset + k] = (float) (shapes[3 * anchors[0] + k] + x * ex[k] + y * ey[k] + side * ez[k]);
+		}
+	}
+	
+	/**
+	 * Iteratively extracts the rotation of <code>a</code> (the rotation <code>R</code> maximizing <code>trace(R<sup>T</sup> a)</code>),
+	 * after M&uuml;ller et al., "A Robust Method to Extract the Rotational Part of Deformations" (2016);
+	 * each step rotates by <code>2 atan(angle / 2)</code> instead of <code>angle</code>, which avoids trigonometric functions.
+	 * 
+	 * @param a
+	 * <br>3x3, row-major, at <code>aOffset</code>
+	 * @param quaternions
+	 * <br>Holds the initial estimate (w, x, y, z) at <code>offset</code>, which receives the result
+	 * @param result
+	 * <br>3x3, row-major, at <code>resultOffset</code>
+	 * @return <code>result</code>
+	 */
+	static final double[] extractRotation(final double[] a, final int aOffset, final double[] quaternions, final int offset,
+			final double[] result, final int resultOffset) {
+		for (int iteration = 0; iteration < ROTATION_ITERATIONS; ++iteration) {
+			toMatrix(quaternions, offset, result, resultOffset);
+			
+			double omegaX = 0.0;
+			double omegaY = 0.0;
+			double omegaZ = 0.0;
+			double denominator = 0.0;
+			
+			for (int c = 0; c < 3; ++c) {
+				final double rx = result[resultOffset + 0 + c];
+				final double ry = result[resultOffset + 3 + c];
+				final double rz = result[resultOffset + 6 + c];
+				final double ax = a[aOffset + 0 + c];
+				final double ay = a[aOffset + 3 + c];
+				final double az = a[aOffset + 6 + c];
+				
+				omegaX += ry * az - rz * ay;
+				omegaY += rz * ax - rx * az;
+				omegaZ += rx * ay - ry * ax;
+				denominator += rx * ax + ry * ay + rz * az;
+			}
+			
+			final double h = 0.5 / (abs(denominator) + 1E-9);
+			final double px = omegaX * h;
+			final double py = omegaY * h;
+			final double pz = omegaZ * h;
+			
+			if (px * px + py * py + pz * pz < ROTATION_TOLERANCE * ROTATION_TOLERANCE) {
+				break;
+			}
+			
+			final double qw = quaternions[offset + 0];
+			final double qx = quaternions[offset + 1];
+			final double qy = quaternions[offset + 2];
+			final double qz = quaternions[offset + 3];
+			final double w = qw - px * qx - py * qy - pz * qz;
+			final double x = qx + px * qw + py * qz - pz * qy;
+			final double y = qy - px * qz + py * qw + pz * qx;
+			final double z = qz + px * qy - py * qx + pz * qw;
+			final double norm = sqrt(w * w + x * x + y * y + z * z);
+			
+			quaternions[offset + 0] = w / norm;
+			quaternions[offset + 1] = x / norm;
+			quaternions[offset + 2] = y / norm;
+			quaternions[offset + 3] = z / norm;
+		}
+		
+		return toMatrix(quaternions, offset, result, resultOffset);
+	}
+	
+	static final double[] toMatrix(final double[] quaternions, final int offset, final double[] result, final int resultOffset) {
+		final double w = quaternions[offset + 0];
+		final double x = quaternions[offset + 1];
+		final double y = quaternions[offset + 2];
+		final double z = quaternions[offset + 3];
+		
+		result[resultOffset + 0] = 1.0 - 2.0 * (y * y + z * z);
+		result[resultOffset + 1] = 2.0 * (x * y - w * z);
+		result[resultOffset + 2] = 2.0 * (x * z + w * y);
+		result[resultOffset + 3] = 2.0 * (x * y + w * z);
+		result[resultOffset + 4] = 1.0 - 2.0 * (x * x + z * z);
+		result[resultOffset + 5] = 2.0 * (y * z - w * x);
+		result[resultOffset + 6] = 2.0 * (x * z - w * y);
+		result[resultOffset + 7] = 2.0 * (y * z + w * x);
+		result[resultOffset + 8] = 1.0 - 2.0 * (x * x + y * y);
+		
+		return result;
+	}
+	
+	static final double dot(final double[] u, final double[] v) {
+		return u[0] * v[0] + u[1] * v[1] + u[2] * v[2];
+	}
+	
+	static final double[] cross(final double[] u, final double[] v, final double[] result) {
+		final double x = u[1] * v[2] - u[2] * v[1];
+		final double y = u[2] * v[0] - u[0] * v[2];
+		final double z = u[0] * v[1] - u[1] * v[0];
+		
+		result[0] = x;
+		result[1] = y;
+		result[2] = z;
+		
+		return result;
+	}
+	
+	/**
+	 * @return <code>false</code> if <code>v</code> is too short to be normalized, in which case it is left unchanged
+	 */
+	static final boolean normalize(final double[] v) {
+		final double norm = sqrt(dot(v, v));
+		
+		if (norm < 1E-12) {
+			return false;
+		}
+		
+		v[0] /= norm;
+		v[1] /= norm;
+		v[2] /= norm;
+		
+		return true;
+	}
+	
+	static final <E> boolean sameElements(final List<E> list, final E[] array, final int n) {
+		if (list.size() != n) {
+			return false;
+		}
+		
+		int i = 0;
+		
+		for (final E element : list) {
+			if (element != array[i++]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	static final <E> Map<E, Integer> indices(final E[] array, final int n) {
+		final Map<E, Integer> result = new IdentityHashMap<>(n);
+		
+		for (int i = 0; i < n; ++i) {
+			result.put(array[i], i);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-04)
+	 */
+	private final class RelaxTask extends RecursiveTask<Float> {
+		
+		private final int start;
+		
+		private final int end;
+		
+		RelaxTask(final int start, final int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected final Float compute() {
+			if (this.end - this.start <= PARALLEL_THRESHOLD) {
+				return relaxBatch(this.start, this.end);
+			}
+			
+			final int middle = (this.start + this.end) >>> 1;
+			final RelaxTask right = new RelaxTask(middle, this.end);
+			
+			right.fork();
+			
+			final float result = new RelaxTask(this.start, middle).compute();
+			
+			return max(right.join(), result);
+		}
+		
+		private static final long serialVersionUID = -3409452851787062318L;
+		
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-04)
+	 */
+	private final class MomentumTask extends RecursiveAction {
+		
+		private final int start;
+		
+		private final int end;
+		
+		MomentumTask(final int start, final int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected final void compute() {
+			if (this.end - this.start <= 3 * PARALLEL_THRESHOLD) {
+				applyMomentum(this.start, this.end);
+			} else {
+				final int middle = (this.start + this.end) >>> 1;
+				
+				invokeAll(new MomentumTask(this.start, middle), new MomentumTask(middle, this.end));
+			}
+		}
+		
+		private static final long serialVersionUID = -2102618960807047218L;
+		
+	}
+	
+	/**
+	 * Stopping rules for {@link JointsSolver#solve()}.
+	 * 
+	 * @author codistmonk (creation 2015-08-04)
+	 */
+	public static final class Policy implements Serializable {
+		
+		private int maximumIterations = 32;
+		
+		private double absoluteTolerance = 1E-5;
+		
+		private double relativeTolerance;
+		
+		private long timeBudget = Long.MAX_VALUE;
+		
+		public final int getMaximumIterations() {
+			return this.maximumIterations;
+		}
+		
+		public final Policy setMaximumIterations(final int maximumIterations) {
+			this.maximumIterations = maximumIterations;
+			
+			return this;
+		}
+		
+		/**
+		 * @return the largest constraint violation considered as satisfied
+		 */
+		public final double getAbsoluteTolerance() {
+			return this.absoluteTolerance;
+		}
+		
+		public final Policy setAbsoluteTolerance(final double absoluteTolerance) {
+			this.absoluteTolerance = absoluteTolerance;
+			
+			return this;
+		}
+		
+		/**
+		 * @return the fraction of the first iteration's residual below which solving stops
+		 */
+		public final double getRelativeTolerance() {
+			return this.relativeTolerance;
+		}
+		
+		public final Policy setRelativeTolerance(final double relativeTolerance) {
+			this.relativeTolerance = relativeTolerance;
+			
+			return this;
+		}
+		
+		/**
+		 * @return the maximum duration of one call to {@link JointsSolver#solve()}, in nanoseconds
+		 * (at least one iteration is always performed)
+		 */
+		public final long getTimeBudget() {
+			return this.timeBudget;
+		}
+		
+		public final Policy setTimeBudget(final long timeBudget) {
+			this.timeBudget = timeBudget;
+			
+			return this;
+		}
+		
+		private static final long serialVersionUID = -6040915063744950187L;
+		
+	}
+	
+}
@@ -0,0 +1,194 @@
+package joints2;
+
+import static multij.tools.Tools.unchecked;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Point3f;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import joints2.JointsModel.Group;
+import joints2.JointsModel.Segment;
+
+import multij.primitivelists.IntList;
+import multij.tools.IllegalInstantiationException;
+
+/**
+ * Streaming (StAX) reader and writer for the joints XML format:
+ * <pre>
+ * &lt;model&gt;
+ *   &lt;joint x="" y="" z=""/&gt;...
+ *   &lt;segment point1="" point2="" constraint="" style=""/&gt;...
+ *   &lt;group name="" segmentSynchronizer=""&gt;&lt;joint index=""/&gt;&lt;segment index=""/&gt;...&lt;/group&gt;...
+ * &lt;/model&gt;
+ * </pre>
+ * Indices refer to the order of the elements in the document, independently of what the target model already contains.
+ * <br>Unlike {@link JointsModel#addFromXML(org.w3c.dom.Document)} and {@link JointsModel#toXML()},
+ * no DOM is built and each element is visited once.
+ *
+ * @author codistmonk (creation 2015-08-05)
+ */
+public final class JointsXML {
+	
+	private JointsXML() {
+		throw new IllegalInstantiationException();
+	}
+	
+	public static final JointsModel read(final InputStream input, final JointsModel model) {
+		final List<Point3f> joints = new ArrayList<>();
+		final IntList endpoints = new IntList();
+		final List<String> constraints = new ArrayList<>();
+		final List<String> styles = new ArrayList<>();
+		final Map<String, Boolean> groupSynchronizers = new LinkedHashMap<>();
+		final Map<String, IntList> groupMembers = new LinkedHashMap<>();
+		
+		try {
+			final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+			IntList currentGroup = null;
+			
+			try {
+				while (reader.hasNext()) {
+					final int event = reader.next();
+					
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						final String element = reader.getLocalName();
+						
+						if (currentGroup != null) {
+							currentGroup.add(JOINT.equals(element) ? JOINT_MEMBER : SEGMENT_MEMBER);
+							currentGroup.add(Integer.parseInt(reader.getAttributeValue(null, "index")));
+						} else if (JOINT.equals(element)) {
+							joints.add(new Point3f(getFloat(reader, "x"), getFloat(reader, "y"), getFloat(reader, "z")));
+						} else if (SEGMENT.equals(element)) {
+							endpoints.add(Integer.parseInt(reader.getAttributeValue(null, "point1")));
+							endpoints.add(Integer.parseInt(reader.getAttributeValue(null, "point2")));
+							constraints.add(getString(reader, "constraint"));
+							styles.add(getString(reader, "style"));
+						} else if (GROUP.equals(element)) {
+							final String name = getString(reader, "name");
+							
+							currentGroup = new IntList();
+							groupMembers.put(name, currentGroup);
+							groupSynchronizers.put(name, Boolean.parseBoolean(reader.getAttributeValue(null, "segmentSynchronizer")));
+						}
+					} else if (event == XMLStreamConstants.END_ELEMENT && GROUP.equals(reader.getLocalName())) {
+						currentGroup = null;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (final XMLStreamException exception) {
+			throw unchecked(exception);
+		}
+		
+		final int m = constraints.size();
+		final List<Segment> segments = new ArrayList<>(m);
+		
+		for (int i = 0; i < m; ++i) {
+			segments.add(new Segment(joints.get(endpoints.get(2 * i + 0)), joints.get(endpoints.get(2 * i + 1)), constraints.get(i))
+					.setStyle(styles.get(i)));
+		}
+		
+		joints.forEach(model::addJoint);
+		segments.forEach(model::addSegment);
+		
+		for (final Map.Entry<String, IntList> entry : groupMembers.entrySet()) {
+			final IntList members = entry.getValue();
+			final int n = members.size();
+			final Group group = new Group().setSegmentSynchronizer(groupSynchronizers.get(entry.getKey()));
+			
+			for (int i = 0; i < n; i += 2) {
+				final int index = members.get(i + 1);
+				
+				group.getObjects().add(members.get(i) == JOINT_MEMBER ? joints.get(index) : segments.get(index));
+			}
+			
+			model.getGroups().put(entry.getKey(), group);
+		}
+		
+		return model;
+	}
+	
+	public static final void write(final JointsModel model, final OutputStream output) {
+		try {
+			final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(output, "UTF-8");
+			
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("model");
+			
+			for (final Point3f joint : model.getJointLocations()) {
+				writer.writeCharacters("\n");
+				writer.writeEmptyElement(JOINT);
+				writer.writeAttribute("x", Float.toString(joint.x));
+				writer.writeAttribute("y", Float.toString(joint.y));
+				writer.writeAttribute("z", Float.toString(joint.z));
+			}
+			
+			for (final Segment segment : model.getSegments()) {
+				writer.writeCharacters("\n");
+				writer.writeEmptyElement(SEGMENT);
+				writer.writeAttribute("point1", Integer.toString(model.indexOf(segment.getPoint1())));
+				writer.writeAttribute("point2", Integer.toString(model.indexOf(segment.getPoint2())));
+				writer.writeAttribute("constraint", segment.getConstraint());
+				writer.writeAttribute("style", segment.getStyleAsString());
+			}
+			
+			for (final Map.Entry<String, Group> entry : model.getGroups().entrySet()) {
+				writer.writeCharacters("\n");
+				writer.writeStartElement(GROUP);
+				writer.writeAttribute("name", entry.getKey());
+				writer.writeAttribute("segmentSynchronizer", Boolean.toString(entry.getValue().isSegmentSynchronizer()));
+				
+				for (final Object object : entry.getValue().getObjects()) {
+					if (object instanceof Segment) {
+						writer.writeEmptyElement(SEGMENT);
+						writer.writeAttribute("index", Integer.toString(model.indexOf((Segment) object)));
+					} else {
+						writer.writeEmptyElement(JOINT);
+						writer.writeAttribute("index", Integer.toString(model.indexOf((Point3f) object)));
+					}
+				}
+				
+				writer.writeEndElement();
+			}
+			
+			writer.writeCharacters("\n");
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		} catch (final XMLStreamException exception) {
+			throw unchecked(exception);
+		}
+	}
+	
+	private static final String JOINT = "joint";
+	
+	private static final String SEGMENT = "segment";
+	
+	private static final String GROUP = "group";
+	
+	private static final int JOINT_MEMBER = 0;
+	
+	private static final int SEGMENT_MEMBER = 1;
+	
+	private static final String getString(final XMLStreamReader reader, final String attribute) {
+		final String result = reader.getAttributeValue(null, attribute);
+		
+		return result == null ? "" : result;
+	}
+	
+	private static final float getFloat(final XMLStreamReader reader, final String attribute) {
+		return Float.parseFloat(reader.getAttributeValue(null, attribute));
+	}
+	
+}
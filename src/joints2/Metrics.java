@@ -0,0 +1,409 @@
+package joints2;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import multij.tools.IllegalInstantiationException;
+
+/**
+ * Named timers and counters for the stages of the editor pipeline (solving, projection, rendering, compositing...).
+ * <br>Timing a stage costs 2 calls to {@link System#nanoTime()} and an uncontended lock:
+ * <pre>
+ * final long start = Metrics.start();
+ * ...
+ * SERIES.stop(start);
+ * </pre>
+ * Each series keeps totals since its last reset and its {@link #WINDOW} last samples, from which
+ * percentiles and a histogram are computed on demand.
+ * <br>Series can be exported as MXBeans (see {@link #export()}),
+ * and samples are committed as JFR events while a flight recording is running, when the runtime provides JFR
+ * and the bridge compiled from <code>src-jfr</code> (for Java 11 and later) is on the class path.
+ *
+ * @author codistmonk (creation 2015-08-14)
+ */
+public final class Metrics {
+	
+	private Metrics() {
+		throw new IllegalInstantiationException();
+	}
+	
+	/**
+	 * Number of samples kept by each series for percentiles and histograms.
+	 */
+	public static final int WINDOW = 256;
+	
+	public static final String DOMAIN = "joints2";
+	
+	private static final Map<String, Series> series = new ConcurrentSkipListMap<>();
+	
+	private static volatile boolean enabled = !"false".equals(System.getProperty(DOMAIN + ".metrics"));
+	
+	private static boolean exported;
+	
+	private static final Recorder FLIGHT_RECORDER = newFlightRecorder();
+	
+	public static final boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Enabled by default; disabled at startup with <code>-Djoints2.metrics=false</code>.
+	 *
+	 * @param enabled
+	 */
+	public static final void setEnabled(final boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+	
+	/**
+	 * @param name
+	 * @return the series measuring durations in nanoseconds named <code>name</code>, created if necessary
+	 */
+	public static final Series timer(final String name) {
+		return get(name, true);
+	}
+	
+	/**
+	 * @param name
+	 * @return the series counting events named <code>name</code>, created if necessary
+	 */
+	public static final Series counter(final String name) {
+		return get(name, false);
+	}
+	
+	/**
+	 * @return all series, sorted by name
+	 */
+	public static final Collection<Series> getSeries() {
+		return Collections.unmodifiableCollection(series.values());
+	}
+	
+	public static final void resetAll() {
+		series.values().forEach(Series::reset);
+	}
+	
+	/**
+	 * @return the current time in nanoseconds, or <code>0</code> if metrics are disabled
+	 */
+	public static final long start() {
+		return enabled ? System.nanoTime() : 0L;
+	}
+	
+	/**
+	 * Registers all series, current and future, in the platform MBean server as <code>joints2:type=Metrics,name=...</code>.
+	 * <br>Idempotent.
+	 */
+	public static final synchronized void export() {
+		if (!exported) {
+			exported = true;
+			series.values().forEach(Metrics::register);
+		}
+	}
+	
+	private static final Series get(final String name, final boolean time) {
+		Series result = series.get(name);
+		
+		if (result == null) {
+			synchronized (Metrics.class) {
+				result = series.computeIfAbsent(name, k -> new Series(name, time));
+				
+				if (exported) {
+					register(result);
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	private static final void register(final Series series) {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		
+		try {
+			final ObjectName name = new ObjectName(DOMAIN + ":type=Metrics,name=" + series.getName());
+			
+			if (!server.isRegistered(name)) {
+				server.registerMBean(series, name);
+			}
+		} catch (final JMException exception) {
+			exception.printStackTrace();
+		}
+	}
+	
+	private static final boolean isFlightRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			
+			return true;
+		} catch (final Throwable exception) {
+			return false;
+		}
+	}
+	
+	/**
+	 * The bridge is only loaded by name, after JFR is known to be available,
+	 * so that this class still builds and runs on Java 8.
+	 * 
+	 * @return the JFR bridge, or <code>null</code> if JFR or the bridge is missing
+	 */
+	private static final Recorder newFlightRecorder() {
+		if (!isFlightRecorderAvailable()) {
+			return null;
+		}
+		
+		try {
+			return (Recorder) Class.forName(FLIGHT_RECORDER_CLASS_NAME).getDeclaredConstructor().newInstance();
+		} catch (final Throwable exception) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Implemented in <code>src-jfr</code>.
+	 */
+	static final String FLIGHT_RECORDER_CLASS_NAME = DOMAIN + ".FlightRecorderEvents";
+	
+	/**
+	 * Receives the samples of all series, in addition to their windows.
+	 * 
+	 * @author codistmonk (creation 2015-08-14)
+	 */
+	public static abstract interface Recorder {
+		
+		/**
+		 * @param series
+		 * @param value
+		 * <br>A duration in nanoseconds for timers, an event count for counters
+		 */
+		public abstract void record(Series series, long value);
+		
+	}
+	
+	/**
+	 * @author codistmonk (creation 2015-08-14)
+	 */
+	public static abstract interface SeriesMXBean {
+		
+		public abstract String getName();
+		
+		/**
+		 * @return <code>"ns"</code> for timers, <code>""</code> for counters
+		 */
+		public abstract String getUnit();
+		
+		public abstract long getCount();
+		
+		public abstract long getTotal();
+		
+		public abstract long getLast();
+		
+		public abstract long getMaximum();
+		
+		public abstract double getMean();
+		
+		public abstract long getMedian();
+		
+		public abstract long getPercentile90();
+		
+		public abstract long getPercentile99();
+		
+		/**
+		 * @return the number of samples in the window falling in each power of 2:
+		 * <code>result[0]</code> counts values below <code>2</code>,
+		 * <code>result[k]</code> counts values in <code>[2<sup>k</sup> .. 2<sup>k+1</sup>[</code>
+		 */
+		public abstract long[] getHistogram();
+		
+		public abstract void reset();
+		
+	}
+	
+	/**
+	 * Samples of one stage; all methods may be called from any thread.
+	 *
+	 * @author codistmonk (creation 2015-08-14)
+	 */
+	public static final class Series implements SeriesMXBean, Serializable {
+		
+		private final String name;
+		
+		private final boolean time;
+		
+		private final long[] window;
+		
+		private long count;
+		
+		private long total;
+		
+		private long last;
+		
+		private long maximum;
+		
+		Series(final String name, final boolean time) {
+			this.name = name;
+			this.time = time;
+			this.window = new long[WINDOW];
+		}
+		
+		@Override
+		public final String getName() {
+			return this.name;
+		}
+		
+		public final boolean isTime() {
+			return this.time;
+		}
+		
+		@Override
+		public final String getUnit() {
+			return this.isTime() ? "ns" : "";
+		}
+		
+		/**
+		 * Records the time elapsed since <code>start</code>, unless <code>start</code> is <code>0</code>.
+		 *
+		 * @param start
+		 * <br>A value returned by {@link Metrics#start()}
+		 * @return <code>this</code>
+		 */
+		public final Series stop(final long start) {
+			if (start != 0L) {
+				this.record(System.nanoTime() - start);
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * @param value
+		 * <br>A duration in nanoseconds for timers, an event count for counters
+		 * @return <code>this</code>
+		 */
+		public final Series record(final long value) {
+			if (!enabled) {
+				return this;
+			}
+			
+			synchronized (this) {
+				this.window[(int) (this.count % WINDOW)] = value;
+				++this.count;
+				this.total += value;
+				this.last = value;
+				this.maximum = Math.max(this.maximum, value);
+			}
+			
+			if (FLIGHT_RECORDER != null) {
+				FLIGHT_RECORDER.record(this, value);
+			}
+			
+			return this;
+		}
+		
+		@Override
+		public final synchronized long getCount() {
+			return this.count;
+		}
+		
+		@Override
+		public final synchronized long getTotal() {
+			return this.total;
+		}
+		
+		@Override
+		public final synchronized long getLast() {
+			return this.last;
+		}
+		
+		@Override
+		public final synchronized long getMaximum() {
+			return this.maximum;
+		}
+		
+		/**
+		 * @return the mean of the samples in the window
+		 */
+		@Override
+		public final double getMean() {
+			final long[] samples = this.getSamples();
+			
+			return samples.length == 0 ? 0.0 : Arrays.stream(samples).average().getAsDouble();
+		}
+		
+		@Override
+		public final long getMedian() {
+			return this.getPercentile(0.5);
+		}
+		
+		@Override
+		public final long getPercentile90() {
+			return this.getPercentile(0.9);
+		}
+		
+		@Override
+		public final long getPercentile99() {
+			return this.getPercentile(0.99);
+		}
+		
+		/**
+		 * @param p
+		 * <br>Range: <code>[0.0 .. 1.0]</code>
+		 * @return the sample of the window at rank <code>p</code>, or <code>0</code> if there are no samples
+		 */
+		public final long getPercentile(final double p) {
+			final long[] samples = this.getSamples();
+			
+			if (samples.length == 0) {
+				return 0L;
+			}
+			
+			Arrays.sort(samples);
+			
+			return samples[(int) Math.min(samples.length - 1L, Math.round(p * (samples.length - 1)))];
+		}
+		
+		@Override
+		public final long[] getHistogram() {
+			final long[] result = new long[Long.SIZE];
+			
+			for (final long sample : this.getSamples()) {
+				++result[Math.max(0, Long.SIZE - 1 - Long.numberOfLeadingZeros(sample))];
+			}
+			
+			return result;
+		}
+		
+		/**
+		 * @return a copy of the samples in the window, in no particular order
+		 */
+		public final synchronized long[] getSamples() {
+			return Arrays.copyOf(this.window, (int) Math.min(WINDOW, this.count));
+		}
+		
+		@Override
+		public final synchronized void reset() {
+			this.count = 0L;
+			this.total = 0L;
+			this.last = 0L;
+			this.maximum = 0L;
+		}
+		
+		@Override
+		public final String toString() {
+			return this.getName() + ": count=" + this.getCount() + " last=" + this.getLast() + this.getUnit()
+					+ " median=" + this.getMedian() + this.getUnit() + " p99=" + this.getPercentile99() + this.getUnit();
+		}
+		
+		private static final long serialVersionUID = 1826476787706398427L;
+		
+	}
+	
+}
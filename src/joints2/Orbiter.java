@@ -10,7 +10,6 @@ import static java.lang.Math.tan;
 import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.vecmath.Point3f;
 
@@ -21,6 +20,8 @@ import multij.swing.MouseHandler;
  */
 public final class Orbiter extends MouseHandler {
 	
+	private final RepaintScheduler repaintScheduler;
+	
 	private final Camera camera;
 	
 	private Point mouse;
@@ -39,8 +40,9 @@ public final class Orbiter extends MouseHandler {
 	
 	private double yRotation;
 	
-	public Orbiter(final AtomicBoolean updateNeeded, final Camera camera) {
-		super(updateNeeded);
+	public Orbiter(final RepaintScheduler repaintScheduler, final Camera camera) {
+		super(repaintScheduler.getUpdateNeeded());
+		this.repaintScheduler = repaintScheduler;
 		this.camera = camera;
 		this.target = new Point3f();
 		this.distance = 4F;
@@ -167,7 +169,7 @@ public final class Orbiter extends MouseHandler {
 				this.target.z + (float) (distance * cos(this.verticalRadians) * cos(this.horizontalRadians))
 				), this.target, JL.Constant.UNIT_Y);
 		
-		this.getUpdateNeeded().set(true);
+		this.repaintScheduler.request();
 	}
 	
 	/**
@@ -0,0 +1,392 @@
+package joints2;
+
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import multij.primitivelists.IntList;
+
+/**
+ * Uniform grid over pickable points (disks) and segments, in pixels.
+ * <br>Items are added in view coordinates and mapped to pixels with {@link #getTransform()};
+ * {@link #build()} must be called after the last item is added and before queries.
+ *
+ * @author codistmonk (creation 2015-08-08)
+ */
+public final class PickingIndex implements Serializable {
+	
+	private final AffineTransform transform = new AffineTransform();
+	
+	private float tolerance = 3F;
+	
+	private float cellSize = 16F;
+	
+	private boolean valid;
+	
+	private int pointCount;
+	
+	private int[] pointIds = new int[16];
+	
+	private float[] points = new float[3 * 16];
+	
+	private int segmentCount;
+	
+	private int[] segmentIds = new int[16];
+	
+	private float[] segments = new float[4 * 16];
+	
+	private float minX;
+	
+	private float minY;
+	
+	private float gridCellSize;
+	
+	private int columns;
+	
+	private int rows;
+	
+	private int[] cellOffsets = new int[1];
+	
+	private int[] cellItems = new int[0];
+	
+	private int[] stamps = new int[0];
+	
+	private int stamp;
+	
+	public final AffineTransform getTransform() {
+		return this.transform;
+	}
+	
+	public final float getTolerance() {
+		return this.tolerance;
+	}
+	
+	/**
+	 * @param tolerance
+	 * <br>In pixels, added to point radii and segment distances
+	 * @return <code>this</code>
+	 */
+	public final PickingIndex setTolerance(final float tolerance) {
+		this.tolerance = tolerance;
+		this.valid = false;
+		
+		return this;
+	}
+	
+	public final float getCellSize() {
+		return this.cellSize;
+	}
+	
+	/**
+	 * @param cellSize
+	 * <br>In pixels; may be enlarged to bound the number of cells
+	 * @return <code>this</code>
+	 */
+	public final PickingIndex setCellSize(final float cellSize) {
+		this.cellSize = cellSize;
+		this.valid = false;
+		
+		return this;
+	}
+	
+	public final boolean isValid() {
+		return this.valid;
+	}
+	
+	public final PickingIndex invalidate() {
+		this.valid = false;
+		
+		return this;
+	}
+	
+	public final PickingIndex clear(final AffineTransform transform) {
+		this.getTransform().setTransform(transform);
+		this.pointCount = 0;
+		this.segmentCount = 0;
+		this.valid = false;
+		
+		return this;
+	}
+	
+	/**
+	 * @param id
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * <br>In view units
+	 * @return <code>this</code>
+	 */
+	public final PickingIndex addPoint(final int id, final float x, final float y, final float radius) {
+		final AffineTransform t = this.getTransform();
+		
+		if (this.pointIds.length <= this.pointCount) {
+			this.pointIds = Arrays.copyOf(this.pointIds, 2 * this.pointCount);
+			this.points = Arrays.copyOf(this.points, 3 * 2 * this.pointCount);
+		}
+		
+		final int i = 3 * this.pointCount;
+		
+		this.pointIds[this.pointCount++] = id;
+		this.points[i + 0] = (float) (t.getScaleX() * x + t.getShearX() * y + t.getTranslateX());
+		this.points[i + 1] = (float) (t.getShearY() * x + t.getScaleY() * y + t.getTranslateY());
+		this.points[i + 2] = (float) (radius * sqrt(Math.abs(t.getDeterminant()))) + this.getTolerance();
+		
+		return this;
+	}
+	
+	public final PickingIndex addSegment(final int id, final float x1, final float y1, final float x2, final float y2) {
+		final AffineTransform t = this.getTransform();
+		
+		if (this.segmentIds.length <= this.segmentCount) {
+			this.segmentIds = Arrays.copyOf(this.segmentIds, 2 * this.segmentCount);
+			this.segments = Arrays.copyOf(this.segments, 4 * 2 * this.segmentCount);
+		}
+		
+		final int i = 4 * this.segmentCount;
+		
+		this.segmentIds[this.segmentCount++] = id;
+		this.segments[i + 0] = (float) (t.getScaleX() * x1 + t.getShearX() * y1 + t.getTranslateX());
+		this.segments[i + 1] = (float) (t.getShearY() * x1 + t.getScaleY() * y1 + t.getTranslateY());
+		this.segments[i + 2] = (float) (t.getScaleX() * x2 + t.getShearX() * y2 + t.getTranslateX());
+		this.segments[i + 3] = (float) (t.getShearY() * x2 + t.getScaleY() * y2 + t.getTranslateY());
+		
+		return this;
+	}
+	
+	public final int getPointCount() {
+		return this.pointCount;
+	}
+	
+	public final int getSegmentCount() {
+		return this.segmentCount;
+	}
+	
+	/**
+	 * Sorts the items into grid cells (counting sort); each item goes into every cell its bounding box overlaps.
+	 * 
+	 * @return <code>this</code>
+	 */
+	public final PickingIndex build() {
+		final int itemCount = this.pointCount + this.segmentCount;
+		float minX = Float.POSITIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY;
+		float maxY = Float.NEGATIVE_INFINITY;
+		final float[] bounds = new float[4 * itemCount];
+		
+		for (int i = 0; i < itemCount; ++i) {
+			this.getBounds(i, bounds, 4 * i);
+			minX = min(minX, bounds[4 * i + 0]);
+			minY = min(minY, bounds[4 * i + 1]);
+			maxX = max(maxX, bounds[4 * i + 2]);
+			maxY = max(maxY, bounds[4 * i + 3]);
+		}
+		
+		if (itemCount == 0) {
+			minX = minY = maxX = maxY = 0F;
+		}
+		
+		this.minX = minX;
+		this.minY = minY;
+		this.gridCellSize = max(this.getCellSize(), max(maxX - minX, maxY - minY) / MAXIMUM_CELLS_PER_AXIS);
+		this.columns = 1 + (int) ((maxX - minX) / this.gridCellSize);
+		this.rows = 1 + (int) ((maxY - minY) / this.gridCellSize);
+		
+		final int cellCount = this.columns * this.rows;
+		final int[] offsets = new int[cellCount + 1];
+		
+		for (int pass = 0; pass < 2; ++pass) {
+			for (int i = 0; i < itemCount; ++i) {
+				final int i4 = 4 * i;
+				final int left = this.column(bounds[i4 + 0]);
+				final int top = this.row(bounds[i4 + 1]);
+				final int right = this.column(bounds[i4 + 2]);
+				final int bottom = this.row(bounds[i4 + 3]);
+				
+				for (int row = top; row <= bottom; ++row) {
+					for (int column = left; column <= right; ++column) {
+						final int cell = row * this.columns + column;
+						
+						if (pass == 0) {
+							++offsets[cell + 1];
+						} else {
+							this.cellItems[offsets[cell]++] = i;
+						}
+					}
+				}
+			}
+			
+			if (pass == 0) {
+				for (int cell = 0; cell < cellCount; ++cell) {
+					offsets[cell + 1] += offsets[cell];
+				}
+				
+				if (this.cellItems.length < offsets[cellCount]) {
+					this.cellItems = new int[offsets[cellCount]];
+				}
+				
+				this.cellOffsets = offsets.clone();
+			}
+		}
+		
+		if (this.stamps.length < itemCount) {
+			this.stamps = new int[itemCount];
+			this.stamp = 0;
+		}
+		
+		this.valid = true;
+		
+		return this;
+	}
+	
+	/**
+	 * Points take precedence over segments; among candidates of the same kind, the nearest wins.
+	 * 
+	 * @param x
+	 * <br>In pixels
+	 * @param y
+	 * <br>In pixels
+	 * @return the id of the item under <code>(x, y)</code>, or <code>0</code>
+	 */
+	public final int pick(final float x, final float y) {
+		if (x < this.minX || y < this.minY) {
+			return 0;
+		}
+		
+		final int column = (int) ((x - this.minX) / this.gridCellSize);
+		final int row = (int) ((y - this.minY) / this.gridCellSize);
+		
+		if (this.columns <= column || this.rows <= row) {
+			return 0;
+		}
+		
+		final int cell = row * this.columns + column;
+		final int end = this.cellOffsets[cell + 1];
+		int bestPoint = 0;
+		float bestPointDistance = Float.POSITIVE_INFINITY;
+		int bestSegment = 0;
+		float bestSegmentDistance = Float.POSITIVE_INFINITY;
+		final float tolerance2 = this.getTolerance() * this.getTolerance();
+		
+		for (int j = this.cellOffsets[cell]; j < end; ++j) {
+			final int item = this.cellItems[j];
+			
+			if (item < this.pointCount) {
+				final int i3 = 3 * item;
+				final float dx = x - this.points[i3 + 0];
+				final float dy = y - this.points[i3 + 1];
+				final float r = this.points[i3 + 2];
+				final float d2 = dx * dx + dy * dy;
+				
+				if (d2 <= r * r && d2 < bestPointDistance) {
+					bestPoint = this.pointIds[item];
+					bestPointDistance = d2;
+				}
+			} else {
+				final int i4 = 4 * (item - this.pointCount);
+				final float d2 = (float) Line2D.ptSegDistSq(this.segments[i4 + 0], this.segments[i4 + 1],
+						this.segments[i4 + 2], this.segments[i4 + 3], x, y);
+						
+				if (d2 <= tolerance2 && d2 < bestSegmentDistance) {
+					bestSegment = this.segmentIds[item - this.pointCount];
+					bestSegmentDistance = d2;
+				}
+			}
+		}
+		
+		return bestPoint != 0 ? bestPoint : bestSegment;
+	}
+	
+	/**
+	 * Collects the ids of the points whose center is inside <code>rectangle</code>
+	 * and of the segments that intersect it.
+	 * 
+	 * @param rectangle
+	 * <br>In pixels
+	 * @param result
+	 * <br>Input-output
+	 * @return <code>result</code>
+	 */
+	public final IntList pick(final Rectangle2D rectangle, final IntList result) {
+		final int left = this.column((float) rectangle.getMinX());
+		final int top = this.row((float) rectangle.getMinY());
+		final int right = this.column((float) rectangle.getMaxX());
+		final int bottom = this.row((float) rectangle.getMaxY());
+		
+		if (++this.stamp == 0) {
+			Arrays.fill(this.stamps, 0);
+			this.stamp = 1;
+		}
+		
+		for (int row = top; row <= bottom; ++row) {
+			for (int column = left; column <= right; ++column) {
+				final int cell = row * this.columns + column;
+				final int end = this.cellOffsets[cell + 1];
+				
+				for (int j = this.cellOffsets[cell]; j < end; ++j) {
+					final int item = this.cellItems[j];
+					
+					if (this.stamps[item] == this.stamp) {
+						continue;
+					}
+					
+					this.stamps[item] = this.stamp;
+					
+					if (item < this.pointCount) {
+						if (rectangle.contains(this.points[3 * item + 0], this.points[3 * item + 1])) {
+							result.add(this.pointIds[item]);
+						}
+					} else {
+						final int i4 = 4 * (item - this.pointCount);
+						
+						if (rectangle.intersectsLine(this.segments[i4 + 0], this.segments[i4 + 1], this.segments[i4 + 2], this.segments[i4 + 3])) {
+							result.add(this.segmentIds[item - this.pointCount]);
+						}
+					}
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	private final void getBounds(final int item, final float[] result, final int offset) {
+		if (item < this.pointCount) {
+			final int i3 = 3 * item;
+			final float r = this.points[i3 + 2];
+			
+			result[offset + 0] = this.points[i3 + 0] - r;
+			result[offset + 1] = this.points[i3 + 1] - r;
+			result[offset + 2] = this.points[i3 + 0] + r;
+			result[offset + 3] = this.points[i3 + 1] + r;
+		} else {
+			final int i4 = 4 * (item - this.pointCount);
+			final float t = this.getTolerance();
+			
+			result[offset + 0] = min(this.segments[i4 + 0], this.segments[i4 + 2]) - t;
+			result[offset + 1] = min(this.segments[i4 + 1], this.segments[i4 + 3]) - t;
+			result[offset + 2] = max(this.segments[i4 + 0], this.segments[i4 + 2]) + t;
+			result[offset + 3] = max(this.segments[i4 + 1], this.segments[i4 + 3]) + t;
+		}
+	}
+	
+	private final int column(final float x) {
+		return max(0, min(this.columns - 1, (int) floor((x - this.minX) / this.gridCellSize)));
+	}
+	
+	private final int row(final float y) {
+		return max(0, min(this.rows - 1, (int) floor((y - this.minY) / this.gridCellSize)));
+	}
+	
+	private static final long serialVersionUID = -4071651373813633373L;
+	
+	private static final int MAXIMUM_CELLS_PER_AXIS = 256;
+	
+}
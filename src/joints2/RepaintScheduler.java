@@ -0,0 +1,234 @@
+package joints2;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Paints a {@link JLView} when asked to with {@link #request()}, and stays parked otherwise.
+ * <br>Requests arriving while a frame is pending (e.g. a burst of mouse events) are coalesced into that frame.
+ * Frames are spaced by a period adapted to their measured cost (painting plus waiting for the event dispatch thread):
+ * {@link #HEADROOM} times the average cost, clamped between the display refresh period and {@link #getMaximumPeriod()}.
+ * <br>Setting {@link #getUpdateNeeded()} without calling {@link #request()} does not wake the scheduler up;
+ * it is only shared with the handlers that need a flag (see {@link Orbiter}).
+ *
+ * @author codistmonk (creation 2015-08-15)
+ */
+public final class RepaintScheduler implements Serializable {
+	
+	private final JLView view;
+	
+	private final AtomicBoolean updateNeeded;
+	
+	private long minimumPeriod;
+	
+	private long maximumPeriod;
+	
+	private volatile long period;
+	
+	private volatile long frameCost;
+	
+	private volatile long frameCount;
+	
+	private transient volatile Thread thread;
+	
+	public RepaintScheduler(final JLView view) {
+		this.view = view;
+		this.updateNeeded = new AtomicBoolean();
+		this.minimumPeriod = getDisplayPeriod();
+		this.maximumPeriod = DEFAULT_MAXIMUM_PERIOD;
+		this.period = this.minimumPeriod;
+	}
+	
+	public final JLView getView() {
+		return this.view;
+	}
+	
+	public final AtomicBoolean getUpdateNeeded() {
+		return this.updateNeeded;
+	}
+	
+	/**
+	 * @return the shortest period between frames in nanoseconds, by default the display refresh period
+	 */
+	public final long getMinimumPeriod() {
+		return this.minimumPeriod;
+	}
+	
+	public final RepaintScheduler setMinimumPeriod(final long minimumPeriod, final TimeUnit unit) {
+		this.minimumPeriod = unit.toNanos(minimumPeriod);
+		
+		return this;
+	}
+	
+	/**
+	 * @return the longest period between frames in nanoseconds, however expensive they are
+	 */
+	public final long getMaximumPeriod() {
+		return this.maximumPeriod;
+	}
+	
+	public final RepaintScheduler setMaximumPeriod(final long maximumPeriod, final TimeUnit unit) {
+		this.maximumPeriod = unit.toNanos(maximumPeriod);
+		
+		return this;
+	}
+	
+	/**
+	 * @return the current period between frames in nanoseconds
+	 */
+	public final long getPeriod() {
+		return this.period;
+	}
+	
+	/**
+	 * @return the moving average of the frame cost in nanoseconds
+	 */
+	public final long getFrameCost() {
+		return this.frameCost;
+	}
+	
+	public final long getFrameCount() {
+		return this.frameCount;
+	}
+	
+	public final boolean isRunning() {
+		return this.thread != null;
+	}
+	
+	public final synchronized RepaintScheduler start() {
+		if (this.thread == null) {
+			this.thread = new Thread(this::run, "repaint");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+		
+		return this;
+	}
+	
+	public final synchronized RepaintScheduler stop() {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Sets {@link #getUpdateNeeded()} and wakes the scheduler up if it is idle; may be called from any thread.
+	 *
+	 * @return <code>this</code>
+	 */
+	public final RepaintScheduler request() {
+		this.getUpdateNeeded().set(true);
+		
+		final Thread thread = this.thread;
+		
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		
+		return this;
+	}
+	
+	private final void run() {
+		final Thread thread = Thread.currentThread();
+		long lastFrame = System.nanoTime() - this.getPeriod();
+		
+		while (!thread.isInterrupted()) {
+			if (!this.getUpdateNeeded().get()) {
+				// A request made since the check leaves a permit, so that this returns immediately
+				LockSupport.park(this);
+				continue;
+			}
+			
+			final long deadline = lastFrame + this.getPeriod();
+			
+			// Requests made while waiting for the deadline only set the flag again
+			for (long now = System.nanoTime(); now < deadline && !thread.isInterrupted(); now = System.nanoTime()) {
+				LockSupport.parkNanos(this, deadline - now);
+			}
+			
+			if (this.getUpdateNeeded().getAndSet(false)) {
+				lastFrame = System.nanoTime();
+				
+				try {
+					SwingUtilities.invokeAndWait(this::paint);
+				} catch (final InterruptedException exception) {
+					break;
+				} catch (final InvocationTargetException exception) {
+					exception.getCause().printStackTrace();
+				}
+				
+				this.adapt(System.nanoTime() - lastFrame);
+			}
+		}
+	}
+	
+	/**
+	 * Paints the dirty region of the layers, or the whole view if all layers are clean
+	 * (so that the renderers still get a chance to run).
+	 */
+	private final void paint() {
+		final JLView view = this.getView();
+		final Rectangle dirtyRegion = view.getDirtyRegion();
+		
+		if (dirtyRegion == null) {
+			view.paintImmediately(0, 0, view.getWidth(), view.getHeight());
+		} else {
+			view.paintImmediately(dirtyRegion);
+		}
+	}
+	
+	private final void adapt(final long cost) {
+		final long frameCost = this.frameCount == 0L ? cost : this.frameCost + (cost - this.frameCost) / SMOOTHING;
+		
+		this.frameCost = frameCost;
+		this.period = min(this.getMaximumPeriod(), max(this.getMinimumPeriod(), HEADROOM * frameCost));
+		++this.frameCount;
+	}
+	
+	private static final long serialVersionUID = -8166290787880536405L;
+	
+	public static final long DEFAULT_DISPLAY_PERIOD = TimeUnit.SECONDS.toNanos(1L) / 60L;
+	
+	public static final long DEFAULT_MAXIMUM_PERIOD = TimeUnit.MILLISECONDS.toNanos(100L);
+	
+	/**
+	 * Ratio between the period and the frame cost, leaving the event dispatch thread time for input.
+	 */
+	public static final long HEADROOM = 2L;
+	
+	private static final long SMOOTHING = 4L;
+	
+	/**
+	 * @return the refresh period of the default screen in nanoseconds, or {@link #DEFAULT_DISPLAY_PERIOD} if unknown
+	 */
+	public static final long getDisplayPeriod() {
+		if (!GraphicsEnvironment.isHeadless()) {
+			try {
+				final int refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+				
+				if (refreshRate != DisplayMode.REFRESH_RATE_UNKNOWN) {
+					return TimeUnit.SECONDS.toNanos(1L) / refreshRate;
+				}
+			} catch (final RuntimeException exception) {
+				exception.printStackTrace();
+			}
+		}
+		
+		return DEFAULT_DISPLAY_PERIOD;
+	}
+	
+}
@@ -13,17 +13,21 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
-import javax.swing.Timer;
 import javax.vecmath.Matrix4f;
 import javax.vecmath.Point3f;
+import javax.vecmath.Point4f;
+
+import joints2.Camera.ProjectionType;
+import joints2.JLView.Layer;
 
 import multij.swing.MouseHandler;
 import multij.swing.SwingTools;
@@ -36,6 +40,12 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 	
 	private final JLView view = new JLView();
 	
+	private final Layer backgroundLayer = this.view.newLayer();
+	
+	private final Layer modelLayer = this.view.newLayer();
+	
+	private final Layer overlayLayer = this.view.newLayer();
+	
 	private final Canvas ids = new Canvas();
 	
 	private final Camera camera = new Camera(this.view);
@@ -44,31 +54,40 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 	
 	private final Map<Object, List<Point3f>> locations = new HashMap<>();
 	
-	private final Map<Point3f, Point3f> transformedLocations = new IdentityHashMap<>();
+	private final Map<Object, float[]> locationSnapshots = new HashMap<>();
+	
+	private final Map<Object, float[]> projectedLocations = new HashMap<>();
+	
+	private float[] packedLocations = new float[0];
 	
 	private final Matrix4f transform = new Matrix4f();
 	
-	private final AtomicBoolean updateNeeded = new AtomicBoolean();
+	private final Matrix4f previousTransform = new Matrix4f();
 	
-	private Window window;
+	private final RepaintScheduler repaintScheduler = new RepaintScheduler(this.view);
 	
-	private final Timer timer = new Timer(40, e -> {
-		if (this.getUpdateNeeded().getAndSet(false)) {
-			this.getView().repaint();
-		}
-	});
+	private Window window;
 	
 	private int idUnderMouse;
 	
+	private final PickingIndex pickingIndex = new PickingIndex();
+	
+	private final List<Consumer<PickingIndex>> pickables = new ArrayList<>();
+	
+	private boolean analyticPicking;
+	
+	private long idNanoseconds;
+	
 	{
 		this.getView().getRenderers().add(this);
-		this.getTimer().setRepeats(true);
-		this.getTimer().start();
+		this.getBackgroundLayer().getRenderers().add(g -> fill(g, this.getClearColor()));
+		this.getRepaintScheduler().start();
 		this.getView().addComponentListener(new ComponentAdapter() {
 			
 			@Override
 			public final void componentResized(final ComponentEvent event) {
 				getView().getCanvas().getGraphics().setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+				getView().getLayers().forEach(l -> l.getCanvas().getGraphics().setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON));
 				
 				getIds().setFormat(getView().getWidth(), getView().getHeight());
 				getIds().getGraphics().setTransform(getView().getCanvas().getGraphics().getTransform());
@@ -82,7 +101,7 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 			
 			@Override
 			public final void mouseMoved(final MouseEvent event) {
-				setIdUnderMouse(getIds().getImage().getRGB(event.getX(), event.getY()) & 0x00FFFFFF);
+				setIdUnderMouse(pick(event.getX(), event.getY()));
 			}
 			
 			private static final long serialVersionUID = -3777081695610045505L;
@@ -94,6 +113,27 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 		return this.view;
 	}
 	
+	/**
+	 * @return the layer for static content, cleared with {@link #getClearColor()}
+	 */
+	public final Layer getBackgroundLayer() {
+		return this.backgroundLayer;
+	}
+	
+	/**
+	 * @return the layer for the model; {@link #getIds()} is cleared where this layer is redrawn
+	 */
+	public final Layer getModelLayer() {
+		return this.modelLayer;
+	}
+	
+	/**
+	 * @return the layer for transient decorations (highlight, selection)
+	 */
+	public final Layer getOverlayLayer() {
+		return this.overlayLayer;
+	}
+	
 	public final Canvas getIds() {
 		return this.ids;
 	}
@@ -112,6 +152,7 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 	
 	public final Scene setClearColor(final Color clearColor) {
 		this.clearColor = clearColor;
+		this.getBackgroundLayer().invalidate();
 		
 		return this;
 	}
@@ -120,12 +161,101 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 		return this.locations;
 	}
 	
+	/**
+	 * @return packed locations (x, y, z per location) to project instead of reading <code>getLocations().get(key)</code>,
+	 * for lists that are being modified by another thread (see {@link Simulation});
+	 * a snapshot is ignored if its size does not match the list
+	 */
+	public final Map<Object, float[]> getLocationSnapshots() {
+		return this.locationSnapshots;
+	}
+	
+	/**
+	 * Setting this flag alone does not cause a repaint, see {@link #requestUpdate()}.
+	 * 
+	 * @return the flag of {@link #getRepaintScheduler()}
+	 */
 	public final AtomicBoolean getUpdateNeeded() {
-		return this.updateNeeded;
+		return this.getRepaintScheduler().getUpdateNeeded();
+	}
+	
+	public final RepaintScheduler getRepaintScheduler() {
+		return this.repaintScheduler;
 	}
 	
-	public final Timer getTimer() {
-		return this.timer;
+	/**
+	 * Schedules a repaint of the invalidated parts of the layers; may be called from any thread.
+	 * 
+	 * @return <code>this</code>
+	 */
+	public final Scene requestUpdate() {
+		this.getRepaintScheduler().request();
+		
+		return this;
+	}
+	
+	public final boolean isAnalyticPicking() {
+		return this.analyticPicking;
+	}
+	
+	/**
+	 * In analytic mode, picking queries {@link #getPickingIndex()} and nothing is drawn into {@link #getIds()}.
+	 * 
+	 * @param analyticPicking
+	 * @return <code>this</code>
+	 */
+	public final Scene setAnalyticPicking(final boolean analyticPicking) {
+		this.analyticPicking = analyticPicking;
+		this.getModelLayer().invalidate();
+		this.pickingIndex.invalidate();
+		
+		return this;
+	}
+	
+	/**
+	 * @return the callbacks filling the picking index (in view coordinates, see {@link #getProjected(Object)})
+	 */
+	public final List<Consumer<PickingIndex>> getPickables() {
+		return this.pickables;
+	}
+	
+	/**
+	 * Rebuilds the picking index from {@link #getPickables()} if the camera or the model changed since the last build.
+	 * 
+	 * @return the picking index
+	 */
+	public final PickingIndex getPickingIndex() {
+		final PickingIndex result = this.pickingIndex;
+		
+		if (!result.isValid()) {
+			final long start = Metrics.start();
+			final Graphics2D g = this.getView().getCanvas().getGraphics();
+			
+			result.clear(g != null ? g.getTransform() : IDENTITY);
+			this.getPickables().forEach(p -> p.accept(result));
+			result.build();
+			
+			PICKING_METRICS.stop(start);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @param x
+	 * <br>In pixels
+	 * @param y
+	 * <br>In pixels
+	 * @return the id under <code>(x, y)</code>, or <code>0</code>
+	 */
+	public final int pick(final int x, final int y) {
+		if (this.isAnalyticPicking()) {
+			return this.getPickingIndex().pick(x, y);
+		}
+		
+		final BufferedImage ids = this.getIds().getImage();
+		
+		return ids != null && 0 <= x && x < ids.getWidth() && 0 <= y && y < ids.getHeight() ? ids.getRGB(x, y) & 0x00FFFFFF : 0;
 	}
 	
 	public final int getIdUnderMouse() {
@@ -136,35 +266,159 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 		this.idUnderMouse = idUnderMouse;
 	}
 	
+	/**
+	 * Invalidates all layers if the camera moved, clears the invalidated part of {@link #getIds()},
+	 * and updates the transformed locations if anything has to be redrawn.
+	 * <br>Also records the time spent drawing into {@link #getIds()} during the previous frame.
+	 */
 	@Override
 	public final void accept(final Graphics2D g) {
-		fill(g, this.getClearColor());
-		fill(this.getIds().getGraphics(), Color.BLACK);
+		if (this.idNanoseconds != 0L) {
+			ID_METRICS.record(this.idNanoseconds);
+			this.idNanoseconds = 0L;
+		}
 		
 		this.getCamera().getProjectionView(this.transform);
-		this.getLocations().values().forEach(l -> l.forEach(v -> this.transform.transform(
-				v, this.transformedLocations.computeIfAbsent(v, Point3f::new))));
+		
+		if (!this.transform.equals(this.previousTransform)) {
+			this.previousTransform.set(this.transform);
+			this.getView().invalidateLayers();
+		}
+		
+		final Rectangle modelDirtyRegion = this.getModelLayer().getDirtyRegion();
+		
+		if (modelDirtyRegion != null) {
+			this.pickingIndex.invalidate();
+		}
+		
+		if (modelDirtyRegion != null && !this.isAnalyticPicking() && this.getIds().getGraphics() != null) {
+			final Graphics2D idsGraphics = this.getIds().getGraphics();
+			final AffineTransform idsTransform = idsGraphics.getTransform();
+			
+			idsGraphics.setTransform(IDENTITY);
+			idsGraphics.setColor(Color.BLACK);
+			idsGraphics.fill(modelDirtyRegion);
+			idsGraphics.setTransform(idsTransform);
+		}
+		
+		if (this.getView().getDirtyRegion() != null) {
+			final long start = Metrics.start();
+			
+			this.project();
+			
+			PROJECTION_METRICS.stop(start);
+		}
 	}
 	
-	public final Path2D polygon(final Object locationsKey, final Path2D result) {
-		final List<Point3f> locations = this.getLocations().get(locationsKey);
-		final int n = locations.size();
-		Point3f p = this.getTransformed(locations.get(0));
+	/**
+	 * Packs each list of {@link #getLocations()} (or takes its {@link #getLocationSnapshots() snapshot}) and projects it with the camera's projection-view matrix
+	 * into {@link #getProjected(Object)}.
+	 */
+	public final void project() {
+		final boolean perspective = this.getCamera().getProjectionType() == ProjectionType.PERSPECTIVE;
+		
+		this.getCamera().getProjectionView(this.transform);
+		
+		for (final Map.Entry<Object, List<Point3f>> entry : this.getLocations().entrySet()) {
+			final List<Point3f> locations = entry.getValue();
+			final int n = locations.size();
+			float[] packed = this.getLocationSnapshots().get(entry.getKey());
+			float[] projected = this.projectedLocations.get(entry.getKey());
+			
+			if (projected == null || projected.length != 3 * n) {
+				projected = new float[3 * n];
+				this.projectedLocations.put(entry.getKey(), projected);
+			}
+			
+			if (packed == null || packed.length != 3 * n) {
+				packed = this.packedLocations;
+				
+				if (packed.length < 3 * n) {
+					packed = new float[3 * n];
+					this.packedLocations = packed;
+				}
+				
+				for (int i = 0, j = 0; i < n; ++i, j += 3) {
+					final Point3f location = locations.get(i);
+					
+					packed[j + 0] = location.x;
+					packed[j + 1] = location.y;
+					packed[j + 2] = location.z;
+				}
+			}
+			
+			project(this.transform, packed, projected, n, perspective);
+		}
 		
-		result.moveTo(p.x, p.y);
+		this.projectedLocations.keySet().retainAll(this.getLocations().keySet());
+	}
+	
+	/**
+	 * @param locationsKey
+	 * @return the projected coordinates of <code>getLocations().get(locationsKey)</code> (x, y, z per location),
+	 * as of the last projection; clipped locations are <code>NaN</code>
+	 */
+	public final float[] getProjected(final Object locationsKey) {
+		final float[] result = this.projectedLocations.get(locationsKey);
+		
+		return result != null ? result : NO_LOCATIONS;
+	}
+	
+	/**
+	 * @param locationsKey
+	 * @param index
+	 * @param result
+	 * @return <code>result</code>, or <code>null</code> if the location was not projected yet or is clipped
+	 */
+	public final Point3f getTransformed(final Object locationsKey, final int index, final Point3f result) {
+		final float[] projected = this.getProjected(locationsKey);
+		final int i = 3 * index;
 		
-		for (int i = 1; i < n; ++i) {
-			p = this.getTransformed(locations.get(i));
-			result.lineTo(p.x, p.y);
+		if (i < 0 || projected.length <= i || Float.isNaN(projected[i])) {
+			return null;
 		}
 		
-		result.closePath();
+		result.set(projected[i + 0], projected[i + 1], projected[i + 2]);
 		
 		return result;
 	}
 	
-	public final Point3f getTransformed(final Point3f location) {
-		return this.transformedLocations.get(location);
+	/**
+	 * Inverse of {@link #project()} for a single location.
+	 * 
+	 * @param location
+	 * <br>Input-output: projected coordinates (as in {@link #getProjected(Object)}) in, world coordinates out
+	 * @return <code>location</code>
+	 */
+	public final Point3f unproject(final Point3f location) {
+		final Matrix4f m = this.getCamera().getProjectionView(new Matrix4f());
+		
+		m.invert();
+		
+		return unproject(m, location);
+	}
+	
+	public final Path2D polygon(final Object locationsKey, final Path2D result) {
+		final float[] projected = this.getProjected(locationsKey);
+		final int n = projected.length;
+		
+		for (int i = 0; i < n; i += 3) {
+			if (Float.isNaN(projected[i])) {
+				continue;
+			}
+			
+			if (result.getCurrentPoint() == null) {
+				result.moveTo(projected[i + 0], projected[i + 1]);
+			} else {
+				result.lineTo(projected[i + 0], projected[i + 1]);
+			}
+		}
+		
+		if (result.getCurrentPoint() != null) {
+			result.closePath();
+		}
+		
+		return result;
 	}
 	
 	public final void draw(final Shape shape, final Color color, final int id, final Graphics2D graphics) {
@@ -175,9 +429,13 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 	}
 	
 	public final void drawId(final Shape shape, final int id) {
-		if (0 <= id) {
+		if (0 <= id && !this.isAnalyticPicking()) {
+			final long start = Metrics.start();
+			
 			this.getIds().getGraphics().setColor(new Color(id));
 			this.getIds().getGraphics().draw(shape);
+			
+			this.addIdTime(start);
 		}
 	}
 	
@@ -194,9 +452,19 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 	}
 	
 	public final void fillId(final Shape shape, final int id) {
-		if (0 <= id) {
+		if (0 <= id && !this.isAnalyticPicking()) {
+			final long start = Metrics.start();
+			
 			this.getIds().getGraphics().setColor(new Color(id));
 			this.getIds().getGraphics().fill(shape);
+			
+			this.addIdTime(start);
+		}
+	}
+	
+	private final void addIdTime(final long start) {
+		if (start != 0L) {
+			this.idNanoseconds += System.nanoTime() - start;
 		}
 	}
 	
@@ -211,7 +479,7 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 					final Window sceneWindow = getWindow(null);
 					
 					if (window == sceneWindow) {
-						getTimer().stop();
+						getRepaintScheduler().stop();
 					} else if (sceneWindow == null) {
 						window.removeWindowListener(this);
 					}
@@ -244,6 +512,92 @@ public final class Scene implements Serializable, Consumer<Graphics2D> {
 	
 	private static final Rectangle VIEW = new Rectangle(-1, -1, 2, 2);
 	
+	private static final AffineTransform IDENTITY = new AffineTransform();
+	
+	private static final float[] NO_LOCATIONS = {};
+	
+	private static final Metrics.Series PROJECTION_METRICS = Metrics.timer("scene.projection");
+	
+	private static final Metrics.Series PICKING_METRICS = Metrics.timer("scene.picking");
+	
+	/**
+	 * Time spent drawing into the id buffer, per frame.
+	 */
+	private static final Metrics.Series ID_METRICS = Metrics.timer("scene.ids");
+	
+	/**
+	 * Smallest <code>w</code> in front of the eye; locations with a smaller <code>w</code> are clipped.
+	 */
+	public static final float MINIMUM_W = 1E-6F;
+	
+	/**
+	 * Transforms <code>count</code> packed (x, y, z) triples of <code>source</code> into <code>target</code>.
+	 * <br>In perspective mode, coordinates are divided by <code>w</code>,
+	 * and locations behind the eye (<code>w &lt; {@link #MINIMUM_W}</code>) are set to <code>NaN</code>.
+	 * 
+	 * @param m
+	 * @param source
+	 * @param target
+	 * @param count
+	 * @param perspective
+	 */
+	public static final void project(final Matrix4f m, final float[] source, final float[] target, final int count, final boolean perspective) {
+		final float m00 = m.m00, m01 = m.m01, m02 = m.m02, m03 = m.m03;
+		final float m10 = m.m10, m11 = m.m11, m12 = m.m12, m13 = m.m13;
+		final float m20 = m.m20, m21 = m.m21, m22 = m.m22, m23 = m.m23;
+		final float m30 = m.m30, m31 = m.m31, m32 = m.m32, m33 = m.m33;
+		final int end = 3 * count;
+		
+		for (int i = 0; i < end; i += 3) {
+			final float x = source[i + 0];
+			final float y = source[i + 1];
+			final float z = source[i + 2];
+			final float tx = m00 * x + m01 * y + m02 * z + m03;
+			final float ty = m10 * x + m11 * y + m12 * z + m13;
+			final float tz = m20 * x + m21 * y + m22 * z + m23;
+			
+			if (perspective) {
+				final float w = m30 * x + m31 * y + m32 * z + m33;
+				
+				if (w < MINIMUM_W) {
+					target[i + 0] = Float.NaN;
+					target[i + 1] = Float.NaN;
+					target[i + 2] = Float.NaN;
+				} else {
+					final float invW = 1F / w;
+					
+					target[i + 0] = tx * invW;
+					target[i + 1] = ty * invW;
+					target[i + 2] = tz * invW;
+				}
+			} else {
+				target[i + 0] = tx;
+				target[i + 1] = ty;
+				target[i + 2] = tz;
+			}
+		}
+	}
+	
+	/**
+	 * Transforms <code>location</code> with <code>inverse</code> as (x, y, z, 1) and divides the result by <code>w</code>,
+	 * which undoes {@link #project(Matrix4f, float[], float[], int, boolean)} in both projection modes
+	 * (<code>w</code> stays 1 in orthographic mode).
+	 * 
+	 * @param inverse
+	 * <br>The inverse of the projection-view matrix
+	 * @param location
+	 * <br>Input-output
+	 * @return <code>location</code>
+	 */
+	public static final Point3f unproject(final Matrix4f inverse, final Point3f location) {
+		final Point4f p = new Point4f(location.x, location.y, location.z, 1F);
+		
+		inverse.transform(p);
+		location.set(p.x / p.w, p.y / p.w, p.z / p.w);
+		
+		return location;
+	}
+	
 	private static final void fill(final Graphics2D graphics, final Color color) {
 		graphics.setColor(color);
 		graphics.fill(VIEW);
@@ -0,0 +1,364 @@
+package joints2;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.vecmath.Point3f;
+
+import joints2.JointsModel.Segment;
+
+/**
+ * Steps a {@link JointsModel} at a fixed rate on a dedicated daemon thread.
+ * <br>While the simulation is running, the joint locations belong to its thread: other threads read them through
+ * {@link #acquireSnapshot()} and move them through {@link #edit(Runnable)}.
+ * Structural changes to the model remain allowed from other threads because the step holds the model's monitor
+ * (see {@link JointsModel#applyConstraints(AtomicBoolean)}).
+ * <br>Snapshots are handed over without locks through 3 buffers: one being written by the simulation,
+ * one being read by the consumer, and the latest published one in between.
+ * <br>The thread parks while the solver {@link JointsSolver#isIdle() is idle} and nothing is left to publish;
+ * {@link #edit(Runnable)} and {@link #wake()} resume it.
+ *
+ * @author codistmonk (creation 2015-08-10)
+ */
+public final class Simulation implements Serializable {
+	
+	private final JointsModel model;
+	
+	private final Runnable publicationListener;
+	
+	private final AtomicBoolean updateNeeded;
+	
+	private final Queue<Runnable> edits;
+	
+	private final AtomicReference<Snapshot> published;
+	
+	private Snapshot back;
+	
+	private Snapshot front;
+	
+	private long period;
+	
+	private volatile boolean solving;
+	
+	private transient Thread thread;
+	
+	private long stepCount;
+	
+	private long publishedModificationCount;
+	
+	/**
+	 * @param model
+	 * @param publicationListener
+	 * <br>Called on the simulation thread after each new snapshot, e.g. to request a repaint
+	 */
+	public Simulation(final JointsModel model, final Runnable publicationListener) {
+		this.model = model;
+		this.publicationListener = publicationListener;
+		this.updateNeeded = new AtomicBoolean();
+		this.edits = new ConcurrentLinkedQueue<>();
+		this.published = new AtomicReference<>(new Snapshot());
+		this.back = new Snapshot();
+		this.front = new Snapshot();
+		this.period = DEFAULT_PERIOD;
+		this.solving = true;
+		this.publishedModificationCount = -1L;
+	}
+	
+	public final JointsModel getModel() {
+		return this.model;
+	}
+	
+	/**
+	 * @return the step period in nanoseconds
+	 */
+	public final long getPeriod() {
+		return this.period;
+	}
+	
+	public final Simulation setPeriod(final long period, final TimeUnit unit) {
+		this.period = unit.toNanos(period);
+		
+		return this;
+	}
+	
+	public final boolean isSolving() {
+		return this.solving;
+	}
+	
+	/**
+	 * When not solving, steps only apply edits and publish the result.
+	 *
+	 * @param solving
+	 * @return <code>this</code>
+	 */
+	public final Simulation setSolving(final boolean solving) {
+		this.solving = solving;
+		
+		return this.wake();
+	}
+	
+	public final long getStepCount() {
+		return this.stepCount;
+	}
+	
+	public final synchronized boolean isRunning() {
+		return this.thread != null;
+	}
+	
+	public final synchronized Simulation start() {
+		if (this.thread == null) {
+			this.thread = new Thread(this::run, "simulation:" + this.getModel().getName());
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+		
+		return this;
+	}
+	
+	public final synchronized Simulation stop() {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Queues <code>edit</code> to be run on the simulation thread before the next step.
+	 * <br>Edits that move joints should wake them up, e.g. with {@link JointsSolver#wake(Point3f)}.
+	 *
+	 * @param edit
+	 * @return <code>this</code>
+	 */
+	public final Simulation edit(final Runnable edit) {
+		this.edits.add(edit);
+		
+		return this.wake();
+	}
+	
+	/**
+	 * Resumes the simulation thread if it was parked, e.g. after a structural change of the model.
+	 *
+	 * @return <code>this</code>
+	 */
+	public final synchronized Simulation wake() {
+		if (this.thread != null) {
+			LockSupport.unpark(this.thread);
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * The returned snapshot belongs to the caller until its next call;
+	 * it should only be called from one consumer thread.
+	 *
+	 * @return the latest snapshot if it was published since the last call, <code>null</code> otherwise
+	 */
+	public final Snapshot acquireSnapshot() {
+		if (!this.published.get().fresh) {
+			return null;
+		}
+		
+		this.front = this.published.getAndSet(this.front);
+		this.front.fresh = false;
+		
+		return this.front;
+	}
+	
+	/**
+	 * @return the snapshot returned by the last call to {@link #acquireSnapshot()}, or an empty snapshot
+	 */
+	public final Snapshot getSnapshot() {
+		return this.front;
+	}
+	
+	/**
+	 * Applies pending edits, solves (if {@link #isSolving()}), and publishes a snapshot if something changed.
+	 * <br>Called by the simulation thread; may be called directly when the simulation is not running.
+	 *
+	 * @return <code>this</code>
+	 */
+	public final Simulation step() {
+		final JointsModel model = this.getModel();
+		final long start = Metrics.start();
+		boolean changed = false;
+		
+		synchronized (model) {
+			for (Runnable edit = this.edits.poll(); edit != null; edit = this.edits.poll()) {
+				edit.run();
+				changed = true;
+			}
+			
+			if (this.isSolving()) {
+				changed |= model.applyConstraints(this.updateNeeded);
+			}
+			
+			changed |= this.publishedModificationCount != model.getModificationCount();
+			
+			if (changed) {
+				this.back.copy(model, this.isSolving(), this.stepCount);
+				this.publishedModificationCount = model.getModificationCount();
+			}
+		}
+		
+		if (changed) {
+			this.back.fresh = true;
+			this.back = this.published.getAndSet(this.back);
+			this.publicationListener.run();
+		}
+		
+		++this.stepCount;
+		
+		STEP_METRICS.stop(start);
+		
+		return this;
+	}
+	
+	private final void run() {
+		final Thread thread = Thread.currentThread();
+		long next = System.nanoTime();
+		
+		while (!thread.isInterrupted()) {
+			try {
+				this.step();
+			} catch (final Exception exception) {
+				exception.printStackTrace();
+			}
+			
+			if (this.isIdle()) {
+				// An unpark between the check and the park makes the park return immediately
+				LockSupport.park(this);
+				next = System.nanoTime();
+				
+				continue;
+			}
+			
+			final long period = this.getPeriod();
+			
+			next += period;
+			
+			final long now = System.nanoTime();
+			
+			if (next < now - MAXIMUM_LAG * period) {
+				// Skip the steps that can no longer be caught up with instead of running them back to back
+				next = now;
+			}
+			
+			LockSupport.parkNanos(this, next - now);
+		}
+	}
+	
+	private final boolean isIdle() {
+		final JointsModel model = this.getModel();
+		
+		return this.edits.isEmpty() && (!this.isSolving() || model.getSolver().isIdle())
+				&& this.publishedModificationCount == model.getModificationCount();
+	}
+	
+	private static final long serialVersionUID = -3157646098215806549L;
+	
+	public static final long DEFAULT_PERIOD = TimeUnit.MILLISECONDS.toNanos(10L);
+	
+	private static final long MAXIMUM_LAG = 4L;
+	
+	private static final Metrics.Series STEP_METRICS = Metrics.timer("simulation.step");
+	
+	/**
+	 * Packed joint locations (x, y, z per joint) and segment constraint values
+	 * as of a given structural version of the model.
+	 *
+	 * @author codistmonk (creation 2015-08-10)
+	 */
+	public static final class Snapshot implements Serializable {
+		
+		private float[] locations = {};
+		
+		private float[] constraints = {};
+		
+		private long modificationCount = -1L;
+		
+		private long stepCount;
+		
+		volatile boolean fresh;
+		
+		public final float[] getLocations() {
+			return this.locations;
+		}
+		
+		/**
+		 * @return the constraint values of the model's segments, in the same order
+		 */
+		public final float[] getConstraints() {
+			return this.constraints;
+		}
+		
+		/**
+		 * @return the value of {@link JointsModel#getModificationCount()} when this snapshot was taken
+		 */
+		public final long getModificationCount() {
+			return this.modificationCount;
+		}
+		
+		public final long getStepCount() {
+			return this.stepCount;
+		}
+		
+		/**
+		 * Must be called by the simulation thread while holding the model's monitor.
+		 *
+		 * @param model
+		 * @param solved
+		 * <br>If <code>true</code>, the solver has just evaluated the constraints and they are reused
+		 * @param stepCount
+		 */
+		final void copy(final JointsModel model, final boolean solved, final long stepCount) {
+			final List<Point3f> joints = model.getJointLocations();
+			final List<Segment> segments = model.getSegments();
+			final int n = joints.size();
+			final int m = segments.size();
+			
+			if (this.locations.length != 3 * n) {
+				this.locations = new float[3 * n];
+			}
+			
+			if (this.constraints.length != m) {
+				this.constraints = new float[m];
+			}
+			
+			final float[] locations = this.locations;
+			final float[] constraints = this.constraints;
+			
+			for (int i = 0, j = 0; i < n; ++i, j += 3) {
+				final Point3f joint = joints.get(i);
+				
+				locations[j + 0] = joint.x;
+				locations[j + 1] = joint.y;
+				locations[j + 2] = joint.z;
+			}
+			
+			// The solver skips segments whose joints are missing, and then its indices differ from the model's
+			if (solved && model.getSolver().getSegmentCount() == m) {
+				System.arraycopy(model.getSolver().getConstraints(), 0, constraints, 0, m);
+			} else {
+				for (int i = 0; i < m; ++i) {
+					constraints[i] = (float) model.evaluateConstraint(segments.get(i));
+				}
+			}
+			
+			this.modificationCount = model.getModificationCount();
+			this.stepCount = stepCount;
+		}
+		
+		private static final long serialVersionUID = 4460986096658582569L;
+		
+	}
+	
+}